@@ -4,6 +4,7 @@ import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import de.tum.in.net.group17.onion.config.ConfigurationProvider;
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
 import de.tum.in.net.group17.onion.interfaces.onion.OnionCallback;
 import de.tum.in.net.group17.onion.interfaces.onion.OnionException;
 import de.tum.in.net.group17.onion.interfaces.onion.OnionInterface;
@@ -19,6 +20,7 @@ import de.tum.in.net.group17.onion.parser.onionapi.OnionTunnelBuildParsedMessage
 import de.tum.in.net.group17.onion.parser.onionapi.OnionTunnelDataParsedMessage;
 import de.tum.in.net.group17.onion.parser.onionapi.OnionTunnelDestroyParsedMessage;
 import de.tum.in.net.group17.onion.util.Hashing;
+import de.tum.in.net.group17.onion.util.KeyedSerialExecutor;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -48,8 +50,10 @@ public class Orchestrator {
     private OnionInterface onionInterface;
     @Inject
     private ConfigurationProvider configProvider;
+    @Inject
+    private EventLoopResources resources;
 
-    private Runnable nextTunnelBuild;
+    private volatile Runnable nextTunnelBuild;
 
     private final AtomicInteger tunnelId = new AtomicInteger();
 
@@ -75,6 +79,11 @@ public class Orchestrator {
     private TimerTask roundTask;
     private Timer roundTimer;
 
+    /**
+     * Workers handling requests of the CM, keyed by tunnel ID to keep the requests of a tunnel in order.
+     */
+    private KeyedSerialExecutor apiExecutor;
+
 
     /**
      * Main method of the Onion module.
@@ -104,6 +113,9 @@ public class Orchestrator {
             // Setup the dependency injection with Guice
             Injector injector = Guice.createInjector(new ProductionInjector(args[1]));
             Orchestrator orchestrator = injector.getInstance(Orchestrator.class);
+            // all network interfaces share the event loops, hence stopping them once stops all interfaces
+            EventLoopResources resources = injector.getInstance(EventLoopResources.class);
+            Runtime.getRuntime().addShutdownHook(new Thread(resources::shutdown, "shutdown"));
             orchestrator.start();
         } catch (NoSuchFileException e) {
             logger.fatal("Could not set up Onion module: " + e.getMessage());
@@ -192,6 +204,8 @@ public class Orchestrator {
         this.startedTunnels = new ConcurrentHashMap<>();
         this.incomingTunnels = new ConcurrentHashMap<>();
         this.segments = new ConcurrentHashMap<>();
+        this.apiExecutor = new KeyedSerialExecutor("onion-api", Runtime.getRuntime().availableProcessors());
+        this.resources.register(this.apiExecutor);
 
         // Listen for Onion connections
         this.onionInterface.setTunnels(this.startedTunnels, this.incomingTunnels);
@@ -240,6 +254,8 @@ public class Orchestrator {
                 }
 
                 cleanupOldStates();
+                logger.debug(onionInterface.getStatistics());
+                logger.debug(apiExecutor.toString());
             }
         };
     }
@@ -315,39 +331,44 @@ public class Orchestrator {
 
             @Override
             public void receivedVoiceData(OnionTunnelDataParsedMessage msg) {
-                try {
-                    onionInterface.sendVoiceData(msg);
-                } catch (OnionException e) {
-                    logger.error("Cannot send data received by CM on tunnel: " + msg.getTunnelId() +
-                            "; Error: " + e.getMessage());
+                apiExecutor.submit(msg.getTunnelId(), () -> {
                     try {
-                        apiInterface.sendError(msg.getTunnelId(), msg.getType());
-                    } catch (OnionApiException e1) {
-                        logger.error("Cannot even send error to CM module (disconnected?): " + e1.getMessage());
+                        onionInterface.sendVoiceData(msg);
+                    } catch (OnionException e) {
+                        logger.error("Cannot send data received by CM on tunnel: " + msg.getTunnelId() +
+                                "; Error: " + e.getMessage());
+                        try {
+                            apiInterface.sendError(msg.getTunnelId(), msg.getType());
+                        } catch (OnionApiException e1) {
+                            logger.error("Cannot even send error to CM module (disconnected?): " + e1.getMessage());
+                        }
                     }
-                }
+                });
             }
 
             @Override
             public void receivedDestroy(OnionTunnelDestroyParsedMessage msg) {
-                try {
-                    onionInterface.destroyTunnelById(msg.getTunnelId());
-                } catch (OnionException e) {
+                // Keyed by the tunnel ID, so voice data already received for this tunnel is sent before
+                apiExecutor.submit(msg.getTunnelId(), () -> {
                     try {
-                        apiInterface.sendError(msg.getTunnelId(), MessageType.ONION_TUNNEL_DESTROY);
-                    } catch (OnionApiException e1) {
-                        logger.error("Cannot even send error to CM module (disconnected?): " + e1.getMessage());
+                        onionInterface.destroyTunnelById(msg.getTunnelId());
+                    } catch (OnionException e) {
+                        try {
+                            apiInterface.sendError(msg.getTunnelId(), MessageType.ONION_TUNNEL_DESTROY);
+                        } catch (OnionApiException e1) {
+                            logger.error("Cannot even send error to CM module (disconnected?): " + e1.getMessage());
+                        }
                     }
-                }
-                // Clean up of tunnels
-                startedTunnels.remove(msg.getTunnelId());
-                incomingTunnels.remove(msg.getTunnelId());
-
-                // todo: Specification doesn't say whether a cover tunnel has to be built if a voice tunnel is closed mid-round
-                // Issue new cover tunnel build for new round
-                if(startedTunnels.isEmpty()) {
-                    nextTunnelBuild = () -> setupCoverTunnel();
-                }
+                    // Clean up of tunnels
+                    startedTunnels.remove(msg.getTunnelId());
+                    incomingTunnels.remove(msg.getTunnelId());
+
+                    // todo: Specification doesn't say whether a cover tunnel has to be built if a voice tunnel is closed mid-round
+                    // Issue new cover tunnel build for new round
+                    if(startedTunnels.isEmpty()) {
+                        nextTunnelBuild = () -> setupCoverTunnel();
+                    }
+                });
             }
         };
     }
@@ -445,14 +466,12 @@ public class Orchestrator {
         }
 
         try {
+            // data sent to the first hop is held back until the destination had time to process the message
             this.onionInterface.sendEstablished(t);
-            Thread.sleep(333);
         } catch (OnionException e) {
             this.logger.error("Error when sending the final established message over the tunnel. Tunnel is not finished! Error: " + e.getMessage());
             this.onionInterface.destroyTunnelById(t.getId());
             throw e;
-        } catch (InterruptedException e) {
-            this.logger.warn("Interrupted while timeout after sending established!");
         }
 
         this.nextTunnelBuild = null;
@@ -476,19 +495,40 @@ public class Orchestrator {
         exceptions.add(this.configProvider.getHostId());
         exceptions.add(destination.getId());
 
-        // get random intermediate hops to destination
-        this.logger.debug("Trying to find " + this.configProvider.getIntermediateHopCount() + " hops.");
-        for (int i = 0; i < this.configProvider.getIntermediateHopCount(); i++) {
-            Peer p = this.rpsInterface.queryRandomPeer(exceptions);    // sync'd method
-            if(p == null) {
-                this.logger.error("Failed to find enough new random peers for tunnel building other than ourselves. Retry next round.");
-                return;
+        // session handshakes do not depend on the previous hop, hence they are all started before extending the tunnel
+        this.onionInterface.prepareHandshake(destination);
+
+        List<Peer> hops = new ArrayList<>();
+        boolean built = false;
+        try {
+            // get random intermediate hops to destination
+            this.logger.debug("Trying to find " + this.configProvider.getIntermediateHopCount() + " hops.");
+            for (int i = 0; i < this.configProvider.getIntermediateHopCount(); i++) {
+                Peer p = this.rpsInterface.queryRandomPeer(exceptions);    // sync'd method
+                if(p == null) {
+                    this.logger.error("Failed to find enough new random peers for tunnel building other than ourselves. Retry next round.");
+                    return;
+                }
+                this.onionInterface.prepareHandshake(p);
+                hops.add(p);
+                exceptions.add(p.getId());
             }
-            this.onionInterface.extendTunnel(t, p);
-            exceptions.add(p.getId());
-        }
 
-        this.onionInterface.extendTunnel(t, destination);
+            // only the sequential exchange of INIT, RELAY and ACCEPT messages is left for each hop
+            for (Peer p : hops) {
+                this.onionInterface.extendTunnel(t, p);
+            }
+            this.onionInterface.extendTunnel(t, destination);
+            built = true;
+        } finally {
+            // close the sessions prepared for peers we did not get to, handshakes taken already are not affected
+            if(!built) {
+                for (Peer p : hops) {
+                    this.onionInterface.discardHandshake(p);
+                }
+                this.onionInterface.discardHandshake(destination);
+            }
+        }
     }
 
     /**
@@ -3,8 +3,10 @@ package de.tum.in.net.group17.onion;
 import com.google.inject.AbstractModule;
 import de.tum.in.net.group17.onion.config.ConfigurationProvider;
 import de.tum.in.net.group17.onion.config.ConfigurationProviderImpl;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthEngine;
 import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterface;
 import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterfaceImpl;
+import de.tum.in.net.group17.onion.interfaces.authentication.JvmAuthenticationInterfaceImpl;
 import de.tum.in.net.group17.onion.interfaces.onion.OnionInterface;
 import de.tum.in.net.group17.onion.interfaces.onion.OnionInterfaceImpl;
 import de.tum.in.net.group17.onion.interfaces.onionapi.OnionApiInterface;
@@ -56,7 +58,11 @@ public class ProductionInjector extends AbstractModule {
         bind(ConfigurationProvider.class).toInstance(cfgProvider);
 
         // bind interfaces to other modules to their implementations
-        bind(AuthenticationInterface.class).to(AuthenticationInterfaceImpl.class);
+        if(cfgProvider.getAuthEngine() == AuthEngine.JVM) {
+            bind(AuthenticationInterface.class).to(JvmAuthenticationInterfaceImpl.class);
+        } else {
+            bind(AuthenticationInterface.class).to(AuthenticationInterfaceImpl.class);
+        }
         bind(OnionInterface.class).to(OnionInterfaceImpl.class);
         bind(OnionApiInterface.class).to(OnionApiInterfaceImpl.class);
         bind(RandomPeerSamplingInterface.class).to(RandomPeerSamplingInterfaceImpl.class);
@@ -1,6 +1,11 @@
 package de.tum.in.net.group17.onion.config;
 
+import de.tum.in.net.group17.onion.interfaces.NettyTransport;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthEngine;
+import de.tum.in.net.group17.onion.util.DropPolicy;
+
 import java.net.InetAddress;
+import java.security.PrivateKey;
 import java.time.Duration;
 
 /**
@@ -92,4 +97,154 @@ public interface ConfigurationProvider {
      * @return The API port of the RPS module to use.
      */
     int getRpsApiPort();
+
+
+    /**
+     * Get the Netty transport selected by the optional Onion 'transport' parameter in the configuration.
+     * All server and client interfaces of this module use this transport.
+     *
+     * @return The transport to use (NIO if native transports are not available).
+     */
+    NettyTransport getTransport();
+
+    /**
+     * Get the number of UDP sockets bound to the P2P listen address via SO_REUSEPORT.
+     * Defaults to the number of available processors if the transport supports SO_REUSEPORT, one otherwise.
+     *
+     * @return The number of P2P sockets.
+     */
+    int getP2PSocketCount();
+
+    /**
+     * Get the maximal number of received P2P messages waiting to be handled, per lane.
+     * Further messages are shed according to the ingress drop policy.
+     *
+     * @return The capacity of the ingress queue.
+     */
+    int getIngressQueueSize();
+
+    /**
+     * Get the policy deciding which received P2P data messages are shed if the ingress queue is congested.
+     *
+     * @return The ingress drop policy.
+     */
+    DropPolicy getIngressDropPolicy();
+
+    /**
+     * Get the maximal size of a datagram bundling several transport cells for the same neighbor.
+     * 0 disables bundling.
+     *
+     * @return The maximal size of a bundle in bytes.
+     */
+    int getBundleMtu();
+
+    /**
+     * Get the mask of transport cell size classes this peer supports for the data of its tunnels.
+     * The smallest class is always contained.
+     *
+     * @return A mask of CellSize bits.
+     */
+    short getCellSizes();
+
+    /**
+     * Get the initial receive buffer size (SO_RCVBUF) of the P2P sockets.
+     *
+     * @return The initial receive buffer size in bytes.
+     */
+    int getUdpReceiveBufferMin();
+
+    /**
+     * Get the size the receive buffers of the P2P sockets may grow to if the kernel drops datagrams.
+     *
+     * @return The maximal receive buffer size in bytes.
+     */
+    int getUdpReceiveBufferMax();
+
+    /**
+     * Get the maximal number of requests awaiting a response on a connection to the Onion Auth module.
+     *
+     * @return The size of the request window.
+     */
+    int getAuthWindow();
+
+    /**
+     * Get the number of connections to the Onion Auth module. Requests are spread over them by session ID, which
+     * requires an auth module that shares its sessions between the connections of one client.
+     *
+     * @return The number of connections.
+     */
+    int getAuthConnections();
+
+    /**
+     * Get the engine performing session handshakes and the en- and decryption of tunnel data.
+     *
+     * @return The configured engine.
+     */
+    AuthEngine getAuthEngine();
+
+    /**
+     * Get the private part of the hostkey of this peer. Only required by authentication engines running inside the
+     * Onion module.
+     *
+     * @return The private RSA key of this peer.
+     */
+    PrivateKey getHostPrivateKey();
+
+    /**
+     * Get the parsed 'auth_timeout' parameter from the configuration.
+     *
+     * @return The time to wait for a response of the Onion Auth module.
+     */
+    Duration getAuthTimeout();
+
+    /**
+     * Get the parsed 'accept_timeout' parameter from the configuration.
+     *
+     * @return The time to wait for the ONION TUNNEL ACCEPT of a peer a tunnel is extended to.
+     */
+    Duration getAcceptTimeout();
+
+    /**
+     * Get the parsed 'rps_timeout' parameter from the configuration.
+     *
+     * @return The time to wait for a peer from the RPS module.
+     */
+    Duration getRpsTimeout();
+
+    /**
+     * Get the parsed 'handshake_pool_size' parameter from the configuration.
+     *
+     * @return The maximal number of session handshakes prepared for peers we are about to extend a tunnel to.
+     */
+    int getHandshakePoolSize();
+
+    /**
+     * Get the number of consecutive failed or slow requests to the Onion Auth module after which new requests are
+     * rejected immediately for a while. Zero disables the circuit breaker.
+     *
+     * @return The failure threshold of the circuit breaker.
+     */
+    int getAuthBreakerThreshold();
+
+    /**
+     * Get the latency from which on a response of the Onion Auth module counts as failed for the circuit breaker.
+     *
+     * @return The latency threshold of the circuit breaker.
+     */
+    Duration getAuthBreakerLatency();
+
+    /**
+     * Get the number of event loops shared by all network interfaces, i.e. the P2P sockets and the connections to the
+     * API, auth and RPS modules. Zero uses the Netty default of twice the number of cores.
+     *
+     * @return The number of I/O threads.
+     */
+    int getIoThreads();
+
+    /**
+     * Get the number of threads handling requests received at the Onion API off the event loops.
+     *
+     * @return The number of handler threads.
+     */
+    int getHandlerThreads();
 }
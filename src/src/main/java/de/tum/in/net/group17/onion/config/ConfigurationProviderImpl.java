@@ -1,5 +1,9 @@
 package de.tum.in.net.group17.onion.config;
 
+import de.tum.in.net.group17.onion.interfaces.NettyTransport;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthEngine;
+import de.tum.in.net.group17.onion.parser.onion2onion.CellSize;
+import de.tum.in.net.group17.onion.util.DropPolicy;
 import de.tum.in.net.group17.onion.util.Hashing;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,6 +17,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.NoSuchFileException;
 import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
 import java.security.spec.RSAPublicKeySpec;
 import java.time.Duration;
 import java.util.regex.Pattern;
@@ -33,6 +39,26 @@ public class ConfigurationProviderImpl implements ConfigurationProvider {
     private InetAddress onionP2PHost, onionApiHost, authApiHost, rpsApiHost;
     private int intermediateHopCount;
     private Duration roundInterval;
+    private NettyTransport transport;
+    private int p2pSocketCount;
+    private int ingressQueueSize;
+    private DropPolicy ingressDropPolicy;
+    private int bundleMtu;
+    private short cellSizes;
+    private int udpReceiveBufferMin;
+    private int udpReceiveBufferMax;
+    private int authWindow;
+    private int authConnections;
+    private AuthEngine authEngine;
+    private PrivateKey hostPrivateKey;
+    private Duration authTimeout;
+    private Duration acceptTimeout;
+    private Duration rpsTimeout;
+    private int handshakePoolSize;
+    private int authBreakerThreshold;
+    private Duration authBreakerLatency;
+    private int ioThreads;
+    private int handlerThreads;
     private byte[] hostkey;
     private String id;
 
@@ -100,6 +126,84 @@ public class ConfigurationProviderImpl implements ConfigurationProvider {
                 throw new InvalidFileFormatException("Could not parse onion/api_address: " + e.getMessage());
             }
 
+            // Read the optional transport used for all Netty based interfaces
+            try {
+                transport = NettyTransport.select(getOptional(configuration, "onion", "transport", "auto"));
+                logger.info("Using the " + transport + " transport for all network interfaces.");
+            } catch(IllegalArgumentException e) {
+                throw new InvalidFileFormatException("Could not parse onion/transport: Unknown transport!");
+            }
+
+            // Read the optional number of P2P sockets (0 => one per core if SO_REUSEPORT is available)
+            p2pSocketCount = getOptionalInt(configuration, "onion", "p2p_sockets", 0, 0);
+            if(p2pSocketCount == 0) {
+                p2pSocketCount = transport == NettyTransport.EPOLL ? Runtime.getRuntime().availableProcessors() : 1;
+            }
+
+            // Read the optional bound of the P2P ingress queue
+            ingressQueueSize = getOptionalInt(configuration, "onion", "ingress_queue_size", 4096, 1);
+
+            // Read the optional drop policy of the P2P ingress queue
+            try {
+                ingressDropPolicy = DropPolicy.fromString(getOptional(configuration, "onion", "ingress_drop_policy", "tail"));
+            } catch(IllegalArgumentException e) {
+                throw new InvalidFileFormatException("Could not parse onion/ingress_drop_policy: Unknown policy!");
+            }
+
+            // Read the optional MTU of bundled transport cells (0 => bundling disabled)
+            bundleMtu = getOptionalInt(configuration, "onion", "bundle_mtu", 0, 0);
+            if(bundleMtu > Short.MAX_VALUE) {
+                throw new InvalidFileFormatException("Could not parse onion/bundle_mtu: Value must not exceed " + Short.MAX_VALUE + "!");
+            }
+
+            // Read the optional list of supported cell sizes, the smallest one is supported by every peer
+            cellSizes = CellSize.DEFAULT_MASK;
+            for(String size : getOptional(configuration, "onion", "cell_sizes", "512,1200").split(",")) {
+                CellSize cellSize;
+                try {
+                    cellSize = CellSize.fromSize(Integer.parseInt(size.trim()));
+                } catch(NumberFormatException e) {
+                    cellSize = null;
+                }
+                if(cellSize == null) {
+                    throw new InvalidFileFormatException("Could not parse onion/cell_sizes: Unsupported cell size " + size.trim() + "!");
+                }
+                cellSizes |= cellSize.getBit();
+            }
+
+            // Read the optional bounds of the P2P receive buffers, grown between them if the kernel drops datagrams
+            udpReceiveBufferMin = getOptionalInt(configuration, "onion", "udp_rcvbuf_min", 65536, 1024);
+            udpReceiveBufferMax = getOptionalInt(configuration, "onion", "udp_rcvbuf_max", 4 * 1024 * 1024, udpReceiveBufferMin);
+
+            // Read the optional number of outstanding requests to the auth module
+            authWindow = getOptionalInt(configuration, "onion", "auth_window", 128, 1);
+
+            // Read the optional number of connections to the auth module
+            authConnections = getOptionalInt(configuration, "onion", "auth_connections", 1, 1);
+
+            // Read the optional engine for handshakes and crypto
+            try {
+                authEngine = AuthEngine.fromString(getOptional(configuration, "onion", "auth_engine", "external"));
+            } catch(IllegalArgumentException e) {
+                throw new InvalidFileFormatException("Could not parse onion/auth_engine: Unknown engine!");
+            }
+
+            // Read the optional deadlines of pending requests in milliseconds
+            authTimeout = Duration.ofMillis(getOptionalInt(configuration, "onion", "auth_timeout", 5000, 1));
+            acceptTimeout = Duration.ofMillis(getOptionalInt(configuration, "onion", "accept_timeout", 5000, 1));
+            rpsTimeout = Duration.ofMillis(getOptionalInt(configuration, "onion", "rps_timeout", 5000, 1));
+
+            // Read the optional number of session handshakes prepared in the background
+            handshakePoolSize = getOptionalInt(configuration, "onion", "handshake_pool_size", 16, 0);
+
+            // Read the optional thresholds of the circuit breaker in front of the auth module
+            authBreakerThreshold = getOptionalInt(configuration, "onion", "auth_breaker_threshold", 5, 0);
+            authBreakerLatency = Duration.ofMillis(getOptionalInt(configuration, "onion", "auth_breaker_latency", 1000, 1));
+
+            // Read the optional sizes of the thread pools shared by all network interfaces
+            ioThreads = getOptionalInt(configuration, "onion", "io_threads", 0, 0);
+            handlerThreads = getOptionalInt(configuration, "onion", "handler_threads", 4, 1);
+
             String hostkeyFile = "";
             try {
                 // Adapted from PEMParser of the given testing environment
@@ -109,6 +213,10 @@ public class ConfigurationProviderImpl implements ConfigurationProvider {
                 RSAPrivateKey privateKey = RSAPrivateKey.getInstance(new ASN1StreamParser(reader.readPemObject().getContent()).readObject());
                 RSAPublicKeySpec publicSpec = new RSAPublicKeySpec(privateKey.getModulus(), privateKey.getPublicExponent());
                 this.hostkey = factory.generatePublic(publicSpec).getEncoded();
+                this.hostPrivateKey = factory.generatePrivate(new RSAPrivateCrtKeySpec(privateKey.getModulus(),
+                        privateKey.getPublicExponent(), privateKey.getPrivateExponent(), privateKey.getPrime1(),
+                        privateKey.getPrime2(), privateKey.getExponent1(), privateKey.getExponent2(),
+                        privateKey.getCoefficient()));
                 this.id = Hashing.Sha256(this.hostkey);
             } catch(IOException e) {
                 throw new InvalidFileFormatException("Could not parse hostkey file " + hostkeyFile + ": " + e.getMessage());
@@ -224,6 +332,208 @@ public class ConfigurationProviderImpl implements ConfigurationProvider {
      return roundInterval;
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public NettyTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getP2PSocketCount() {
+        return p2pSocketCount;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getIngressQueueSize() {
+        return ingressQueueSize;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public DropPolicy getIngressDropPolicy() {
+        return ingressDropPolicy;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getBundleMtu() {
+        return bundleMtu;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public short getCellSizes() {
+        return cellSizes;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getUdpReceiveBufferMin() {
+        return udpReceiveBufferMin;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getUdpReceiveBufferMax() {
+        return udpReceiveBufferMax;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getAuthWindow() {
+        return authWindow;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getAuthConnections() {
+        return authConnections;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public AuthEngine getAuthEngine() {
+        return authEngine;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public PrivateKey getHostPrivateKey() {
+        return hostPrivateKey;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getAuthTimeout() {
+        return authTimeout;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getAcceptTimeout() {
+        return acceptTimeout;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getRpsTimeout() {
+        return rpsTimeout;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getHandshakePoolSize() {
+        return handshakePoolSize;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getAuthBreakerThreshold() {
+        return authBreakerThreshold;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getAuthBreakerLatency() {
+        return authBreakerLatency;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    /**
+     * Get an optional parameter from the configuration.
+     *
+     * @param configuration The parsed configuration file.
+     * @param section The section of the parameter.
+     * @param option The name of the parameter.
+     * @param defaultValue The value used if the parameter is not present.
+     * @return The configured value or the default value.
+     */
+    private String getOptional(Wini configuration, String section, String option, String defaultValue) {
+        String value = configuration.get(section, option);
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    /**
+     * Get an optional integer parameter from the configuration.
+     *
+     * @param configuration The parsed configuration file.
+     * @param section The section of the parameter.
+     * @param option The name of the parameter.
+     * @param defaultValue The value used if the parameter is not present.
+     * @param minValue The smallest value accepted for this parameter.
+     * @return The configured value or the default value.
+     * @throws InvalidFileFormatException If the value is no integer or smaller than minValue.
+     */
+    private int getOptionalInt(Wini configuration, String section, String option, int defaultValue, int minValue)
+            throws InvalidFileFormatException {
+        String value = getOptional(configuration, section, option, null);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value);
+            if(result < minValue) {
+                throw new InvalidFileFormatException("Could not parse " + section + "/" + option + ": Value must be at least " + minValue + "!");
+            }
+            return result;
+        } catch(NumberFormatException e) {
+            throw new InvalidFileFormatException("Could not parse " + section + "/" + option + ": " + value + " is no integer!");
+        }
+    }
+
     /**
      * Get the address contained in a string of format <ipv4:port> or <[ipv6]:port>.
      *
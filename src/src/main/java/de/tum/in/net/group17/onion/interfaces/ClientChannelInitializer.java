@@ -1,5 +1,6 @@
 package de.tum.in.net.group17.onion.interfaces;
 
+import de.tum.in.net.group17.onion.parser.FrameParser;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -8,11 +9,13 @@ import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
 
 /**
- * Initializer for a Netty client parsing messages by their length field
+ * Initializer for a Netty client parsing messages by their length field.
+ * If a parser is given, frames are decoded into parsed messages before they reach the last handler.
  * Created by Christoph Rudolf on 06.06.17.
  */
 public class ClientChannelInitializer extends ChannelInitializer<SocketChannel> {
     private SimpleChannelInboundHandler handler;
+    private FrameParser parser;
 
     /**
      * Create a new ClientChannelInitializer.
@@ -20,6 +23,17 @@ public class ClientChannelInitializer extends ChannelInitializer<SocketChannel>
      * @param handler The last handler in the channel pipeline.
      */
     public ClientChannelInitializer(SimpleChannelInboundHandler handler) {
+        this(null, handler);
+    }
+
+    /**
+     * Create a new ClientChannelInitializer with a decoder stage.
+     *
+     * @param parser The parser for the received frames or null to pass the raw frames to the handler.
+     * @param handler The last handler in the channel pipeline.
+     */
+    public ClientChannelInitializer(FrameParser parser, SimpleChannelInboundHandler handler) {
+        this.parser = parser;
         this.handler = handler;
     }
 
@@ -30,6 +44,9 @@ public class ClientChannelInitializer extends ChannelInitializer<SocketChannel>
     protected void initChannel(SocketChannel socketChannel) throws Exception {
         ChannelPipeline pipeline = socketChannel.pipeline();
         pipeline.addLast("framer", new LengthFieldBasedFrameDecoder(65535, 0, 2, -2, 0));
+        if(this.parser != null) {
+            pipeline.addLast("decoder", new MessageDecoder(this.parser));
+        }
         pipeline.addLast("handler", this.handler);
     }
 }
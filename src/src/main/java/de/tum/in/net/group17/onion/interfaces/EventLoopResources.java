@@ -0,0 +1,175 @@
+package de.tum.in.net.group17.onion.interfaces;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import de.tum.in.net.group17.onion.config.ConfigurationProvider;
+import de.tum.in.net.group17.onion.util.KeyedSerialExecutor;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The thread pools of all network interfaces of the Onion module. The P2P sockets, the Onion API server and the
+ * connections to the auth and RPS modules share one group of event loops instead of creating their own, so the number
+ * of threads is fixed by the configuration and does not grow with reconnects.
+ * Groups are created on first use and shut down together when the module stops.
+ */
+@Singleton
+public class EventLoopResources {
+    /**
+     * Time in seconds to wait for each group to terminate on shutdown.
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Number of event loops shared by all channels if the configuration leaves it open, the default of Netty.
+     */
+    private static final int DEFAULT_IO_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final NettyTransport transport;
+    private final int ioThreads;
+    private final int handlerThreads;
+    private EventLoopGroup acceptGroup;
+    private EventLoopGroup ioGroup;
+    private EventExecutorGroup handlerGroup;
+    private final List<KeyedSerialExecutor> executors;
+    private boolean shutdown;
+    private Logger logger;
+
+    /**
+     * Create the resources sized by the configuration of the Onion module.
+     *
+     * @param config The configuration to read the transport and the number of threads from.
+     */
+    @Inject
+    public EventLoopResources(ConfigurationProvider config) {
+        // every P2P socket needs an event loop of its own to spread the load with SO_REUSEPORT
+        this(config.getTransport(), Math.max(config.getIoThreads() == 0 ? DEFAULT_IO_THREADS : config.getIoThreads(),
+                config.getP2PSocketCount()), config.getHandlerThreads());
+    }
+
+    /**
+     * Create new resources.
+     *
+     * @param transport The Netty transport of all event loops.
+     * @param ioThreads The number of event loops shared by all channels (0 => twice the number of cores).
+     * @param handlerThreads The number of threads handling requests off the event loops.
+     */
+    public EventLoopResources(NettyTransport transport, int ioThreads, int handlerThreads) {
+        this.logger = LogManager.getLogger(EventLoopResources.class);
+        this.transport = transport;
+        this.ioThreads = ioThreads == 0 ? DEFAULT_IO_THREADS : ioThreads;
+        this.handlerThreads = handlerThreads;
+        this.executors = new ArrayList<>();
+    }
+
+    /**
+     * Get the transport the event loops run on.
+     *
+     * @return The transport.
+     */
+    public NettyTransport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Get the event loop accepting connections of all TCP servers.
+     *
+     * @return The group with a single event loop.
+     */
+    public synchronized EventLoopGroup getAcceptGroup() {
+        checkRunning();
+        if(this.acceptGroup == null)
+            this.acceptGroup = this.transport.createEventLoopGroup(1);
+        return this.acceptGroup;
+    }
+
+    /**
+     * Get the event loops serving all channels, i.e. P2P sockets, accepted API connections and client connections.
+     *
+     * @return The shared group.
+     */
+    public synchronized EventLoopGroup getIoGroup() {
+        checkRunning();
+        if(this.ioGroup == null)
+            this.ioGroup = this.transport.createEventLoopGroup(this.ioThreads);
+        return this.ioGroup;
+    }
+
+    /**
+     * Get the threads handlers run on that must not block the event loops, e.g. those of the Onion API.
+     *
+     * @return The shared group.
+     */
+    public synchronized EventExecutorGroup getHandlerGroup() {
+        checkRunning();
+        if(this.handlerGroup == null)
+            this.handlerGroup = new DefaultEventExecutorGroup(this.handlerThreads);
+        return this.handlerGroup;
+    }
+
+    /**
+     * Get the number of event loops serving all channels.
+     *
+     * @return The number of event loops of the I/O group.
+     */
+    int getIoThreads() {
+        return this.ioThreads;
+    }
+
+    /**
+     * Shut down an executor of a network interface together with the event loops, e.g. the workers handling received
+     * messages. The executor is shut down right away if the resources have been shut down already.
+     *
+     * @param executor The executor.
+     */
+    public void register(KeyedSerialExecutor executor) {
+        synchronized (this) {
+            if(!this.shutdown) {
+                this.executors.add(executor);
+                return;
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Shut down all groups gracefully and wait for them to terminate. The registered executors are shut down first,
+     * their queued tasks are still processed. The resources cannot be used afterwards.
+     */
+    public void shutdown() {
+        List<Future<?>> terminations = new ArrayList<>();
+        synchronized (this) {
+            if(this.shutdown)
+                return;
+            this.shutdown = true;
+            for(KeyedSerialExecutor executor : this.executors) {
+                executor.shutdown();
+            }
+            for(EventExecutorGroup group : new EventExecutorGroup[] { this.acceptGroup, this.ioGroup, this.handlerGroup }) {
+                if(group != null)
+                    terminations.add(group.shutdownGracefully());
+            }
+        }
+
+        for(Future<?> termination : terminations) {
+            if(!termination.awaitUninterruptibly(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                this.logger.warn("Event loops did not terminate within " + SHUTDOWN_TIMEOUT_SECONDS + " seconds.");
+        }
+    }
+
+    /**
+     * Make sure no group is created after shutdown.
+     */
+    private void checkRunning() {
+        if(this.shutdown)
+            throw new IllegalStateException("The event loops have been shut down.");
+    }
+}
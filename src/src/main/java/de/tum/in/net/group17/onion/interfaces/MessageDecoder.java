@@ -0,0 +1,44 @@
+package de.tum.in.net.group17.onion.interfaces;
+
+import de.tum.in.net.group17.onion.parser.FrameParser;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+
+/**
+ * Decoder stage of a client pipeline turning frames of the length field decoder directly into parsed messages.
+ * Invalid messages are logged and dropped without closing the connection, as the framing is still intact.
+ */
+@ChannelHandler.Sharable
+public class MessageDecoder extends MessageToMessageDecoder<ByteBuf> {
+    private final FrameParser parser;
+    private final Logger logger;
+
+    /**
+     * Create a new decoder.
+     *
+     * @param parser The parser for the messages received over the channel.
+     */
+    public MessageDecoder(FrameParser parser) {
+        this.parser = parser;
+        this.logger = LogManager.getLogger(MessageDecoder.class);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out) throws Exception {
+        try {
+            out.add(this.parser.parseMsg(frame));
+        } catch (ParsingException e) {
+            this.logger.error("Could not parse incoming message from " + ctx.channel().remoteAddress() + ": " + e.getMessage());
+        }
+    }
+}
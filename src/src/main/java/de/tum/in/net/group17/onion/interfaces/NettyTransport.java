@@ -0,0 +1,161 @@
+package de.tum.in.net.group17.onion.interfaces;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The Netty transports all server and client interfaces can run on.
+ * A transport bundles the event loop implementation with the matching channel classes, so a single configuration
+ * switch moves the P2P, API, auth and RPS connections onto the same transport.
+ */
+public enum NettyTransport {
+    /**
+     * Java NIO selector based transport. Available on every platform.
+     */
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup createEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> getDatagramChannelClass() {
+            return NioDatagramChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> getServerSocketChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+    },
+
+    /**
+     * Native Linux epoll transport.
+     */
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup createEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> getDatagramChannelClass() {
+            return EpollDatagramChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> getServerSocketChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+    };
+
+    private static final Logger logger = LogManager.getLogger(NettyTransport.class);
+
+    /**
+     * Check if the native libraries required by this transport can be used on this host.
+     *
+     * @return True if the transport can be used.
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Create a new event loop group for this transport.
+     *
+     * @param threads The number of event loops in the group (0 => Netty default).
+     *
+     * @return The new event loop group.
+     */
+    public abstract EventLoopGroup createEventLoopGroup(int threads);
+
+    /**
+     * Get the UDP channel class matching this transport.
+     *
+     * @return The datagram channel class.
+     */
+    public abstract Class<? extends DatagramChannel> getDatagramChannelClass();
+
+    /**
+     * Get the TCP client channel class matching this transport.
+     *
+     * @return The socket channel class.
+     */
+    public abstract Class<? extends SocketChannel> getSocketChannelClass();
+
+    /**
+     * Get the TCP server channel class matching this transport.
+     *
+     * @return The server socket channel class.
+     */
+    public abstract Class<? extends ServerSocketChannel> getServerSocketChannelClass();
+
+    /**
+     * Select the transport to use for the given configuration value.
+     * 'auto' picks the best available native transport. If a requested transport is not available on this host, we
+     * fall back to the next best one (epoll -> nio). io_uring is accepted for compatibility, the Netty version we build
+     * against does not ship it, hence it always falls back to epoll or nio.
+     *
+     *
+     * @param name The configured transport: auto, nio, epoll or io_uring (case insensitive).
+     *
+     * @return The transport to use.
+     *
+     * @throws IllegalArgumentException If the name does not specify a known transport.
+     */
+    public static NettyTransport select(String name) throws IllegalArgumentException {
+        boolean auto = name == null || name.trim().isEmpty() || "auto".equalsIgnoreCase(name.trim());
+        NettyTransport requested;
+        if(auto) {
+            requested = EPOLL;
+        } else if("io_uring".equalsIgnoreCase(name.trim())) {
+            logger.warn("Transport io_uring is not supported by this Netty version. Falling back to the next best transport.");
+            requested = EPOLL;
+            auto = true;
+        } else {
+            requested = NettyTransport.valueOf(name.trim().toUpperCase());
+        }
+
+        for(int i = requested.ordinal(); i >= 0; --i) {
+            NettyTransport candidate = NettyTransport.values()[i];
+            if(candidate.isAvailable()) {
+                if(candidate != requested && !auto) {
+                    logger.warn("Transport " + requested + " is not available on this host. Falling back to " + candidate + ".");
+                }
+                return candidate;
+            }
+        }
+        return NIO; // Unreachable, NIO is always available
+    }
+}
@@ -5,7 +5,6 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.EventExecutorGroup;
 
 import java.util.function.Supplier;
@@ -16,17 +15,16 @@ import java.util.function.Supplier;
  */
 public class ServerChannelInitializer extends ChannelInitializer<SocketChannel> {
     private Supplier<ChannelHandler> handlerSupplier;
-
-    private final int WORKERS = 4;
-    private EventExecutorGroup workerPool = new DefaultEventExecutorGroup(WORKERS);
-
+    private EventExecutorGroup workerPool;
 
     /**
      * Create a new ServerChannelInitializer with the given request handler.
      *
+     * @param workerPool The threads running the request handler, shared by all connections.
      * @param handlerSupplier Supplies the last handler in the channel pipeline.
      */
-    public ServerChannelInitializer(Supplier<ChannelHandler> handlerSupplier) {
+    public ServerChannelInitializer(EventExecutorGroup workerPool, Supplier<ChannelHandler> handlerSupplier) {
+        this.workerPool = workerPool;
         this.handlerSupplier = handlerSupplier;
     }
 
@@ -1,93 +1,177 @@
 package de.tum.in.net.group17.onion.interfaces;
 
 import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterface;
-import de.tum.in.net.group17.onion.model.results.RawRequestResult;
+import de.tum.in.net.group17.onion.model.results.ParsedRequestResult;
+import de.tum.in.net.group17.onion.parser.FrameParser;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.net.InetAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Base class for all interfaces used for requesting functionality from other modules, thus essentially acting as a client only.
  * (this is the case for RPS and Onion Auth).
  * Provides a wrapping and basic handling of netty.
+ * An interface may keep several connections to the server. Messages are assigned to a connection by a stripe, e.g. a
+ * session ID, so messages with the same stripe keep their order while different stripes are sent in parallel.
+ * Connections are established in the background and never by a sending thread. Messages sent while a connection is
+ * being established are queued, messages sent while the server is unreachable fail immediately. Queued messages that
+ * cannot be written report this to the failure callback given with the message. Failed connection attempts and closed
+ * connections are retried with exponential backoff and jitter.
  * Created by Christoph Rudolf on 05.06.17.
  */
 public class TcpClientInterface {
-    private Channel channel;
+    /**
+     * Time in milliseconds after which a connection attempt fails.
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * Delay in milliseconds before the first retry of a failed connection attempt, doubled with every further failure.
+     */
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+
+    /**
+     * Maximal delay in milliseconds between two connection attempts.
+     */
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+
+    /**
+     * Maximal number of messages per connection waiting to be written, e.g. while connecting.
+     */
+    private static final int MAX_PENDING = 4096;
+
+    /**
+     * Time in milliseconds a connection has to stay open before the backoff of its reconnects starts anew, so a server
+     * closing every connection right away is not contacted in a tight loop.
+     */
+    private static final long STABLE_MILLIS = MAX_BACKOFF_MILLIS;
+
+    private final Connection[] connections;
     protected InetAddress host;
     protected int port;
-    private RawRequestResult callback;
+    private FrameParser parser;
+    private ParsedRequestResult callback;
     private Logger logger;
+    private EventLoopResources resources;
 
     /**
-     * Create a new TcpClientInterface that send data to the specified host and port.
+     * Create a new TcpClientInterface that send data to the specified host and port using the NIO transport.
      *
      * @param host The server's address.
      * @param port The server's port.
      */
     public TcpClientInterface(InetAddress host, int port) {
+        this(host, port, NettyTransport.NIO);
+    }
+
+    /**
+     * Create a new TcpClientInterface that send data to the specified host and port.
+     *
+     * @param host The server's address.
+     * @param port The server's port.
+     * @param transport The Netty transport used for the connection.
+     */
+    public TcpClientInterface(InetAddress host, int port, NettyTransport transport) {
+        this(host, port, transport, 1);
+    }
+
+    /**
+     * Create a new TcpClientInterface that send data to the specified host and port over several connections.
+     *
+     * @param host The server's address.
+     * @param port The server's port.
+     * @param transport The Netty transport used for the connections.
+     * @param connectionCount The number of connections to the server, each one served by its own event loop.
+     */
+    public TcpClientInterface(InetAddress host, int port, NettyTransport transport, int connectionCount) {
+        this(host, port, new EventLoopResources(transport, Math.max(1, connectionCount), 1), connectionCount);
+    }
+
+    /**
+     * Create a new TcpClientInterface that send data to the specified host and port over several connections on
+     * shared event loops. Reconnects reuse these event loops, hence do not create new threads.
+     *
+     * @param host The server's address.
+     * @param port The server's port.
+     * @param resources The event loops serving the connections.
+     * @param connectionCount The number of connections to the server.
+     */
+    public TcpClientInterface(InetAddress host, int port, EventLoopResources resources, int connectionCount) {
         this.logger = LogManager.getLogger(AuthenticationInterface.class);
         this.host = host;
         this.port = port;
+        this.resources = resources;
+        this.connections = new Connection[Math.max(1, connectionCount)];
+        for(int i = 0; i < this.connections.length; i++) {
+            this.connections[i] = new Connection(i);
+        }
     }
 
     /**
      * Set the callback to use if a response is received.
+     * Responses are parsed by the decoder stage of the pipeline and handed to the callback on the I/O thread of their
+     * connection, hence the callback must not block.
      *
+     * @param parser The parser for the responses.
      * @param callback The callback.
      */
-    protected void setCallback(RawRequestResult callback) {
+    protected void setCallback(FrameParser parser, ParsedRequestResult callback) {
+        this.parser = parser;
         this.callback = callback;
     }
 
+    /**
+     * Get the number of connections used by this client interface.
+     *
+     * @return The number of connections.
+     */
+    protected int getConnectionCount() {
+        return this.connections.length;
+    }
+
     /**
      * Get the channel used by this client interface.
      *
-     * @return The used channel.
+     * @return The used channel or null if it is not connected.
      */
     protected Channel getChannel() {
-        if(this.channel != null && this.channel.isOpen() && this.channel.isWritable()) {
-            return this.channel;
-        }
+        return getChannel(0);
+    }
 
-        this.logger.info("No connection to Onion authentication interface present, connecting anew.");
-
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        try {
-            Bootstrap b = new Bootstrap();
-            b.group(workerGroup);
-            b.channel(NioSocketChannel.class);
-            b.option(ChannelOption.SO_KEEPALIVE, true);
-            b.handler(new ClientChannelInitializer(new SimpleChannelInboundHandler() {
-                @Override
-                protected void channelRead0(ChannelHandlerContext channelHandlerContext, Object o) throws Exception {
-                    ByteBuf buf = (ByteBuf) o;
-                    byte[] bytes = new byte[buf.readableBytes()];
-                    buf.readBytes(bytes);
-                    if (callback == null) {
-                        logger.warn("No callback specified, dropping received data into oblivion.");
-                    } else {
-                        callback.respond(bytes);  //move parsing to pipeline
-                    }
-                }
-            }));
+    /**
+     * Get the channel of the connection used for the given stripe. Does not wait for a connection to be established.
+     *
+     * @param stripe The stripe of a message, e.g. a session ID.
+     * @return The used channel or null if it is not connected.
+     */
+    protected Channel getChannel(int stripe) {
+        return getConnection(stripe).channel;
+    }
 
-            // Start client, wait for the connection and return the channel
-            this.channel = b.connect(this.host, this.port).sync().channel();
-            return this.channel;
-        } catch (Exception e) { // InterruptedException and PRIVATE AnnotatedConnectException...
-            logger.error("Unable to connect to Authentication Module: " + e.getMessage());
-        }/*finally {
-            workerGroup.shutdownGracefully();
-        }*/
-        return null;
+    /**
+     * Start establishing all connections to the server in the background, e.g. when the interface is created, so the
+     * first requests do not have to wait for them.
+     */
+    protected void connect() {
+        for(Connection connection : this.connections) {
+            connection.start();
+        }
     }
 
     /**
@@ -96,14 +180,317 @@ public class TcpClientInterface {
      * @param data The message to send.
      */
     protected void sendMessage(byte[] data) {
-        // Get channel with the correct response handler
-        Channel channel = this.getChannel();
-
-        // Send data if possible
-        if(channel != null) {
-            channel.writeAndFlush(Unpooled.buffer().writeBytes(data));
-        } else {
-            throw new ChannelException("Unable to create channel.");
+        sendMessage(data, 0);
+    }
+
+    /**
+     * Send a message to the specified server over the connection used for the given stripe.
+     * Messages sent in a burst, e.g. by several threads at once, are flushed together with a single write to the
+     * socket once the event loop of the connection gets to them.
+     *
+     * @param data The message to send.
+     * @param stripe The stripe of the message, e.g. a session ID. Messages of the same stripe are sent in order.
+     */
+    protected void sendMessage(byte[] data, int stripe) {
+        sendMessage(Unpooled.wrappedBuffer(data), stripe);
+    }
+
+    /**
+     * Send a message to the specified server over the connection used for the given stripe.
+     * The message is encoded into a pooled buffer, messages carrying a payload reference it instead of copying it.
+     *
+     * @param message The message to send.
+     * @param stripe The stripe of the message, e.g. a session ID. Messages of the same stripe are sent in order.
+     */
+    protected void sendMessage(ParsedMessage message, int stripe) {
+        sendMessage(message, stripe, null);
+    }
+
+    /**
+     * Send a message to the specified server over the connection used for the given stripe.
+     * The message is encoded into a pooled buffer, messages carrying a payload reference it instead of copying it.
+     *
+     * @param message The message to send.
+     * @param stripe The stripe of the message, e.g. a session ID. Messages of the same stripe are sent in order.
+     * @param failure Called if the message has been accepted but cannot be written, e.g. because the connection could
+     *                not be established. Called on an I/O thread, hence must not block, or on the sending thread
+     *                once the event loops have been shut down. May be null.
+     */
+    protected void sendMessage(ParsedMessage message, int stripe, Consumer<Throwable> failure) {
+        sendMessage(message.encode(ByteBufAllocator.DEFAULT), stripe, failure);
+    }
+
+    /**
+     * Send a message to the specified server over the connection used for the given stripe.
+     *
+     * @param data The message to send. Ownership passes to this method, the buffer is released once written.
+     * @param stripe The stripe of the message, e.g. a session ID. Messages of the same stripe are sent in order.
+     */
+    protected void sendMessage(ByteBuf data, int stripe) {
+        sendMessage(data, stripe, null);
+    }
+
+    /**
+     * Send a message to the specified server over the connection used for the given stripe.
+     *
+     * @param data The message to send. Ownership passes to this method, the buffer is released once written.
+     * @param stripe The stripe of the message, e.g. a session ID. Messages of the same stripe are sent in order.
+     * @param failure Called if the message has been accepted but cannot be written, e.g. because the connection could
+     *                not be established. Called on an I/O thread, hence must not block, or on the sending thread
+     *                once the event loops have been shut down. May be null.
+     *
+     * @throws ChannelException If the message is rejected right away, the failure callback is not called then.
+     */
+    protected void sendMessage(ByteBuf data, int stripe, Consumer<Throwable> failure) {
+        getConnection(stripe).send(new PendingMessage(data, failure));
+    }
+
+    /**
+     * Get the connection used for the given stripe.
+     *
+     * @param stripe The stripe of a message.
+     * @return The connection.
+     */
+    private Connection getConnection(int stripe) {
+        return this.connections[Math.floorMod(stripe, this.connections.length)];
+    }
+
+    /**
+     * The states of a connection.
+     */
+    private enum State {
+        /**
+         * Not connected yet.
+         */
+        IDLE,
+
+        /**
+         * A connection attempt is in progress, messages are queued.
+         */
+        CONNECTING,
+
+        /**
+         * Connected, messages are written.
+         */
+        CONNECTED,
+
+        /**
+         * The last attempt failed and the next one is scheduled, messages are rejected.
+         */
+        BACKOFF
+    }
+
+    /**
+     * A message waiting to be written and the callback notified if that fails.
+     */
+    private static class PendingMessage {
+        private final ByteBuf data;
+        private final Consumer<Throwable> failure;
+
+        private PendingMessage(ByteBuf data, Consumer<Throwable> failure) {
+            this.data = data;
+            this.failure = failure;
+        }
+
+        /**
+         * Drop the message and notify its sender.
+         *
+         * @param cause The reason the message could not be written.
+         */
+        private void fail(Throwable cause) {
+            this.data.release();
+            if(this.failure != null)
+                this.failure.accept(cause);
+        }
+    }
+
+    /**
+     * A single connection to the server and the messages waiting to be written to it.
+     */
+    private class Connection {
+        private final int index;
+        private volatile Channel channel;
+        private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+        private final Queue<PendingMessage> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean flushPending = new AtomicBoolean();
+        private volatile int failedAttempts;
+        private volatile long connectedAt;
+
+        private Connection(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Start connecting unless the connection has been started before.
+         */
+        private void start() {
+            if(this.state.compareAndSet(State.IDLE, State.CONNECTING))
+                attempt();
+        }
+
+        /**
+         * Try to connect to the server without waiting for the result. A failed attempt schedules the next one.
+         */
+        private void attempt() {
+            this.state.set(State.CONNECTING);
+            try {
+                Bootstrap b = new Bootstrap();
+                b.group(resources.getIoGroup());
+                b.channel(resources.getTransport().getSocketChannelClass());
+                b.option(ChannelOption.SO_KEEPALIVE, true);
+                b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS);
+                b.handler(new ClientChannelInitializer(parser, new SimpleChannelInboundHandler<ParsedMessage>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext channelHandlerContext, ParsedMessage msg) throws Exception {
+                        if (callback == null) {
+                            logger.warn("No callback specified, dropping received data into oblivion.");
+                        } else {
+                            callback.respond(msg);
+                        }
+                    }
+                }));
+                b.connect(host, port).addListener((ChannelFutureListener) future -> {
+                    if(future.isSuccess()) {
+                        connected(future.channel());
+                    } else {
+                        logger.error("Unable to connect to " + host + ":" + port + ": " + future.cause().getMessage());
+                        backoff(future.cause());
+                    }
+                });
+            } catch (IllegalStateException e) { // the event loops have been shut down
+                logger.debug("Not connecting to " + host + ":" + port + ": " + e.getMessage());
+                drain(new ChannelException("Not connecting to " + host + ":" + port + ": " + e.getMessage()));
+            }
+        }
+
+        /**
+         * Use a newly established channel and write the messages queued meanwhile. Called on its event loop.
+         *
+         * @param channel The channel.
+         */
+        private void connected(Channel channel) {
+            logger.info("Established connection " + this.index + " to " + host + ":" + port + ".");
+            this.connectedAt = System.nanoTime();
+            this.channel = channel;
+            this.state.set(State.CONNECTED);
+            channel.closeFuture().addListener(future -> {
+                logger.warn("Connection " + this.index + " to " + host + ":" + port + " has been closed.");
+                // only a connection that stayed open for a while resets the backoff
+                if(System.nanoTime() - this.connectedAt >= TimeUnit.MILLISECONDS.toNanos(STABLE_MILLIS))
+                    this.failedAttempts = 0;
+                backoff(new ChannelException("Connection " + this.index + " to " + host + ":" + port + " has been closed."));
+            });
+            flush();
+        }
+
+        /**
+         * Fail the queued messages and schedule the next connection attempt with exponential backoff and jitter.
+         *
+         * @param cause The reason the connection is not usable.
+         */
+        private void backoff(Throwable cause) {
+            long delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(this.failedAttempts++, 16));
+            // jitter keeps the connections of a restarted module from reconnecting all at the same time
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            logger.info("Reconnecting to " + host + ":" + port + " in " + delay + " ms.");
+
+            this.state.set(State.BACKOFF);
+            drain(cause);
+            try {
+                resources.getIoGroup().schedule(this::attempt, delay, TimeUnit.MILLISECONDS);
+            } catch (IllegalStateException e) { // the event loops have been shut down
+                logger.debug("Not reconnecting to " + host + ":" + port + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Fail all queued messages.
+         *
+         * @param cause The reason the messages cannot be written.
+         */
+        private void drain(Throwable cause) {
+            PendingMessage message;
+            while((message = this.pending.poll()) != null) {
+                this.pendingCount.decrementAndGet();
+                message.fail(cause);
+            }
+        }
+
+        /**
+         * Fail all queued messages on an I/O thread, so their callbacks do not run on the thread of a sender.
+         * Drains the queue right away if the event loops have been shut down.
+         *
+         * @param cause The reason the messages cannot be written.
+         */
+        private void drainOnIoGroup(Throwable cause) {
+            try {
+                resources.getIoGroup().execute(() -> drain(cause));
+            } catch (IllegalStateException | RejectedExecutionException e) { // the event loops have been shut down
+                drain(cause);
+            }
+        }
+
+        /**
+         * Queue a message and schedule writing all queued messages if no write is pending yet.
+         * Messages sent while connecting are written once connected.
+         *
+         * @param message The message to send.
+         *
+         * @throws ChannelException If the server is unreachable or too many messages are waiting for the connection.
+         */
+        private void send(PendingMessage message) {
+            State current = this.state.get();
+            if(current == State.BACKOFF) {
+                message.data.release();
+                throw new ChannelException("No connection " + this.index + " to " + host + ":" + port + ", reconnecting.");
+            }
+            if(this.pendingCount.incrementAndGet() > MAX_PENDING) {
+                this.pendingCount.decrementAndGet();
+                message.data.release();
+                throw new ChannelException("Too many messages waiting for connection " + this.index + " to " + host + ":" + port + ".");
+            }
+            this.pending.add(message);
+
+            if(current == State.IDLE) {
+                start();
+                return;
+            }
+            if(this.state.get() == State.BACKOFF) {
+                // the connection failed while we queued, the attempt may have drained the queue before already
+                drainOnIoGroup(new ChannelException("No connection " + this.index + " to " + host + ":" + port + ", reconnecting."));
+                return;
+            }
+            Channel channel = this.channel;
+            if(channel != null && this.flushPending.compareAndSet(false, true)) {
+                channel.eventLoop().execute(() -> {
+                    this.flushPending.set(false);
+                    flush();
+                });
+            }
+        }
+
+        /**
+         * Write all queued messages to the current channel if it is connected, otherwise keep them queued.
+         */
+        private void flush() {
+            Channel current = this.channel;
+            if(this.state.get() != State.CONNECTED || current == null || !current.isActive())
+                return;
+
+            PendingMessage message;
+            while((message = this.pending.poll()) != null) {
+                this.pendingCount.decrementAndGet();
+                ChannelFuture written = current.write(message.data);
+                Consumer<Throwable> failure = message.failure;
+                if(failure != null) {
+                    written.addListener(future -> {
+                        if(!future.isSuccess())
+                            failure.accept(future.cause());
+                    });
+                }
+            }
+            current.flush();
         }
     }
 }
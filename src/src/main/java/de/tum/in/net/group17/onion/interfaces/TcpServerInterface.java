@@ -4,8 +4,6 @@ import de.tum.in.net.group17.onion.interfaces.onionapi.OnionApiInterface;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -20,12 +18,32 @@ import java.net.InetAddress;
 public abstract class TcpServerInterface {
     private Logger logger;
     private Channel channel;
+    private EventLoopResources resources;
 
     /**
-     * Create a new TcpServerInterface.
+     * Create a new TcpServerInterface running on the NIO transport.
      */
     public TcpServerInterface() {
+        this(NettyTransport.NIO);
+    }
+
+    /**
+     * Create a new TcpServerInterface.
+     *
+     * @param transport The Netty transport to run the server on.
+     */
+    public TcpServerInterface(NettyTransport transport) {
+        this(new EventLoopResources(transport, 0, 4));
+    }
+
+    /**
+     * Create a new TcpServerInterface on shared event loops.
+     *
+     * @param resources The event loops accepting and serving connections and the threads running the handlers.
+     */
+    public TcpServerInterface(EventLoopResources resources) {
         this.logger = LogManager.getLogger(OnionApiInterface.class);
+        this.resources = resources;
     }
 
     /**
@@ -35,22 +53,17 @@ public abstract class TcpServerInterface {
      * @param port The port to listen on.
      */
     public void listen(InetAddress addr, int port) {
-        EventLoopGroup entryGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
         try {
             ServerBootstrap b = new ServerBootstrap()
-                    .group(entryGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .childHandler(new ServerChannelInitializer(() -> getHandler()));
+                    .group(resources.getAcceptGroup(), resources.getIoGroup())
+                    .channel(resources.getTransport().getServerSocketChannelClass())
+                    .childHandler(new ServerChannelInitializer(resources.getHandlerGroup(), () -> getHandler()));
 
-            // Bind and start to accept incoming connections.
+            // Bind and start to accept incoming connections, the groups are shut down with the shared resources
             this.channel = b.bind(addr, port).sync().channel();
         } catch (InterruptedException e) {
             e.printStackTrace();
-        } /*finally {
-            workerGroup.shutdownGracefully();
-            entryGroup.shutdownGracefully();
-        }*/
+        }
     }
 
     /**
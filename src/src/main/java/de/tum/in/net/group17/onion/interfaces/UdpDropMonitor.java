@@ -0,0 +1,145 @@
+package de.tum.in.net.group17.onion.interfaces;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Watches the kernel drop counters of the UDP sockets bound to a port and grows their receive buffers if datagrams
+ * are dropped in several consecutive intervals.
+ * The counters are read from /proc/net/udp and /proc/net/udp6, hence the monitor is only available on Linux. All
+ * sockets bound to the port (e.g. via SO_REUSEPORT) are summed up.
+ */
+public class UdpDropMonitor implements Runnable {
+    /**
+     * Interval in which the drop counters are read.
+     */
+    public static final long INTERVAL_MILLIS = 5000;
+
+    /**
+     * Number of consecutive intervals with drops before the receive buffers are grown.
+     */
+    private static final int SUSTAINED_INTERVALS = 2;
+
+    private static final Path[] PROC_FILES = { Paths.get("/proc/net/udp"), Paths.get("/proc/net/udp6") };
+
+    private final int port;
+    private final Channel[] channels;
+    private final int maxReceiveBuffer;
+    private final Logger logger;
+
+    private volatile int receiveBuffer;
+    private volatile long drops = -1;
+    private int intervalsWithDrops;
+
+    /**
+     * Create a new monitor.
+     *
+     * @param port The local port of the monitored sockets.
+     * @param channels The channels of the monitored sockets.
+     * @param receiveBuffer The current receive buffer size of the sockets.
+     * @param maxReceiveBuffer The size the receive buffers may grow to.
+     */
+    public UdpDropMonitor(int port, Channel[] channels, int receiveBuffer, int maxReceiveBuffer) {
+        this.port = port;
+        this.channels = channels;
+        this.receiveBuffer = receiveBuffer;
+        this.maxReceiveBuffer = maxReceiveBuffer;
+        this.logger = LogManager.getLogger(UdpDropMonitor.class);
+    }
+
+    /**
+     * Check if the kernel exposes the drop counters on this host.
+     *
+     * @return True if the drop counters can be read.
+     */
+    public static boolean isAvailable() {
+        return Files.isReadable(PROC_FILES[0]);
+    }
+
+    /**
+     * Get the number of datagrams the kernel dropped on the monitored sockets, e.g. because their receive buffers
+     * were full.
+     *
+     * @return The number of dropped datagrams or -1 if they have not been read yet.
+     */
+    public long getDrops() {
+        return this.drops;
+    }
+
+    /**
+     * Get the current receive buffer size of the monitored sockets.
+     *
+     * @return The requested receive buffer size in bytes.
+     */
+    public int getReceiveBuffer() {
+        return this.receiveBuffer;
+    }
+
+    /**
+     * Read the drop counters and grow the receive buffers if datagrams have been dropped for a while.
+     */
+    @Override
+    public void run() {
+        long current;
+        try {
+            current = readDrops(this.port);
+        } catch (IOException | RuntimeException e) {
+            this.logger.warn("Unable to read UDP drop counters: " + e.getMessage());
+            return;
+        }
+
+        long previous = this.drops;
+        this.drops = current;
+        if(previous < 0 || current <= previous) {
+            this.intervalsWithDrops = 0;
+            return;
+        }
+
+        this.logger.warn("Kernel dropped " + (current - previous) + " datagram(s) on UDP port " + this.port
+                + " in the last " + INTERVAL_MILLIS + " ms (" + current + " in total).");
+        if(++this.intervalsWithDrops >= SUSTAINED_INTERVALS && this.receiveBuffer < this.maxReceiveBuffer) {
+            this.intervalsWithDrops = 0;
+            this.receiveBuffer = (int)Math.min((long)this.receiveBuffer * 2, this.maxReceiveBuffer);
+            for(Channel channel : this.channels) {
+                channel.config().setOption(ChannelOption.SO_RCVBUF, this.receiveBuffer);
+            }
+            this.logger.info("Increased the receive buffer of UDP port " + this.port + " to " + this.receiveBuffer + " bytes.");
+        }
+    }
+
+    /**
+     * Sum up the drop counters of all UDP sockets bound to the given local port.
+     *
+     * @param port The local port.
+     * @return The number of dropped datagrams.
+     * @throws IOException If the counters cannot be read.
+     */
+    private static long readDrops(int port) throws IOException {
+        long drops = 0;
+        for(Path file : PROC_FILES) {
+            if(!Files.isReadable(file))
+                continue;
+            List<String> lines = Files.readAllLines(file);
+            // Skip the header line; columns: sl local_address rem_address st ... drops
+            for(int i = 1; i < lines.size(); i++) {
+                String[] columns = lines.get(i).trim().split("\\s+");
+                if(columns.length < 13)
+                    continue;
+                String local = columns[1];
+                int localPort = Integer.parseInt(local.substring(local.indexOf(':') + 1), 16);
+                if(localPort == port) {
+                    drops += Long.parseLong(columns[columns.length - 1]);
+                }
+            }
+        }
+        return drops;
+    }
+}
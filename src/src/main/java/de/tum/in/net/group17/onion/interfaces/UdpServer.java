@@ -1,100 +1,181 @@
 package de.tum.in.net.group17.onion.interfaces;
 
 import io.netty.bootstrap.Bootstrap;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
-import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Base class for all interfaces needing a server running via UDP. This is currently only the case for the
  * Onion to Onion communication.
  * Provides a wrapping and basic handling of netty.
+ * If the transport supports SO_REUSEPORT, multiple sockets are bound to the same address, each served by its own
+ * event loop. The kernel spreads incoming flows over these sockets.
+ * The event loops are taken from the resources shared by all network interfaces.
  * Created by Christoph Rudolf on 21.06.17.
  */
 public class UdpServer {
-    private Channel channel;
+    private Channel[] channels;
+    private EventLoopResources resources;
+    private int socketCount;
+    private int receiveBuffer;
+    private int maxReceiveBuffer;
+    private UdpDropMonitor dropMonitor;
+    private Logger logger;
+
+    /**
+     * Create a new UdpServer running on the NIO transport.
+     */
+    public UdpServer() {
+        this(NettyTransport.NIO);
+    }
+
+    /**
+     * Create a new UdpServer using a single socket.
+     *
+     * @param transport The Netty transport to run the server on.
+     */
+    public UdpServer(NettyTransport transport) {
+        this(transport, 1);
+    }
+
+    /**
+     * Create a new UdpServer.
+     *
+     * @param transport The Netty transport to run the server on.
+     * @param socketCount The number of sockets bound to the listen address. Values above one require SO_REUSEPORT
+     *                    support of the transport (epoll), otherwise a single socket is used.
+     */
+    public UdpServer(NettyTransport transport, int socketCount) {
+        this(transport, socketCount, 65536, 65536);
+    }
+
+    /**
+     * Create a new UdpServer whose receive buffers grow if the kernel drops datagrams.
+     *
+     * @param transport The Netty transport to run the server on.
+     * @param socketCount The number of sockets bound to the listen address. Values above one require SO_REUSEPORT
+     *                    support of the transport (epoll), otherwise a single socket is used.
+     * @param receiveBuffer The initial SO_RCVBUF of the sockets.
+     * @param maxReceiveBuffer The size SO_RCVBUF may grow to if datagrams are dropped for a while.
+     */
+    public UdpServer(NettyTransport transport, int socketCount, int receiveBuffer, int maxReceiveBuffer) {
+        this(new EventLoopResources(transport, Math.max(1, socketCount), 1), socketCount, receiveBuffer, maxReceiveBuffer);
+    }
+
+    /**
+     * Create a new UdpServer on shared event loops whose receive buffers grow if the kernel drops datagrams.
+     *
+     * @param resources The event loops serving the sockets. There should be at least one event loop per socket.
+     * @param socketCount The number of sockets bound to the listen address. Values above one require SO_REUSEPORT
+     *                    support of the transport (epoll), otherwise a single socket is used.
+     * @param receiveBuffer The initial SO_RCVBUF of the sockets.
+     * @param maxReceiveBuffer The size SO_RCVBUF may grow to if datagrams are dropped for a while.
+     */
+    public UdpServer(EventLoopResources resources, int socketCount, int receiveBuffer, int maxReceiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+        this.maxReceiveBuffer = Math.max(receiveBuffer, maxReceiveBuffer);
+        this.logger = LogManager.getLogger(UdpServer.class);
+        this.resources = resources;
+        NettyTransport transport = resources.getTransport();
+        if(socketCount > 1 && transport != NettyTransport.EPOLL) {
+            this.logger.warn("Transport " + transport + " does not support SO_REUSEPORT, using a single P2P socket.");
+            socketCount = 1;
+        }
+        this.socketCount = Math.max(1, socketCount);
+    }
 
     /**
      * Start listening to incoming requests on the specified port for this server interface.
      *
      * @param addr The address we bind to.
      * @param port The port to be listening on.
-     * @param handler The message handler for the unparsed.
+     * @param handler The message handler for the unparsed. Called concurrently if more than one socket is used.
      */
     public void listen(InetAddress addr, final int port, final UdpMessageHandler handler) {
-        final NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup();
+        // The sockets are registered one after another, hence each one gets the next event loop of the group
+        final EventLoopGroup eventLoopGroup = resources.getIoGroup();
 
         System.out.println("UDP Server starting to listen.");
 
-        // Setup ChannelInboundHandler
-        SimpleChannelInboundHandler<DatagramPacket> inboundHandler = new SimpleChannelInboundHandler<DatagramPacket>() {
-            @Override
-            public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
-                super.channelRegistered(ctx);
-            }
-
-            @Override
-            public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
-                super.channelUnregistered(ctx);
-            }
-
-            @Override
-            public void channelActive(ChannelHandlerContext ctx) throws Exception {
-                super.channelActive(ctx);
-            }
-
-            @Override
-            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-                super.channelInactive(ctx);
-            }
-
-            @Override
-            public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-                super.channelReadComplete(ctx);
-            }
-
-            @Override
-            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                super.channelRead(ctx, msg);
-            }
-
-            @Override
-            public void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
-                handler.readDatagram(ctx, packet);
-            }
-        };
-
         try {
             Bootstrap b = new Bootstrap()
                     .group(eventLoopGroup)
-                    .channel(NioDatagramChannel.class)
+                    .channel(resources.getTransport().getDatagramChannelClass())
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
                     .option(ChannelOption.SO_BROADCAST, true)
-                    .option(ChannelOption.SO_RCVBUF, 65536)
+                    .option(ChannelOption.SO_RCVBUF, receiveBuffer)
                     .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(65536))
-                    .handler(new ChannelInitializer<NioDatagramChannel>() {
+                    .handler(new ChannelInitializer<DatagramChannel>() {
                         @Override
-                        public void initChannel(NioDatagramChannel ch) throws Exception {
+                        public void initChannel(DatagramChannel ch) throws Exception {
                             ChannelPipeline p = ch.pipeline();
-                            p.addLast("handler", inboundHandler);
+                            // Inbound handlers are not sharable, every socket gets its own instance
+                            p.addLast("handler", new SimpleChannelInboundHandler<DatagramPacket>() {
+                                @Override
+                                public void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+                                    handler.readDatagram(ctx, packet);
+                                }
+                            });
                         }
                     });
-            this.channel = b.bind(addr, port).sync().channel();
+            if(socketCount > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+
+            Channel[] bound = new Channel[socketCount];
+            for(int i = 0; i < socketCount; ++i) {
+                bound[i] = b.bind(addr, port).sync().channel();
+            }
+            this.channels = bound;
+            this.logger.info("Bound " + socketCount + " UDP socket(s) to port " + port + ".");
+
+            if(UdpDropMonitor.isAvailable()) {
+                this.dropMonitor = new UdpDropMonitor(port, bound, receiveBuffer, maxReceiveBuffer);
+                // reading the counters does not belong on an event loop, use the shared handler threads
+                ScheduledFuture<?> monitoring = resources.getHandlerGroup().scheduleAtFixedRate(this.dropMonitor,
+                        UdpDropMonitor.INTERVAL_MILLIS, UdpDropMonitor.INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                bound[0].closeFuture().addListener(future -> monitoring.cancel(false));
+            } else {
+                this.logger.info("UDP drop counters are not available on this host, receive buffers stay at " + receiveBuffer + " bytes.");
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Get the number of datagrams the kernel dropped on the sockets of this server.
+     *
+     * @return The number of dropped datagrams or -1 if the drop counters are not available.
+     */
+    public long getReceiveDrops() {
+        UdpDropMonitor monitor = this.dropMonitor;
+        return monitor == null ? -1 : monitor.getDrops();
+    }
+
+    /**
+     * Get the current receive buffer size of the sockets of this server.
+     *
+     * @return The requested SO_RCVBUF in bytes.
+     */
+    public int getReceiveBufferSize() {
+        UdpDropMonitor monitor = this.dropMonitor;
+        return monitor == null ? this.receiveBuffer : monitor.getReceiveBuffer();
+    }
+
     /**
      * Send out a single UDP datagram message to the specified receiver.
      *
@@ -104,6 +185,124 @@ public class UdpServer {
      * @throws IOException Throws IOException if it isn't possible to send the message due to socket issues.
      */
     public void send(InetAddress targetIp, int targetPort, byte[] data) throws IOException {
-        channel.writeAndFlush(new DatagramPacket(Unpooled.copiedBuffer(data), new InetSocketAddress(targetIp, targetPort)));
+        InetSocketAddress target = new InetSocketAddress(targetIp, targetPort & 0xFFFF);
+        Channel channel = getChannel(target);
+        channel.writeAndFlush(new DatagramPacket(channel.alloc().directBuffer(data.length).writeBytes(data), target));
+    }
+
+    /**
+     * Send out a single UDP datagram containing the given message to the specified receiver.
+     * The message is serialized directly into a pooled buffer.
+     *
+     * @param target The receiver of the datagram.
+     * @param msg The message to send.
+     * @throws IOException Throws IOException if it isn't possible to send the message due to socket issues.
+     */
+    public void send(InetSocketAddress target, ParsedMessage msg) throws IOException {
+        Channel channel = getChannel(target);
+        channel.writeAndFlush(new DatagramPacket(serialize(channel, msg), target));
+    }
+
+    /**
+     * Queue a UDP datagram containing the given message for the specified receiver without sending it yet.
+     * Queued datagrams leave with the next call to {@link #flush(InetSocketAddress)} for the same receiver. Writes
+     * issued outside the event loop do not wake it up, so a burst of writes followed by a single flush costs one
+     * wakeup and lets the native transport hand all datagrams to the kernel at once (sendmmsg on epoll).
+     *
+     * @param target The receiver of the datagram.
+     * @param msg The message to send.
+     * @throws IOException Throws IOException if it isn't possible to send the message due to socket issues.
+     */
+    public void write(InetSocketAddress target, ParsedMessage msg) throws IOException {
+        Channel channel = getChannel(target);
+        channel.write(new DatagramPacket(serialize(channel, msg), target));
+    }
+
+    /**
+     * Send all datagrams queued by {@link #write(InetSocketAddress, ParsedMessage)} for the given receiver.
+     *
+     * @param target The receiver of the queued datagrams.
+     * @throws IOException Throws IOException if it isn't possible to send the messages due to socket issues.
+     */
+    public void flush(InetSocketAddress target) throws IOException {
+        getChannel(target).flush();
+    }
+
+    /**
+     * Send out a single UDP datagram whose content is already located in a buffer.
+     * The buffer is released by this method, also in case of an error.
+     *
+     * @param target The receiver of the datagram.
+     * @param data The buffer containing the datagram content.
+     * @throws IOException Throws IOException if it isn't possible to send the message due to socket issues.
+     */
+    public void send(InetSocketAddress target, ByteBuf data) throws IOException {
+        Channel channel;
+        try {
+            channel = getChannel(target);
+        } catch (IOException e) {
+            data.release();
+            throw e;
+        }
+        channel.writeAndFlush(new DatagramPacket(data, target));
+    }
+
+    /**
+     * Run a task on the event loop serving the socket used to send to the given receiver.
+     * The task runs after all writes to the receiver issued before, which allows to collect datagrams until the
+     * socket is ready to send them.
+     *
+     * @param target The receiver the task sends datagrams to.
+     * @param task The task to run.
+     * @throws IOException If the server is not listening.
+     */
+    public void execute(InetSocketAddress target, Runnable task) throws IOException {
+        getChannel(target).eventLoop().execute(task);
+    }
+
+    /**
+     * Run a task on the event loop serving the socket used to send to the given receiver after the given delay.
+     *
+     * @param target The receiver the task sends datagrams to.
+     * @param task The task to run.
+     * @param delayMillis The delay in milliseconds.
+     * @throws IOException If the server is not listening.
+     */
+    public void schedule(InetSocketAddress target, Runnable task, long delayMillis) throws IOException {
+        getChannel(target).eventLoop().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Serialize a message directly into a pooled buffer of the given channel.
+     *
+     * @param channel The channel the message is sent on.
+     * @param msg The message to serialize.
+     * @return The buffer containing the message.
+     */
+    private ByteBuf serialize(Channel channel, ParsedMessage msg) {
+        ByteBuf buffer = channel.alloc().directBuffer(msg.getSize() & 0xFFFF);
+        try {
+            msg.writeTo(buffer);
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Get the socket used to send to the given receiver.
+     * All datagrams to the same receiver leave through the same socket to keep them in order.
+     *
+     * @param target The receiver of a datagram.
+     * @return The channel to use.
+     * @throws IOException If the server is not listening.
+     */
+    private Channel getChannel(InetSocketAddress target) throws IOException {
+        Channel[] current = this.channels;
+        if(current == null) {
+            throw new IOException("UDP server is not listening.");
+        }
+        return current[Math.floorMod(target.hashCode(), current.length)];
     }
 }
@@ -0,0 +1,83 @@
+package de.tum.in.net.group17.onion.interfaces.authentication;
+
+import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.model.TunnelSegment;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs1ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs2ParsedMessage;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of the requests to the Onion authentication module that expect a response.
+ * All methods return immediately. The returned futures are completed once the response arrives, possibly on the
+ * I/O thread of the connection, hence dependent actions must not block. They are completed exceptionally with a
+ * ParsingException or AuthException in the cases the blocking methods of AuthenticationInterface throw them.
+ */
+public interface AsyncAuthenticationInterface {
+    /**
+     * Issue the start of a new session on the Onion Authentication module.
+     *
+     *
+     * @param peer The peer to start a new session with.
+     *
+     * @return A future completed with the ONION AUTH SESSION HS1 message sent by the Onion Auth module.
+     */
+    CompletableFuture<AuthSessionHs1ParsedMessage> startSessionAsync(Peer peer);
+
+    /**
+     * Forward a received handshake initiation packet to the Onion module.
+     *
+     *
+     * @param payload The handshake payload given by the peers authentication module in AUTH SESSION HS1.
+     *
+     * @return A future completed with the AUTH SESSION HS2 message sent by the Onion Auth module.
+     */
+    CompletableFuture<AuthSessionHs2ParsedMessage> forwardIncomingHandshake1Async(byte[] payload);
+
+    /**
+     * Order the authentication module to encrypt data for a single layer.
+     *
+     *
+     * @param message Plain OnionTunnelTransportParsedMessage to be encrypted.
+     * @param segment A segment for which this message has to be layer-encrypted once.
+     * @param isCipher Flag to specify whether or not we are the cipher or plain data not.
+     *
+     * @return A future completed with the given message containing the encrypted data.
+     */
+    CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment, boolean isCipher);
+
+    /**
+     * Order the authentication module to encrypt data with the sessions of all given segments.
+     *
+     *
+     * @param message Plain OnionTunnelTransportParsedMessage to be encrypted with all sessions in the given tunnel.
+     * @param segments A list of segments for which this message has to be layer-encrypted.
+     *
+     * @return A future completed with the given message containing the encrypted data.
+     */
+    CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments);
+
+    /**
+     * Order the authentication module to decrypt data for a single layer (used by intermediate hops).
+     *
+     *
+     * @param message OnionTunnelTransportParsedMessage to be decrypted.
+     * @param segment A segment for which this message has to be layer-decrypted once.
+     *
+     * @return A future completed with the given message containing the decrypted data.
+     */
+    CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment);
+
+    /**
+     * Order the authentication module to decrypt data with the sessions of all given segments.
+     *
+     *
+     * @param message OnionTunnelTransportParsedMessage to be decrypted with all sessions in the given tunnel.
+     * @param segments A list of segments for which this message has to be layer-decrypted.
+     *
+     * @return A future completed with the given message containing the decrypted data.
+     */
+    CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments);
+}
@@ -0,0 +1,29 @@
+package de.tum.in.net.group17.onion.interfaces.authentication;
+
+/**
+ * Implementations of the session handshakes and the en- and decryption of tunnel data.
+ */
+public enum AuthEngine {
+    /**
+     * The external Onion Auth module, reached via its TCP API (AuthenticationInterfaceImpl).
+     */
+    EXTERNAL,
+
+    /**
+     * Handshakes and crypto inside the Onion module (JvmAuthenticationInterfaceImpl). Only interoperates with peers
+     * using the same engine.
+     */
+    JVM;
+
+    /**
+     * Get the engine matching a configuration value.
+     *
+     * @param name The name of the engine, case insensitive.
+     *
+     * @return The matching engine.
+     * @throws IllegalArgumentException If there is no engine with the given name.
+     */
+    public static AuthEngine fromString(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -3,30 +3,73 @@ package de.tum.in.net.group17.onion.interfaces.authentication;
 import com.google.common.primitives.Shorts;
 import com.google.inject.Inject;
 import de.tum.in.net.group17.onion.config.ConfigurationProvider;
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
 import de.tum.in.net.group17.onion.interfaces.TcpClientInterface;
 import de.tum.in.net.group17.onion.model.TunnelSegment;
-import de.tum.in.net.group17.onion.model.results.RequestResult;
 import de.tum.in.net.group17.onion.model.Peer;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
 import de.tum.in.net.group17.onion.parser.authentication.*;
 import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+import de.tum.in.net.group17.onion.util.CircuitBreaker;
+import de.tum.in.net.group17.onion.util.RequestTable;
+import de.tum.in.net.group17.onion.util.RequestWindow;
+import de.tum.in.net.group17.onion.util.TimeoutService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
  * Implementation of an interface to the Onion Authentication module.
+ * Requests are matched to their responses by the request ID in a lock-free table that detects stale responses to
+ * requests that timed out already. The blocking methods are adapters waiting for the futures of the non-blocking
+ * ones, so many requests may be in flight at once, bounded by the configured window.
+ * Session establishment requests are spread over the configured number of connections by request ID. A session is
+ * pinned to the connection that created it, since the auth module keeps its sessions per connection, and all later
+ * requests of the session use that connection and stay in order. Layered requests for a tunnel whose sessions live on
+ * different connections are split into one request per connection, applied one after the other.
+ * A circuit breaker rejects new requests immediately while the Onion Auth module keeps failing or answering slowly, so
+ * callers do not pile up waiting for their timeouts and no reconnects are attempted in the send path meanwhile.
  * Created by Christoph Rudolf on 06.06.17.
  */
-public class AuthenticationInterfaceImpl extends TcpClientInterface implements AuthenticationInterface {
+public class AuthenticationInterfaceImpl extends TcpClientInterface implements AuthenticationInterface, AsyncAuthenticationInterface {
+    /**
+     * Minimal number of slots for pending requests, so requests that wait for a response long do not block new ones.
+     */
+    private static final int MIN_REQUEST_SLOTS = 4096;
+
+    /**
+     * Time the circuit breaker rejects requests before a probe request is sent to the Onion Auth module again.
+     */
+    private static final Duration BREAKER_OPEN_TIME = Duration.ofSeconds(1);
+
+    /**
+     * Error of session establishment requests not answered in time.
+     */
+    private static final Supplier<Throwable> SESSION_TIMEOUT =
+            () -> new AuthException("Did not receive a response from the auth module to an issued session start in time.");
+
+    /**
+     * Error of en- and decryption requests not answered in time.
+     */
+    private static final Supplier<Throwable> CRYPT_TIMEOUT =
+            () -> new ParsingException("Did not receive a response from the auth module to an issued session layer decrypt in time.");
+
     private AuthenticationParser parser;
     private ConfigurationProvider config;
-    private final AtomicInteger requestCounter;
-    private Map<Integer, RequestResult> results;
+    private RequestTable<CompletableFuture<AuthParsedMessage>> results;
+    private TimeoutService timeouts;
+    private RequestWindow[] windows;
+    private Map<Short, Integer> sessionConnections;
+    private CircuitBreaker breaker;
     private Logger logger;
 
     /**
@@ -34,45 +77,183 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
      *
      * @param config The configuration of the Onion module to read listening ports and other values from.
      * @param parser The parser for packets that are expected to be received from the Onion Authentication module.
+     * @param timeouts The service failing requests that are not answered in time.
+     * @param resources The event loops serving the connections to the Onion Authentication module.
      */
     @Inject
-    public AuthenticationInterfaceImpl(ConfigurationProvider config, AuthenticationParser parser) {
-        super(config.getAuthApiHost(), config.getAuthApiPort());
+    public AuthenticationInterfaceImpl(ConfigurationProvider config, AuthenticationParser parser, TimeoutService timeouts,
+                                       EventLoopResources resources) {
+        super(config.getAuthApiHost(), config.getAuthApiPort(), resources, config.getAuthConnections());
         this.logger = LogManager.getLogger(AuthenticationInterface.class);
         this.parser = parser;
         this.config = config;
-        this.requestCounter = new AtomicInteger();
-        this.requestCounter.set(0);
-        this.results = Collections.synchronizedMap(new HashMap<Integer, RequestResult>());
-        setCallback(result -> readResponse(result));
+        this.results = new RequestTable<>(Math.max(MIN_REQUEST_SLOTS, 2 * config.getAuthWindow() * getConnectionCount()));
+        this.timeouts = timeouts;
+        this.windows = new RequestWindow[getConnectionCount()];
+        for(int i = 0; i < this.windows.length; i++) {
+            this.windows[i] = new RequestWindow(config.getAuthWindow());
+        }
+        this.sessionConnections = new ConcurrentHashMap<>();
+        this.breaker = new CircuitBreaker(config.getAuthBreakerThreshold(), config.getAuthBreakerLatency(), BREAKER_OPEN_TIME);
+        setCallback(parser, result -> readResponse(result));
+        connect();
     }
 
     /**
-     * Callback for all messages returned from the authentication module. The data has then be mapped to the requester
-     * by the request identifier.
+     * Callback for all messages returned from the authentication module, called on the I/O thread of the connection.
+     * The message has then be mapped to the requester by the request identifier.
+     *
+     * @param parsed A message received back from the authentication module.
+     */
+    private void readResponse(ParsedMessage parsed) {
+        if (parsed instanceof AuthParsedMessage) {
+            int requestId = ((AuthParsedMessage) parsed).getRequestId();
+            CompletableFuture<AuthParsedMessage> res = results.remove(requestId);
+            if (res != null) {
+                logger.debug("Received message from authentication module: " + parsed.getClass().getName());
+                res.complete((AuthParsedMessage) parsed);
+            } else {
+                logger.warn("Received stale response or message without callback mapping: " + requestId);
+            }
+        } else {
+            logger.warn("Received SESSION CLOSE message.");
+        }
+    }
+
+    /**
+     * Send a request to the auth module over the connection of its request ID and register it for its response.
+     *
+     * @param builder Builds the request for a reserved request ID.
+     * @param timeoutError Creates the error the request fails with if no response arrives in time.
+     *
+     * @return A future completed with the response to the request.
+     */
+    private CompletableFuture<AuthParsedMessage> request(RequestBuilder builder, Supplier<Throwable> timeoutError) {
+        return request(builder, this::connectionOfRequest, timeoutError);
+    }
+
+    /**
+     * Get the connection a session establishment request is sent over, which is the connection its session lives on.
+     *
+     * @param requestId The request ID of the request.
+     *
+     * @return The index of the connection.
+     */
+    private int connectionOfRequest(int requestId) {
+        return Math.floorMod(requestId, getConnectionCount());
+    }
+
+    /**
+     * Get the connection the given session has been created on.
+     * Sessions not created by us, e.g. closed already, use the connection selected by their session ID.
+     *
+     * @param sessionId The session ID.
+     *
+     * @return The index of the connection.
+     */
+    private int connectionOfSession(short sessionId) {
+        Integer connection = this.sessionConnections.get(sessionId);
+        return connection != null ? connection : Math.floorMod(sessionId, getConnectionCount());
+    }
+
+    /**
+     * Send a request to the auth module and register it for its response.
+     *
+     * @param builder Builds the request for a reserved request ID.
+     * @param stripe Selects the connection used for the request, e.g. the session ID.
+     * @param timeoutError Creates the error the request fails with if no response arrives in time.
      *
-     * @param data A raw data block received back from the authentication module.
+     * @return A future completed with the response to the request.
      */
-    private void readResponse(byte[] data) {
+    private CompletableFuture<AuthParsedMessage> request(RequestBuilder builder, int stripe, Supplier<Throwable> timeoutError) {
+        return request(builder, requestId -> stripe, timeoutError);
+    }
+
+    /**
+     * Send a request to the auth module and register it for its response.
+     * The request is queued if the request window of its connection is full and sent once a response frees a slot.
+     * It is rejected immediately if the circuit breaker is open.
+     *
+     * @param builder Builds the request for a reserved request ID.
+     * @param stripe Maps the request ID to the stripe selecting the connection used for the request.
+     * @param timeoutError Creates the error the request fails with if no response arrives in time.
+     *
+     * @return A future completed with the response to the request.
+     */
+    private CompletableFuture<AuthParsedMessage> request(RequestBuilder builder, IntUnaryOperator stripe, Supplier<Throwable> timeoutError) {
+        int requestId;
+        ParsedMessage packet;
         try {
-            ParsedMessage parsed = this.parser.parseMsg(data);
-            if (parsed instanceof AuthParsedMessage) {
-                int requestId = ((AuthParsedMessage) parsed).getRequestId();
-                RequestResult res = results.get(requestId);
-                if (res != null) {
-                    logger.debug("Received message from authentication module: " + parsed.getClass().getName());
-                    res.setResult(parsed);
-                    synchronized (res) {
-                        res.notify();
-                    }
+            requestId = this.results.reserve();
+        } catch (IllegalStateException e) {
+            return failed(new AuthException("Too many pending requests to the auth module: " + e.getMessage()));
+        }
+        try {
+            packet = builder.build(requestId);
+        } catch (ParsingException e) {
+            this.results.release(requestId);
+            return failed(e);
+        }
+        if(!this.breaker.tryAcquire()) {
+            this.results.release(requestId);
+            return failed(new AuthException("Rejected request, the auth module is unavailable (" + this.breaker.getState() + ")."));
+        }
+
+        int connection = stripe.applyAsInt(requestId);
+        CompletableFuture<AuthParsedMessage> res = new CompletableFuture<>();
+        RequestWindow window = this.windows[Math.floorMod(connection, this.windows.length)];
+        window.submit(() -> {
+            long sent = System.nanoTime();
+            res.whenComplete((msg, err) -> {
+                // free the slot of failed requests, a response received afterwards is dropped as stale
+                if(err != null) {
+                    this.results.remove(requestId, res);
+                    this.breaker.onFailure();
                 } else {
-                    logger.warn("Received message without callback mapping: " + requestId);
+                    this.breaker.onSuccess(System.nanoTime() - sent);
                 }
-            } else {
-                logger.warn("Received SESSION CLOSE message.");
+                window.release();
+            });
+            this.results.set(requestId, res);
+            try {
+                // a request queued while connecting fails at once if the connection cannot be established
+                sendMessage(packet, connection, error -> res.completeExceptionally(
+                        new AuthException("Unable to send request to the auth module: " + error.getMessage())));
+            } catch (RuntimeException e) {
+                // complete asynchronously, otherwise a broken connection fails all waiting requests recursively
+                this.timeouts.schedule(() -> res.completeExceptionally(e), Duration.ZERO);
+                return;
             }
-        } catch (ParsingException e) {
-            logger.error("Could not parse incoming AUTH message: " + e.getMessage());
+
+            this.timeouts.expire(res, this.config.getAuthTimeout(), timeoutError);
+        });
+        return res;
+    }
+
+    /**
+     * Wait for the result of a non-blocking request, rethrowing the error it failed with.
+     *
+     *
+     * @param future The future of the request.
+     *
+     * @return The result of the request.
+     *
+     * @throws ParsingException Exception in case anything is wrong with the packet layouts.
+     * @throws InterruptedException Exception in case the synchronous waiting is interrupted.
+     * @throws AuthException If an error is returned by the Onion Auth module or we received an unexpected message.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws ParsingException, InterruptedException, AuthException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ParsingException)
+                throw (ParsingException) cause;
+            if (cause instanceof AuthException)
+                throw (AuthException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new AuthException("Request to the auth module failed: " + cause);
         }
     }
 
@@ -80,36 +261,43 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
      * @inheritDoc
      */
     public AuthSessionHs1ParsedMessage startSession(Peer peer) throws ParsingException, InterruptedException, AuthException {
+        return await(startSessionAsync(peer));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<AuthSessionHs1ParsedMessage> startSessionAsync(Peer peer) {
         this.logger.debug("Starting session via authentication module.");
         // Build session start packet
-        int requestId = this.requestCounter.getAndAdd(1);
-        ParsedMessage packet = this.parser.buildSessionStart(requestId, peer.getHostkey());
-        this.results.put(requestId, new RequestResult());
-
-        sendMessage(packet.serialize());
-
-        return waitForSessionResponse(requestId, AuthSessionHs1ParsedMessage.class);
+        return sessionResponse(request(requestId -> this.parser.buildSessionStart(requestId, peer.getHostkey()),
+                SESSION_TIMEOUT), AuthSessionHs1ParsedMessage.class);
     }
 
     @Override
     public void closeSession(short sessionId) throws ParsingException {
         this.logger.debug("Closing session via authentication module.");
         ParsedMessage packet = this.parser.buildSessionClose(sessionId);
-        this.sendMessage(packet.serialize());
+        this.sendMessage(packet, connectionOfSession(sessionId));
+        this.sessionConnections.remove(sessionId);
     }
 
     /**
      * @inheritDoc
      */
     public AuthSessionHs2ParsedMessage forwardIncomingHandshake1(byte[] hs1) throws ParsingException, InterruptedException, AuthException {
-        this.logger.debug("Forwarding session handshake 1 to local auth module.");
-        int requestId = this.requestCounter.getAndAdd(1);
-        ParsedMessage packet = this.parser.buildSessionIncoming1(requestId, hs1);
-        this.results.put(requestId, new RequestResult());
-
-        sendMessage(packet.serialize());
+        return await(forwardIncomingHandshake1Async(hs1));
+    }
 
-        return waitForSessionResponse(requestId, AuthSessionHs2ParsedMessage.class);
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<AuthSessionHs2ParsedMessage> forwardIncomingHandshake1Async(byte[] hs1) {
+        this.logger.debug("Forwarding session handshake 1 to local auth module.");
+        return sessionResponse(request(requestId -> this.parser.buildSessionIncoming1(requestId, hs1),
+                SESSION_TIMEOUT), AuthSessionHs2ParsedMessage.class);
     }
 
     /**
@@ -117,55 +305,64 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
      */
     public void forwardIncomingHandshake2(short sessionId, byte[] payload) throws ParsingException {
         this.logger.debug("Forwarding session handshake 2 to local auth module.");
-        int requestId = this.requestCounter.getAndAdd(1);
+        int requestId = this.results.nextId();
         ParsedMessage packet = this.parser.buildSessionIncoming2(requestId, sessionId, payload);
-        sendMessage(packet.serialize());
+        sendMessage(packet, connectionOfSession(sessionId));
     }
 
+    /**
+     * Create a future failed with the given error.
+     *
+     * @param error The error.
+     *
+     * @return The failed future.
+     */
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        res.completeExceptionally(error);
+        return res;
+    }
 
     /**
-     * Generic method that waits for a response from all session establish related requests.
+     * Generic method that checks the response to session establish related requests. Pins a created session to the
+     * connection the request has been sent over.
      *
      *
-     * @param requestId The ID of the request to wait for.
+     * @param response The future of the response of the auth module.
      * @param type The generic parameter to parse the response to.
      *
-     * @return The response of the auth module.
-     *
-     * @throws ParsingException Exception in case anything is wrong with the packet layouts.
-     * @throws InterruptedException Exception in case the synchronous waiting is interrupted.
-     * @throws AuthException If an error is returned by the Onion Auth module or we received an unexpected message.
+     * @return A future completed with the response of the auth module. Fails with a ParsingException if the response
+     *          has the wrong type and with an AuthException if an error is returned by the Onion Auth module or we
+     *          received an unexpected message.
      */
-    private <T> T waitForSessionResponse(int requestId, Class<T> type) throws ParsingException, InterruptedException, AuthException {
-        if (this.results.get(requestId) == null) {
-            throw new AuthException("Request no longer present in waiting list.");
-        }
-        // wait for the response
-        RequestResult res = this.results.get(requestId);
-        synchronized (res) {
-            res.wait(5000);
-        }
-
-        if (res.isReturned()) {
-            this.results.remove(requestId);
-            AuthParsedMessage msg = (AuthParsedMessage) res.getResult();
+    private <T> CompletableFuture<T> sessionResponse(CompletableFuture<AuthParsedMessage> response, Class<T> type) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        response.whenComplete((msg, error) -> {
+            if (error != null) {
+                res.completeExceptionally(error);
+                return;
+            }
             switch(msg.getType()) {
                 case AUTH_SESSION_HS1:
                 case AUTH_SESSION_HS2:
                     try {
-                        return type.cast(res.getResult());
+                        T hs = type.cast(msg);
+                        short sessionId = msg instanceof AuthSessionHs1ParsedMessage ?
+                                ((AuthSessionHs1ParsedMessage) msg).getSessionId() : ((AuthSessionHs2ParsedMessage) msg).getSessionId();
+                        this.sessionConnections.put(sessionId, connectionOfRequest(msg.getRequestId()));
+                        res.complete(hs);
                     } catch (ClassCastException e) {
-                        throw new ParsingException("Did not receive the expected message type for this session handshake request." + e.getMessage());
+                        res.completeExceptionally(new ParsingException("Did not receive the expected message type for this session handshake request." + e.getMessage()));
                     }
+                    break;
                 case AUTH_ERROR:
-                    throw new AuthException("Received AUTH ERROR from request: " + msg.getRequestId());
+                    res.completeExceptionally(new AuthException("Received AUTH ERROR from request: " + msg.getRequestId()));
+                    break;
                 default:
-                    throw new AuthException("Unexpected message type " + msg.getType().toString() + " at when waiting for handshake response.");
+                    res.completeExceptionally(new AuthException("Unexpected message type " + msg.getType().toString() + " at when waiting for handshake response."));
             }
-        } else {
-            this.results.remove(requestId);
-            throw new AuthException("Did not receive a response from the auth module to an issued session start in time.");
-        }
+        });
+        return res;
     }
 
     /**
@@ -173,15 +370,17 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
      */
     @Override
     public OnionTunnelTransportParsedMessage encrypt(OnionTunnelTransportParsedMessage message, TunnelSegment segment, boolean isCipher) throws InterruptedException, ParsingException, AuthException {
-        this.logger.debug("Encrypting data (single hop). Is cipher: " + isCipher);
-        int requestId = this.requestCounter.getAndAdd(1);
-
-        ParsedMessage packet = this.parser.buildCipherEncrypt(isCipher, requestId, segment.getSessionId(), message.getData());
-
-        this.results.put(requestId, new RequestResult());
-        sendMessage(packet.serialize());
+        return await(encryptAsync(message, segment, isCipher));
+    }
 
-        return waitForCryptResponse(requestId, message);
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment, boolean isCipher) {
+        this.logger.debug("Encrypting data (single hop). Is cipher: " + isCipher);
+        return cryptResponse(request(requestId -> this.parser.buildCipherEncrypt(isCipher, requestId,
+                segment.getSessionId(), message.getData()), connectionOfSession(segment.getSessionId()), CRYPT_TIMEOUT), message);
     }
 
     /**
@@ -189,8 +388,15 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
      */
     @Override
     public OnionTunnelTransportParsedMessage encrypt(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) throws InterruptedException, ParsingException, AuthException {
+        return await(encryptAsync(message, segments));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
         this.logger.debug("Encrypting data for a whole tunnel.");
-        int requestId = this.requestCounter.getAndAdd(1);
 
         // Get session IDs in reverse order cause the specification says:
         // "The layered encryption is then to be done by first encrypting the payload with the session
@@ -199,12 +405,14 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
         List<Short> sessionList = segments.stream().map(x -> x.getSessionId()).collect(Collectors.toList());
         Collections.reverse(sessionList);
         short[] sessionIds = Shorts.toArray(sessionList);
-        ParsedMessage packet = this.parser.buildLayerEncrypt(requestId, sessionIds, message.getData());
-
-        this.results.put(requestId, new RequestResult());
-        sendMessage(packet.serialize());
 
-        return waitForCryptResponse(requestId, message);
+        // the layers are applied from the first session ID on
+        CompletableFuture<OnionTunnelTransportParsedMessage> res = CompletableFuture.completedFuture(message);
+        for(short[] layers : splitByConnection(sessionIds)) {
+            res = res.thenCompose(m -> cryptResponse(request(requestId -> this.parser.buildLayerEncrypt(requestId,
+                    layers, m.getData()), connectionOfSession(layers[0]), CRYPT_TIMEOUT), m));
+        }
+        return res;
     }
 
     /**
@@ -212,15 +420,17 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
      */
     @Override
     public OnionTunnelTransportParsedMessage decrypt(OnionTunnelTransportParsedMessage message, TunnelSegment segment) throws InterruptedException, ParsingException, AuthException {
-        this.logger.debug("Decrypting data for a single hop.");
-        int requestId = this.requestCounter.getAndAdd(1);
-
-        ParsedMessage packet = this.parser.buildCipherDecrypt(requestId, segment.getSessionId(), message.getData());
-
-        this.results.put(requestId, new RequestResult());
-        sendMessage(packet.serialize());
+        return await(decryptAsync(message, segment));
+    }
 
-        return waitForCryptResponse(requestId, message);
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment) {
+        this.logger.debug("Decrypting data for a single hop.");
+        return cryptResponse(request(requestId -> this.parser.buildCipherDecrypt(requestId, segment.getSessionId(),
+                message.getData()), connectionOfSession(segment.getSessionId()), CRYPT_TIMEOUT), message);
     }
 
     /**
@@ -228,10 +438,15 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
      */
     @Override
     public OnionTunnelTransportParsedMessage decrypt(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) throws InterruptedException, ParsingException, AuthException {
-        this.logger.debug("Decrypting data for a whole tunnel.");
-        // build the message
-        int requestId = this.requestCounter.getAndAdd(1);
+        return await(decryptAsync(message, segments));
+    }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
+        this.logger.debug("Decrypting data for a whole tunnel.");
         // Get session IDs in reverse order cause the specification says:
         // "That is the session key corresponding to session ID N will be used to decrypt
         // one layer from the payload, followed by that of session N-1 and so on."
@@ -240,55 +455,90 @@ public class AuthenticationInterfaceImpl extends TcpClientInterface implements A
         Collections.reverse(sessionList);
         short[] sessionIds = Shorts.toArray(sessionList);
 
-        ParsedMessage packet = this.parser.buildLayerDecrypt(requestId, sessionIds, message.getData());
-
-        this.results.put(requestId, new RequestResult());
-        sendMessage(packet.serialize());
+        // the layers are removed from the last session ID on
+        List<short[]> split = splitByConnection(sessionIds);
+        Collections.reverse(split);
+        CompletableFuture<OnionTunnelTransportParsedMessage> res = CompletableFuture.completedFuture(message);
+        for(short[] layers : split) {
+            res = res.thenCompose(m -> cryptResponse(request(requestId -> this.parser.buildLayerDecrypt(requestId,
+                    layers, m.getData()), connectionOfSession(layers[0]), CRYPT_TIMEOUT), m));
+        }
+        return res;
+    }
 
-        return waitForCryptResponse(requestId, message);
+    /**
+     * Split the session IDs of a layered request into runs of consecutive sessions living on the same connection.
+     * Usually all sessions of a tunnel live on one connection and a single request suffices.
+     *
+     * @param sessionIds The session IDs in the order of the layered request.
+     *
+     * @return The runs in the order of the given session IDs.
+     */
+    private List<short[]> splitByConnection(short[] sessionIds) {
+        List<short[]> split = new ArrayList<>();
+        int start = 0;
+        for(int i = 1; i <= sessionIds.length; i++) {
+            if(i == sessionIds.length || connectionOfSession(sessionIds[i]) != connectionOfSession(sessionIds[start])) {
+                split.add(Arrays.copyOfRange(sessionIds, start, i));
+                start = i;
+            }
+        }
+        return split;
     }
 
     /**
-     * Generic method that waits for a response from all en- and decryption requests. Sets the payload accordingly.
+     * Generic method that checks the response to en- and decryption requests. Sets the payload accordingly.
      *
      *
-     * @param requestId The ID of the request to wait for.
+     * @param response The future of the response of the auth module.
      * @param message The message to be en- or decrypted.
      *
-     * @return The given message with swapped payload.
-     *
-     * @throws ParsingException Exception in case anything is wrong with the packet layouts.
-     * @throws InterruptedException Exception in case the synchronous waiting is interrupted.
-     * @throws AuthException If an error is returned by the Onion Auth module or we received an unexpected message.
+     * @return A future completed with the given message with swapped payload. Fails with an AuthException if an error
+     *          is returned by the Onion Auth module or we received an unexpected message.
      */
-    private OnionTunnelTransportParsedMessage waitForCryptResponse(int requestId, OnionTunnelTransportParsedMessage message) throws ParsingException, InterruptedException, AuthException {
-        if (this.results.get(requestId) == null) {
-            throw new AuthException("Request no longer present in waiting list.");
-        }
-        // wait for the response
-        RequestResult res = this.results.get(requestId);
-        synchronized (res) {
-            res.wait(5000);
-        }
-
-        if (res.isReturned()) {
-            this.results.remove(requestId);
-            AuthParsedMessage msg = (AuthParsedMessage) res.getResult();
+    private CompletableFuture<OnionTunnelTransportParsedMessage> cryptResponse(CompletableFuture<AuthParsedMessage> response, OnionTunnelTransportParsedMessage message) {
+        CompletableFuture<OnionTunnelTransportParsedMessage> res = new CompletableFuture<>();
+        response.whenComplete((msg, error) -> {
+            if (error != null) {
+                res.completeExceptionally(error);
+                return;
+            }
             switch(msg.getType()) {
                 case AUTH_LAYER_ENCRYPT_RESP:
                 case AUTH_LAYER_DECRYPT_RESP:
                 case AUTH_CIPHER_ENCRYPT_RESP:
                 case AUTH_CIPHER_DECRYPT_RESP:
                     message.setData(((AuthCryptResParsedMessage)msg).getPayload());
-                    return message;
+                    res.complete(message);
+                    break;
                 case AUTH_ERROR:
-                    throw new AuthException("Received AUTH ERROR from request: " + msg.getRequestId());
+                    res.completeExceptionally(new AuthException("Received AUTH ERROR from request: " + msg.getRequestId()));
+                    break;
                 default:
-                    throw new AuthException("Unexpected message type " + msg.getType().toString() + " at when waiting for crypt response.");
+                    res.completeExceptionally(new AuthException("Unexpected message type " + msg.getType().toString() + " at when waiting for crypt response."));
             }
-        } else {
-            this.results.remove(requestId);
-            throw new ParsingException("Did not receive a response from the auth module to an issued session layer decrypt in time.");
+        });
+        return res;
+    }
+
+    /**
+     * Builds a request to the auth module once its request ID is known.
+     */
+    private interface RequestBuilder {
+        ParsedMessage build(int requestId) throws ParsingException;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public String toString() {
+        int waiting = 0;
+        int inFlight = 0;
+        for(RequestWindow window : this.windows) {
+            waiting += window.getWaiting();
+            inFlight += window.getInFlight();
         }
+        return "Auth: " + this.breaker + ", inFlight=" + inFlight + ", waiting=" + waiting;
     }
 }
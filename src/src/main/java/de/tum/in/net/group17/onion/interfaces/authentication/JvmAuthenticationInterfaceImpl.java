@@ -0,0 +1,532 @@
+package de.tum.in.net.group17.onion.interfaces.authentication;
+
+import com.google.inject.Inject;
+import de.tum.in.net.group17.onion.config.ConfigurationProvider;
+import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.model.TunnelSegment;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs1ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs2ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthenticationParser;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of the authentication interface performing handshakes and crypto inside the Onion module instead of
+ * asking the external Onion Auth module, saving a local round trip per cell.
+ *
+ * Handshake: The initiator sends an ephemeral ECDH (P-256) public key in HS1. The responder answers with its own
+ * ephemeral public key and an RSA signature of both keys made with its hostkey in HS2, which the initiator verifies
+ * with the hostkey of the peer it started the session with. Both derive an AES-256 session key from the shared secret.
+ *
+ * Crypto: Every layer is a length-preserving permutation of the whole cell, so a cell has the negotiated cell size on
+ * every hop and its size does not reveal the position of a hop. A layer is a three round Feistel network over the first
+ * BLOCK_SIZE bytes and the rest of the cell: the first block is masked with an HMAC-SHA256 of the rest, the rest is
+ * encrypted with AES-CTR using the masked block as IV, and the block is masked again with an HMAC of the ciphertext.
+ * The IV depends on the whole cell, hence layers can be removed independently of packet loss and reordering without
+ * carrying an IV or sequence number. Every session keeps its own preallocated Cipher and Mac.
+ *
+ * This engine only interoperates with peers using the same engine.
+ */
+public class JvmAuthenticationInterfaceImpl implements AuthenticationInterface, AsyncAuthenticationInterface {
+    /**
+     * Size of the block of a cell that is used as the IV of the rest of the cell, the AES block size.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    private static final String CURVE = "secp256r1";
+    private static final String SIGNATURE = "SHA256withRSA";
+    private static final String MAC = "HmacSHA256";
+    private static final byte[] KDF_LABEL = "onion-session-key".getBytes();
+    private static final byte[] CIPHER_LABEL = "onion-layer-cipher".getBytes();
+    private static final byte[] MAC_LABEL = "onion-layer-mac".getBytes();
+
+    private final PrivateKey hostPrivateKey;
+    private final AuthenticationParser parser;
+    private final SecureRandom random;
+    private final AtomicInteger sessionCounter;
+    private final Map<Short, PendingSession> pending;
+    private final Map<Short, Session> sessions;
+    private final Logger logger;
+
+    /**
+     * Create a new in-JVM authentication engine using the hostkey of the configuration.
+     *
+     * @param config The configuration of the Onion module to read the hostkey from.
+     * @param parser The parser used to build the handshake messages.
+     */
+    @Inject
+    public JvmAuthenticationInterfaceImpl(ConfigurationProvider config, AuthenticationParser parser) {
+        this(config.getHostPrivateKey(), parser);
+    }
+
+    /**
+     * Create a new in-JVM authentication engine.
+     *
+     * @param hostPrivateKey The private RSA hostkey of this peer used to sign our handshake messages.
+     * @param parser The parser used to build the handshake messages.
+     */
+    public JvmAuthenticationInterfaceImpl(PrivateKey hostPrivateKey, AuthenticationParser parser) {
+        this.logger = LogManager.getLogger(AuthenticationInterface.class);
+        this.hostPrivateKey = hostPrivateKey;
+        this.parser = parser;
+        this.random = new SecureRandom();
+        this.sessionCounter = new AtomicInteger();
+        this.pending = new ConcurrentHashMap<>();
+        this.sessions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public AuthSessionHs1ParsedMessage startSession(Peer peer) throws ParsingException, InterruptedException, AuthException {
+        this.logger.debug("Starting session in the in-JVM auth engine.");
+        KeyPair ephemeral = generateEphemeralKey();
+        short sessionId = allocateSessionId();
+        this.pending.put(sessionId, new PendingSession(ephemeral, peer.getHostkey()));
+
+        return (AuthSessionHs1ParsedMessage)this.parser.buildSessionHs1(sessionId, 0, ephemeral.getPublic().getEncoded());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void closeSession(short sessionId) throws ParsingException {
+        this.logger.debug("Closing session in the in-JVM auth engine.");
+        this.pending.remove(sessionId);
+        this.sessions.remove(sessionId);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public AuthSessionHs2ParsedMessage forwardIncomingHandshake1(byte[] payload) throws ParsingException, InterruptedException, AuthException {
+        this.logger.debug("Answering session handshake 1 in the in-JVM auth engine.");
+        PublicKey initiatorKey = decodeKey("EC", payload);
+        KeyPair ephemeral = generateEphemeralKey();
+        byte[] ownKey = ephemeral.getPublic().getEncoded();
+
+        byte[] signature;
+        try {
+            Signature signer = Signature.getInstance(SIGNATURE);
+            signer.initSign(this.hostPrivateKey);
+            signer.update(payload);
+            signer.update(ownKey);
+            signature = signer.sign();
+        } catch (GeneralSecurityException | NullPointerException e) {
+            throw new AuthException("Unable to sign handshake with our hostkey: " + e.getMessage());
+        }
+
+        short sessionId = allocateSessionId();
+        this.sessions.put(sessionId, new Session(deriveKey(ephemeral.getPrivate(), initiatorKey)));
+
+        ByteBuffer hs2 = ByteBuffer.allocate(2 + ownKey.length + signature.length);
+        hs2.putShort((short)ownKey.length);
+        hs2.put(ownKey);
+        hs2.put(signature);
+        return (AuthSessionHs2ParsedMessage)this.parser.buildSessionHs2(sessionId, 0, hs2.array());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void forwardIncomingHandshake2(short sessionId, byte[] payload) throws ParsingException {
+        this.logger.debug("Completing session handshake 2 in the in-JVM auth engine.");
+        PendingSession started = this.pending.remove(sessionId);
+        if(started == null)
+            throw new ParsingException("Received handshake 2 for unknown session " + sessionId + ".");
+
+        ByteBuffer hs2 = ByteBuffer.wrap(payload);
+        if(payload.length < 2)
+            throw new ParsingException("Handshake 2 too short!");
+        int keyLength = hs2.getShort() & 0xFFFF;
+        if(payload.length < 2 + keyLength)
+            throw new ParsingException("Handshake 2 too short!");
+        byte[] responderKey = Arrays.copyOfRange(payload, 2, 2 + keyLength);
+        byte[] signature = Arrays.copyOfRange(payload, 2 + keyLength, payload.length);
+
+        try {
+            Signature verifier = Signature.getInstance(SIGNATURE);
+            verifier.initVerify(decodeKey("RSA", started.peerHostkey));
+            verifier.update(started.ephemeral.getPublic().getEncoded());
+            verifier.update(responderKey);
+            if(!verifier.verify(signature))
+                throw new ParsingException("Invalid signature in handshake 2 of session " + sessionId + ".");
+        } catch (GeneralSecurityException e) {
+            throw new ParsingException("Unable to verify handshake 2 of session " + sessionId + ": " + e.getMessage());
+        }
+
+        try {
+            this.sessions.put(sessionId, new Session(deriveKey(started.ephemeral.getPrivate(), decodeKey("EC", responderKey))));
+        } catch (AuthException e) {
+            throw new ParsingException(e.getMessage());
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public OnionTunnelTransportParsedMessage encrypt(OnionTunnelTransportParsedMessage message, TunnelSegment segment, boolean isCipher) throws InterruptedException, ParsingException, AuthException {
+        // every layer derives its IV from the cell, hence it does not matter whether the data is encrypted already
+        message.setData(getSession(segment.getSessionId()).encrypt(message.getData()));
+        return message;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public OnionTunnelTransportParsedMessage encrypt(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) throws InterruptedException, ParsingException, AuthException {
+        // the session of the tunnel end is the innermost layer, the one of the first hop the outermost
+        byte[] data = message.getData();
+        for(int i = segments.size() - 1; i >= 0; i--) {
+            data = getSession(segments.get(i).getSessionId()).encrypt(data);
+        }
+        message.setData(data);
+        return message;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public OnionTunnelTransportParsedMessage decrypt(OnionTunnelTransportParsedMessage message, TunnelSegment segment) throws InterruptedException, ParsingException, AuthException {
+        message.setData(getSession(segment.getSessionId()).decrypt(message.getData()));
+        return message;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public OnionTunnelTransportParsedMessage decrypt(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) throws InterruptedException, ParsingException, AuthException {
+        // the layer of our first hop is the outermost one
+        byte[] data = message.getData();
+        for(TunnelSegment segment : segments) {
+            data = getSession(segment.getSessionId()).decrypt(data);
+        }
+        message.setData(data);
+        return message;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<AuthSessionHs1ParsedMessage> startSessionAsync(Peer peer) {
+        return complete(() -> startSession(peer));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<AuthSessionHs2ParsedMessage> forwardIncomingHandshake1Async(byte[] payload) {
+        return complete(() -> forwardIncomingHandshake1(payload));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment, boolean isCipher) {
+        return complete(() -> encrypt(message, segment, isCipher));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
+        return complete(() -> encrypt(message, segments));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment) {
+        return complete(() -> decrypt(message, segment));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
+        return complete(() -> decrypt(message, segments));
+    }
+
+    /**
+     * Run an operation on the calling thread and wrap its outcome into a completed future.
+     * The operations of this engine do not wait for anything, hence there is nothing to gain from another thread.
+     *
+     * @param operation The operation to run.
+     *
+     * @return A future completed with the result or the error of the operation.
+     */
+    private static <T> CompletableFuture<T> complete(Operation<T> operation) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        try {
+            res.complete(operation.run());
+        } catch (Throwable e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    /**
+     * Get an established session.
+     *
+     * @param sessionId The ID of the session.
+     *
+     * @return The session.
+     *
+     * @throws AuthException If there is no established session with this ID.
+     */
+    private Session getSession(short sessionId) throws AuthException {
+        Session session = this.sessions.get(sessionId);
+        if(session == null)
+            throw new AuthException("Unknown session " + sessionId + ".");
+        return session;
+    }
+
+    /**
+     * Allocate a session ID that is neither used by a started nor by an established session.
+     *
+     * @return The new session ID.
+     */
+    private short allocateSessionId() {
+        short sessionId;
+        do {
+            sessionId = (short)this.sessionCounter.incrementAndGet();
+        } while(this.pending.containsKey(sessionId) || this.sessions.containsKey(sessionId));
+        return sessionId;
+    }
+
+    /**
+     * Generate a new ephemeral ECDH key pair.
+     *
+     * @return The key pair.
+     *
+     * @throws AuthException If the curve is not supported by the JVM.
+     */
+    private KeyPair generateEphemeralKey() throws AuthException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(CURVE), this.random);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new AuthException("Unable to generate ephemeral key: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decode an X.509 encoded public key.
+     *
+     * @param algorithm The algorithm of the key, EC or RSA.
+     * @param encoded The encoded key.
+     *
+     * @return The public key.
+     *
+     * @throws ParsingException If the key is invalid.
+     */
+    private static PublicKey decodeKey(String algorithm, byte[] encoded) throws ParsingException {
+        try {
+            return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException | NullPointerException e) {
+            throw new ParsingException("Invalid " + algorithm + " public key in handshake: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Derive the session key from our ephemeral private key and the ephemeral public key of the other peer.
+     *
+     * @param ownKey Our ephemeral private key.
+     * @param otherKey The ephemeral public key of the other peer.
+     *
+     * @return The AES-256 session key.
+     *
+     * @throws AuthException If the key agreement fails.
+     */
+    private static SecretKeySpec deriveKey(PrivateKey ownKey, PublicKey otherKey) throws AuthException {
+        try {
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(ownKey);
+            agreement.doPhase(otherKey, true);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(KDF_LABEL);
+            return new SecretKeySpec(digest.digest(agreement.generateSecret()), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new AuthException("Unable to derive session key: " + e.getMessage());
+        }
+    }
+
+    /**
+     * An operation of this engine.
+     */
+    private interface Operation<T> {
+        T run() throws Throwable;
+    }
+
+    /**
+     * A session we started and that awaits the second handshake message.
+     */
+    private static class PendingSession {
+        private final KeyPair ephemeral;
+        private final byte[] peerHostkey;
+
+        private PendingSession(KeyPair ephemeral, byte[] peerHostkey) {
+            this.ephemeral = ephemeral;
+            this.peerHostkey = peerHostkey;
+        }
+    }
+
+    /**
+     * An established session and its preallocated cipher and MAC.
+     */
+    private static class Session {
+        private final SecretKeySpec cipherKey;
+        private final Cipher cipher;
+        private final Mac mac;
+
+        private Session(SecretKeySpec key) throws AuthException {
+            try {
+                this.cipherKey = new SecretKeySpec(deriveSubkey(key, CIPHER_LABEL), "AES");
+                this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                this.mac = Mac.getInstance(MAC);
+                this.mac.init(new SecretKeySpec(deriveSubkey(key, MAC_LABEL), MAC));
+            } catch (GeneralSecurityException e) {
+                throw new AuthException("AES-CTR or " + MAC + " is not available: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Add a layer of encryption.
+         *
+         * @param data The data to encrypt.
+         *
+         * @return The encrypted data, as long as the given data.
+         *
+         * @throws ParsingException If the data is too short to be encrypted.
+         * @throws AuthException If the encryption fails.
+         */
+        private byte[] encrypt(byte[] data) throws ParsingException, AuthException {
+            byte[] out = copyLayer(data);
+            try {
+                synchronized (this) {
+                    mask(out, (byte) 1);
+                    stream(out);
+                    mask(out, (byte) 2);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new AuthException("Unable to encrypt layer: " + e.getMessage());
+            }
+            return out;
+        }
+
+        /**
+         * Remove a layer of encryption.
+         *
+         * @param data The encrypted data.
+         *
+         * @return The decrypted data, as long as the given data.
+         *
+         * @throws ParsingException If the data is too short to contain a layer.
+         * @throws AuthException If the decryption fails.
+         */
+        private byte[] decrypt(byte[] data) throws ParsingException, AuthException {
+            byte[] out = copyLayer(data);
+            try {
+                synchronized (this) {
+                    mask(out, (byte) 2);
+                    stream(out);
+                    mask(out, (byte) 1);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new AuthException("Unable to decrypt layer: " + e.getMessage());
+            }
+            return out;
+        }
+
+        /**
+         * Copy data to en- or decrypt it in place.
+         *
+         * @param data The data.
+         *
+         * @return The copy.
+         *
+         * @throws ParsingException If the data does not reach beyond the first block.
+         */
+        private static byte[] copyLayer(byte[] data) throws ParsingException {
+            if(data.length <= BLOCK_SIZE)
+                throw new ParsingException("Encrypted layer too short!");
+            return data.clone();
+        }
+
+        /**
+         * Mask the first block of the data with an HMAC of the rest of it. Masking twice removes the mask.
+         *
+         * @param data The data, changed in place.
+         * @param round The Feistel round, so the masks of both rounds differ.
+         */
+        private void mask(byte[] data, byte round) {
+            this.mac.update(round);
+            this.mac.update(data, BLOCK_SIZE, data.length - BLOCK_SIZE);
+            byte[] tag = this.mac.doFinal();
+            for(int i = 0; i < BLOCK_SIZE; i++) {
+                data[i] ^= tag[i];
+            }
+        }
+
+        /**
+         * En- or decrypt the data after the first block with AES-CTR using the first block as IV.
+         *
+         * @param data The data, changed in place.
+         *
+         * @throws GeneralSecurityException If the cipher fails.
+         */
+        private void stream(byte[] data) throws GeneralSecurityException {
+            this.cipher.init(Cipher.ENCRYPT_MODE, this.cipherKey, new IvParameterSpec(data, 0, BLOCK_SIZE));
+            this.cipher.doFinal(data, BLOCK_SIZE, data.length - BLOCK_SIZE, data, BLOCK_SIZE);
+        }
+
+        /**
+         * Derive a key for one purpose from the session key.
+         *
+         * @param key The session key.
+         * @param label The purpose of the key.
+         *
+         * @return The derived key.
+         *
+         * @throws GeneralSecurityException If SHA-256 is not available.
+         */
+        private static byte[] deriveSubkey(SecretKeySpec key, byte[] label) throws GeneralSecurityException {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(label);
+            return digest.digest(key.getEncoded());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.interfaces.authentication.AsyncAuthenticationInterface;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterface;
+import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.model.TunnelSegment;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs1ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs2ParsedMessage;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking view of an authentication interface that only offers blocking methods.
+ * The blocking methods are called on the calling thread and their outcome is wrapped into a completed future, so
+ * callers handle all implementations alike.
+ */
+class BlockingAuthAdapter implements AsyncAuthenticationInterface {
+    private final AuthenticationInterface authInterface;
+
+    /**
+     * Get a non-blocking view of an authentication interface.
+     *
+     * @param authInterface The authentication interface.
+     *
+     * @return The interface itself if it is non-blocking already, otherwise an adapter calling its blocking methods.
+     */
+    static AsyncAuthenticationInterface of(AuthenticationInterface authInterface) {
+        if(authInterface instanceof AsyncAuthenticationInterface)
+            return (AsyncAuthenticationInterface)authInterface;
+        return new BlockingAuthAdapter(authInterface);
+    }
+
+    private BlockingAuthAdapter(AuthenticationInterface authInterface) {
+        this.authInterface = authInterface;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<AuthSessionHs1ParsedMessage> startSessionAsync(Peer peer) {
+        return complete(() -> this.authInterface.startSession(peer));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<AuthSessionHs2ParsedMessage> forwardIncomingHandshake1Async(byte[] payload) {
+        return complete(() -> this.authInterface.forwardIncomingHandshake1(payload));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment, boolean isCipher) {
+        return complete(() -> this.authInterface.encrypt(message, segment, isCipher));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
+        return complete(() -> this.authInterface.encrypt(message, segments));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment) {
+        return complete(() -> this.authInterface.decrypt(message, segment));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
+        return complete(() -> this.authInterface.decrypt(message, segments));
+    }
+
+    /**
+     * Run a blocking call on the calling thread and wrap its outcome into a completed future.
+     *
+     * @param call The call to run.
+     *
+     * @return A future completed with the result or the error of the call.
+     */
+    private static <T> CompletableFuture<T> complete(Call<T> call) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        try {
+            res.complete(call.run());
+        } catch (Throwable e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    /**
+     * A blocking call of the authentication interface.
+     */
+    private interface Call<T> {
+        T run() throws Throwable;
+    }
+}
@@ -0,0 +1,454 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.interfaces.UdpServer;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParser;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelBundleParsedMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Packs transport cells for the same neighbor into ONION_TUNNEL_BUNDLE datagrams.
+ * Bundling is negotiated per neighbor: the first cell to a neighbor triggers a probe and only neighbors answering it
+ * with an acknowledgement receive bundles. Cells for other neighbors are sent as separate datagrams.
+ * Probes are lost like any other datagram, so an unanswered probe is repeated a few times before the neighbor is
+ * taken as not supporting bundles. The outcome of a negotiation expires after a while and is negotiated again with the
+ * next cell, e.g. in case the neighbor restarted with a different configuration. A neighbor that repeatedly cannot be
+ * sent bundles to is forgotten right away.
+ *
+ * Cells are collected until the event loop of the socket used for the neighbor gets to send them, so bundling adds
+ * no delay on an idle peer while cells queue up to the configured MTU on a busy relay.
+ */
+public class CellBundler {
+    private static final Duration PROBE_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration NEGOTIATION_TTL = Duration.ofMinutes(5);
+    private static final int MAX_PROBES = 3;
+    private static final int MAX_SEND_FAILURES = 3;
+
+    private final UdpServer server;
+    private final OnionToOnionParser parser;
+    private final int mtu;
+    private final Duration probeInterval;
+    private final Duration ttl;
+    private final Logger logger;
+
+    private final Map<InetSocketAddress, Negotiation> negotiations = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, PendingBundle> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new bundler.
+     *
+     * @param server The server used to send datagrams.
+     * @param parser The parser used to build bundles.
+     * @param mtu The maximal size of a bundle datagram. 0 disables bundling, i.e. all cells are sent separately and
+     *            probes of neighbors are not acknowledged.
+     */
+    public CellBundler(UdpServer server, OnionToOnionParser parser, int mtu) {
+        this(server, parser, mtu, PROBE_INTERVAL, NEGOTIATION_TTL);
+    }
+
+    /**
+     * Create a new bundler with custom negotiation timing.
+     *
+     * @param server The server used to send datagrams.
+     * @param parser The parser used to build bundles.
+     * @param mtu The maximal size of a bundle datagram. 0 disables bundling, i.e. all cells are sent separately and
+     *            probes of neighbors are not acknowledged.
+     * @param probeInterval The time to wait for an acknowledgement before a probe is repeated.
+     * @param ttl The time the outcome of a negotiation with a neighbor is kept.
+     */
+    public CellBundler(UdpServer server, OnionToOnionParser parser, int mtu, Duration probeInterval, Duration ttl) {
+        this.server = server;
+        this.parser = parser;
+        this.mtu = mtu;
+        this.probeInterval = probeInterval;
+        this.ttl = ttl;
+        this.logger = LogManager.getLogger(CellBundler.class);
+    }
+
+    /**
+     * Check if bundling is enabled on this peer.
+     *
+     * @return True if bundles are sent and accepted.
+     */
+    public boolean isEnabled() {
+        return this.mtu > 0;
+    }
+
+    /**
+     * Send a transport cell to a neighbor, bundling it with other cells if the neighbor supports it.
+     *
+     * @param target The neighbor to send the cell to.
+     * @param cell The transport cell.
+     * @throws IOException If the cell cannot be sent.
+     */
+    public void send(InetSocketAddress target, ParsedMessage cell) throws IOException {
+        if(!useBundles(target)) {
+            this.server.send(target, cell);
+            return;
+        }
+
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(cell.getSize() & 0xFFFF);
+        try {
+            cell.writeTo(buffer);
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+        enqueue(target, buffer);
+    }
+
+    /**
+     * Send a serialized transport cell to a neighbor, bundling it with other cells if the neighbor supports it.
+     * The buffer is released by this method, also in case of an error.
+     *
+     * @param target The neighbor to send the cell to.
+     * @param cell The buffer containing the serialized transport cell.
+     * @throws IOException If the cell cannot be sent.
+     */
+    public void send(InetSocketAddress target, ByteBuf cell) throws IOException {
+        if(!useBundles(target)) {
+            this.server.send(target, cell);
+            return;
+        }
+        enqueue(target, cell);
+    }
+
+    /**
+     * Handle a bundle without cells received from a neighbor, i.e. a probe or its acknowledgement.
+     *
+     * @param bundle The received bundle.
+     * @param sender The neighbor that sent the bundle.
+     */
+    public void handleNegotiation(OnionTunnelBundleParsedMessage bundle, InetSocketAddress sender) {
+        if(!isEnabled())
+            return;
+
+        if(bundle.isProbe()) {
+            this.logger.debug("Neighbor " + sender + " supports cell bundles, acknowledging its probe.");
+            confirm(sender, this.negotiations.computeIfAbsent(sender, t -> new Negotiation()));
+            sendNegotiation(sender, OnionTunnelBundleParsedMessage.FLAG_ACK);
+        } else if(bundle.isAck()) {
+            Negotiation negotiation = this.negotiations.get(sender);
+            if(negotiation == null) {
+                this.logger.debug("Ignoring acknowledgement of " + sender + " we did not probe.");
+                return;
+            }
+            this.logger.debug("Neighbor " + sender + " acknowledged our probe, bundling cells from now on.");
+            confirm(sender, negotiation);
+        }
+    }
+
+    /**
+     * Check if cells to the given neighbor are bundled and probe the neighbor if we did not ask it before or the
+     * outcome of the last negotiation expired.
+     *
+     * @param target The neighbor a cell is sent to.
+     * @return True if the neighbor accepts bundles.
+     */
+    private boolean useBundles(InetSocketAddress target) {
+        if(!isEnabled())
+            return false;
+        Negotiation negotiation = this.negotiations.get(target);
+        if(negotiation == null) {
+            Negotiation created = new Negotiation();
+            negotiation = this.negotiations.putIfAbsent(target, created);
+            if(negotiation == null) {
+                synchronized (created) {
+                    probe(target, created);
+                }
+                return false;
+            }
+        }
+        synchronized (negotiation) {
+            return negotiation.state == NegotiationState.CAPABLE;
+        }
+    }
+
+    /**
+     * Check if cells to the given neighbor are currently bundled.
+     *
+     * @param target The neighbor.
+     * @return True if the neighbor acknowledged bundling and the negotiation did not expire yet.
+     */
+    boolean isBundling(InetSocketAddress target) {
+        Negotiation negotiation = this.negotiations.get(target);
+        if(negotiation == null)
+            return false;
+        synchronized (negotiation) {
+            return negotiation.state == NegotiationState.CAPABLE;
+        }
+    }
+
+    /**
+     * Get the number of neighbors bundling is negotiated with or whose negotiation outcome is kept.
+     *
+     * @return The number of neighbors.
+     */
+    int getNegotiationCount() {
+        return this.negotiations.size();
+    }
+
+    /**
+     * Send a probe to a neighbor and check for its acknowledgement after the probe interval.
+     * Has to be called while holding the lock of the negotiation.
+     *
+     * @param target The neighbor.
+     * @param negotiation The negotiation with the neighbor.
+     */
+    private void probe(InetSocketAddress target, Negotiation negotiation) {
+        negotiation.probes++;
+        sendNegotiation(target, OnionTunnelBundleParsedMessage.FLAG_PROBE);
+        schedule(target, negotiation, this.probeInterval);
+    }
+
+    /**
+     * Start bundling cells for a neighbor that acknowledged bundling or probed us.
+     *
+     * @param target The neighbor.
+     * @param negotiation The negotiation with the neighbor.
+     */
+    private void confirm(InetSocketAddress target, Negotiation negotiation) {
+        synchronized (negotiation) {
+            if(negotiation.forgotten)
+                return;
+            negotiation.state = NegotiationState.CAPABLE;
+            negotiation.failures = 0;
+            expireLater(target, negotiation);
+        }
+    }
+
+    /**
+     * Keep the current outcome of a negotiation for the TTL, forgetting it afterwards.
+     * Has to be called while holding the lock of the negotiation.
+     *
+     * @param target The neighbor.
+     * @param negotiation The negotiation with the neighbor.
+     */
+    private void expireLater(InetSocketAddress target, Negotiation negotiation) {
+        negotiation.expires = System.nanoTime() + this.ttl.toNanos();
+        schedule(target, negotiation, this.ttl);
+    }
+
+    /**
+     * Schedule checking a negotiation, forgetting it if this is not possible so the next cell negotiates again.
+     * Has to be called while holding the lock of the negotiation.
+     *
+     * @param target The neighbor.
+     * @param negotiation The negotiation with the neighbor.
+     * @param delay The time until the negotiation is checked.
+     */
+    private void schedule(InetSocketAddress target, Negotiation negotiation, Duration delay) {
+        try {
+            this.server.schedule(target, () -> check(target, negotiation), delay.toMillis());
+        } catch (IOException e) {
+            this.logger.warn("Unable to schedule negotiating cell bundling with " + target + ": " + e.getMessage());
+            forget(target, negotiation);
+        }
+    }
+
+    /**
+     * Timer task repeating an unanswered probe and expiring the outcome of a negotiation.
+     *
+     * @param target The neighbor.
+     * @param negotiation The negotiation with the neighbor.
+     */
+    private void check(InetSocketAddress target, Negotiation negotiation) {
+        synchronized (negotiation) {
+            if(negotiation.forgotten)
+                return;
+            if(negotiation.state == NegotiationState.PROBING) {
+                if(negotiation.probes < MAX_PROBES) {
+                    probe(target, negotiation);
+                } else {
+                    this.logger.debug("Neighbor " + target + " did not acknowledge " + negotiation.probes + " probe(s), sending plain cells.");
+                    negotiation.state = NegotiationState.INCAPABLE;
+                    expireLater(target, negotiation);
+                }
+            } else if(System.nanoTime() - negotiation.expires >= 0) {
+                forget(target, negotiation); // checks scheduled before the outcome was refreshed do not get here
+            }
+        }
+    }
+
+    /**
+     * Forget the negotiation with a neighbor, so the next cell to it negotiates again.
+     * Has to be called while holding the lock of the negotiation.
+     *
+     * @param target The neighbor.
+     * @param negotiation The negotiation with the neighbor.
+     */
+    private void forget(InetSocketAddress target, Negotiation negotiation) {
+        negotiation.forgotten = true;
+        negotiation.state = NegotiationState.INCAPABLE;
+        this.negotiations.remove(target, negotiation);
+    }
+
+    /**
+     * Count the outcome of sending a bundle to a neighbor and forget a neighbor that repeatedly cannot be sent to.
+     *
+     * @param target The neighbor.
+     * @param success True if the bundle was sent.
+     */
+    private void countSend(InetSocketAddress target, boolean success) {
+        Negotiation negotiation = this.negotiations.get(target);
+        if(negotiation == null)
+            return;
+        synchronized (negotiation) {
+            if(success) {
+                negotiation.failures = 0;
+            } else if(++negotiation.failures >= MAX_SEND_FAILURES) {
+                this.logger.warn("Failed to send " + negotiation.failures + " bundles to " + target + ", negotiating again.");
+                forget(target, negotiation);
+            }
+        }
+    }
+
+    /**
+     * Send a bundle without cells used to negotiate bundling with a neighbor.
+     *
+     * @param target The neighbor.
+     * @param flags The flags of the bundle.
+     */
+    private void sendNegotiation(InetSocketAddress target, byte flags) {
+        try {
+            this.server.send(target, this.parser.buildOnionTunnelBundleMsg(flags, Collections.emptyList()));
+        } catch (ParsingException | IOException e) {
+            this.logger.warn("Unable to negotiate cell bundling with " + target + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add a cell to the pending bundle of a neighbor. Sends the pending bundle first if the cell does not fit into it
+     * and schedules sending the bundle if the cell is the first one.
+     *
+     * @param target The neighbor.
+     * @param cell The serialized cell. Owned by the bundler from now on.
+     * @throws IOException If the bundle cannot be scheduled.
+     */
+    private void enqueue(InetSocketAddress target, ByteBuf cell) throws IOException {
+        List<ByteBuf> full = null;
+        boolean first;
+        while(true) {
+            PendingBundle bundle = this.pending.computeIfAbsent(target, t -> new PendingBundle());
+            synchronized (bundle) {
+                if(bundle.retired)
+                    continue; // flushed and forgotten in the meantime, use a fresh one
+                if(bundle.size + cell.readableBytes() > this.mtu && !bundle.cells.isEmpty()) {
+                    full = bundle.cells;
+                    bundle.cells = new ArrayList<>();
+                    bundle.size = OnionTunnelBundleParsedMessage.HEADER_SIZE;
+                }
+                first = bundle.cells.isEmpty();
+                bundle.cells.add(cell);
+                bundle.size += cell.readableBytes();
+                break;
+            }
+        }
+
+        if(full != null)
+            sendBundle(target, full);
+        if(first) {
+            try {
+                this.server.execute(target, () -> flush(target));
+            } catch (IOException e) {
+                flush(target);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Send all cells pending for a neighbor and forget the neighbor until the next cell is queued for it.
+     *
+     * @param target The neighbor.
+     */
+    private void flush(InetSocketAddress target) {
+        PendingBundle bundle = this.pending.get(target);
+        if(bundle == null)
+            return;
+
+        List<ByteBuf> cells;
+        synchronized (bundle) {
+            cells = bundle.cells;
+            bundle.cells = new ArrayList<>();
+            bundle.size = OnionTunnelBundleParsedMessage.HEADER_SIZE;
+            bundle.retired = true;
+            this.pending.remove(target, bundle);
+        }
+        if(!cells.isEmpty())
+            sendBundle(target, cells);
+    }
+
+    /**
+     * Get the number of neighbors with cells waiting to be sent.
+     *
+     * @return The number of neighbors.
+     */
+    int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * Send the given cells to a neighbor, as a plain cell if there is only one. Releases all cells.
+     *
+     * @param target The neighbor.
+     * @param cells The serialized cells.
+     */
+    private void sendBundle(InetSocketAddress target, List<ByteBuf> cells) {
+        try {
+            if(cells.size() == 1) {
+                this.server.send(target, cells.remove(0));
+            } else {
+                this.server.send(target, this.parser.buildOnionTunnelBundleMsg((byte)0, cells));
+            }
+            countSend(target, true);
+        } catch (ParsingException | IOException e) {
+            this.logger.warn("Unable to send " + cells.size() + " bundled cell(s) to " + target + ": " + e.getMessage());
+            countSend(target, false);
+        } finally {
+            for(ByteBuf cell : cells) {
+                cell.release();
+            }
+        }
+    }
+
+    /**
+     * States of the negotiation with a neighbor.
+     */
+    private enum NegotiationState {
+        PROBING, CAPABLE, INCAPABLE
+    }
+
+    /**
+     * Negotiation of bundling with a single neighbor.
+     */
+    private static class Negotiation {
+        private NegotiationState state = NegotiationState.PROBING;
+        private int probes;
+        private int failures;
+        private long expires;
+        private boolean forgotten;
+    }
+
+    /**
+     * Cells collected for a single neighbor.
+     */
+    private static class PendingBundle {
+        private List<ByteBuf> cells = new ArrayList<>();
+        private int size = OnionTunnelBundleParsedMessage.HEADER_SIZE;
+        private boolean retired;
+    }
+}
@@ -0,0 +1,165 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.interfaces.authentication.AsyncAuthenticationInterface;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterface;
+import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs1ParsedMessage;
+import de.tum.in.net.group17.onion.util.TimeoutService;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Keeps session handshakes with peers we are about to extend a tunnel to, so the extension does not have to wait for
+ * the Onion Auth module before it can send the ONION TUNNEL INIT.
+ * Handshakes are started in the background once a peer is known, e.g. the destination of a tunnel, and handed out at
+ * most once. Handshakes that are not taken in time are expired and their sessions closed.
+ */
+public class HandshakePool {
+    private final AuthenticationInterface authInterface;
+    private final TimeoutService timeouts;
+    private final int capacity;
+    private final Duration ttl;
+    private final Map<String, CompletableFuture<AuthSessionHs1ParsedMessage>> handshakes;
+    private ExecutorService starter;
+    private final Logger logger;
+
+    /**
+     * Create a new pool.
+     *
+     * @param authInterface The interface to the Onion Auth module starting the sessions.
+     * @param timeouts The service expiring handshakes that are not taken in time.
+     * @param capacity The maximal number of prepared handshakes. Zero disables the pool.
+     * @param ttl The time a prepared handshake is kept.
+     */
+    public HandshakePool(AuthenticationInterface authInterface, TimeoutService timeouts, int capacity, Duration ttl) {
+        this.logger = LogManager.getLogger(OnionInterface.class);
+        this.authInterface = authInterface;
+        this.timeouts = timeouts;
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.handshakes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Start a handshake with the given peer in the background unless there is one already or the pool is full.
+     *
+     * @param peer The peer we are going to extend a tunnel to.
+     */
+    public void prepare(Peer peer) {
+        if(this.handshakes.size() >= this.capacity)
+            return;
+
+        CompletableFuture<AuthSessionHs1ParsedMessage> handshake = new CompletableFuture<>();
+        if(this.handshakes.putIfAbsent(peer.getId(), handshake) != null)
+            return;
+
+        this.logger.debug("Preparing session handshake with peer " + peer.getIpAddress());
+        start(peer).whenComplete((hs1, error) -> {
+            if(error != null) {
+                this.logger.warn("Unable to prepare session handshake: " + error.getMessage());
+                this.handshakes.remove(peer.getId(), handshake);
+                handshake.completeExceptionally(error);
+            } else {
+                handshake.complete(hs1);
+            }
+        });
+        this.timeouts.schedule(() -> {
+            if(this.handshakes.remove(peer.getId(), handshake))
+                close(handshake);
+        }, this.ttl);
+    }
+
+    /**
+     * Close the prepared handshake with the given peer if it has not been taken, e.g. because the tunnel it was
+     * prepared for will not be built.
+     *
+     * @param peer The peer.
+     */
+    public void discard(Peer peer) {
+        CompletableFuture<AuthSessionHs1ParsedMessage> handshake = this.handshakes.remove(peer.getId());
+        if(handshake != null)
+            close(handshake);
+    }
+
+    /**
+     * Take the prepared handshake with the given peer, waiting for it if it has not completed yet.
+     *
+     * @param peer The peer we extend a tunnel to.
+     *
+     * @return The first handshake message of the session or null if there is no prepared handshake for the peer.
+     *
+     * @throws InterruptedException If we were interrupted while waiting for the handshake.
+     */
+    public AuthSessionHs1ParsedMessage take(Peer peer) throws InterruptedException {
+        CompletableFuture<AuthSessionHs1ParsedMessage> handshake = this.handshakes.remove(peer.getId());
+        if(handshake == null)
+            return null;
+
+        try {
+            return handshake.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of prepared handshakes not taken yet.
+     *
+     * @return The number of prepared handshakes.
+     */
+    public int getPrepared() {
+        return this.handshakes.size();
+    }
+
+    /**
+     * Start a session with the peer without blocking the caller.
+     *
+     * @param peer The peer.
+     *
+     * @return A future completed with the first handshake message.
+     */
+    private CompletableFuture<AuthSessionHs1ParsedMessage> start(Peer peer) {
+        if(this.authInterface instanceof AsyncAuthenticationInterface)
+            return ((AsyncAuthenticationInterface)this.authInterface).startSessionAsync(peer);
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.authInterface.startSession(peer);
+            } catch (Throwable e) { // AuthException is no Exception
+                throw new CompletionException(e);
+            }
+        }, getStarter());
+    }
+
+    /**
+     * Get the thread starting sessions with an authentication interface that only offers blocking calls.
+     *
+     * @return The executor.
+     */
+    private synchronized ExecutorService getStarter() {
+        if(this.starter == null)
+            this.starter = Executors.newSingleThreadExecutor(new DefaultThreadFactory("handshake-pool", true));
+        return this.starter;
+    }
+
+    /**
+     * Close the session of a handshake that has not been taken.
+     *
+     * @param handshake The handshake.
+     */
+    private void close(CompletableFuture<AuthSessionHs1ParsedMessage> handshake) {
+        handshake.thenAccept(hs1 -> {
+            try {
+                this.authInterface.closeSession(hs1.getSessionId());
+            } catch (ParsingException e) {
+                this.logger.warn("Unable to close unused session " + hs1.getSessionId() + ": " + e.getMessage());
+            }
+        });
+    }
+}
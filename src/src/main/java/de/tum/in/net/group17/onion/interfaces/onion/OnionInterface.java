@@ -39,6 +39,21 @@ public interface OnionInterface {
      */
     void setSegments(Map<Lid, TunnelSegment> segments);
 
+    /**
+     * Start a session handshake with a peer in the background, e.g. with the destination of a tunnel that is going to
+     * be built. A later extension of a tunnel to this peer uses the prepared handshake instead of waiting for one.
+     *
+     * @param peer The peer we are going to extend a tunnel to.
+     */
+    void prepareHandshake(Peer peer);
+
+    /**
+     * Close the prepared handshake with a peer that will not be extended to, e.g. because building the tunnel failed.
+     *
+     * @param peer The peer a handshake has been prepared for.
+     */
+    void discardHandshake(Peer peer);
+
     /**
      * Extend the given tunnel by contacting the new peer and adding a segment to the tunnel in case of success.
      *
@@ -53,6 +68,7 @@ public interface OnionInterface {
 
     /**
      * Orders the onion module to destroy a tunnel with a given ID.
+     * The teardown messages for the hops are sent with a spacing in the background.
      *
      *
      * @param tunnelId The ID of the tunnel to destroy.
@@ -83,6 +99,8 @@ public interface OnionInterface {
 
     /**
      * Send the established message type over the given tunnel.
+     * Returns without waiting, but further messages to the first hop of the tunnel are held back for a short time to
+     * let the destination process the message.
      *
      * @param tunnel The tunnel to send the established message over.
      *
@@ -100,4 +118,12 @@ public interface OnionInterface {
      * @throws OnionException On any error during tunnel extension. Use OnionException.getMessage for further information.
      */
     void sendEstablished(Tunnel newTunnel, Tunnel oldTunnel) throws OnionException;
+
+    /**
+     * Get a summary of the load of the P2P message processing, i.e. queue depth and latency of the ingress lanes and
+     * the number of messages shed per message type.
+     *
+     * @return A human readable summary.
+     */
+    String getStatistics();
 }
@@ -2,11 +2,12 @@ package de.tum.in.net.group17.onion.interfaces.onion;
 
 import com.google.inject.Inject;
 import de.tum.in.net.group17.onion.config.ConfigurationProvider;
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
 import de.tum.in.net.group17.onion.interfaces.UdpServer;
+import de.tum.in.net.group17.onion.interfaces.authentication.AsyncAuthenticationInterface;
 import de.tum.in.net.group17.onion.interfaces.authentication.AuthException;
 import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterface;
 import de.tum.in.net.group17.onion.model.*;
-import de.tum.in.net.group17.onion.model.results.RequestResult;
 import de.tum.in.net.group17.onion.parser.MessageType;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
@@ -15,7 +16,10 @@ import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs2ParsedMes
 import de.tum.in.net.group17.onion.parser.onion2onion.*;
 import de.tum.in.net.group17.onion.parser.onionapi.OnionCoverParsedMessage;
 import de.tum.in.net.group17.onion.parser.onionapi.OnionTunnelDataParsedMessage;
+import de.tum.in.net.group17.onion.util.DropPolicy;
+import de.tum.in.net.group17.onion.util.KeyedSerialExecutor;
 import de.tum.in.net.group17.onion.util.LidFingerprinting;
+import de.tum.in.net.group17.onion.util.TimeoutService;
 import io.netty.buffer.ByteBuf;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,13 +27,30 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Implementation of the Onion to Onion interface via UDP.
  * Created by Christoph Rudolf on 21.06.17.
  */
 public class OnionInterfaceImpl implements OnionInterface {
+    /**
+     * Time to give the hops of a tunnel to process a teardown or established message before the next message is
+     * sent to the first hop.
+     */
+    private static final long CONTROL_SPACING_MILLIS = 333;
+
+    /**
+     * Time a prepared session handshake is kept before its session is closed.
+     */
+    private static final Duration HANDSHAKE_TTL = Duration.ofSeconds(30);
+
     private ConfigurationProvider config;
     private OnionToOnionParser parser;
     private InetAddress listenAddress;
@@ -37,6 +58,12 @@ public class OnionInterfaceImpl implements OnionInterface {
     private UdpServer server;
     private AuthenticationInterface authInterface;
 
+    /**
+     * Non-blocking view of the auth interface used for the cells of the data plane, so workers do not wait for the
+     * responses of the Onion Auth module. The cells are sent from the completions in the order they arrived.
+     */
+    private AsyncAuthenticationInterface asyncAuth;
+
     /**
      * List of tunnels we have started; complete encryption + FORWARD
      */
@@ -60,7 +87,44 @@ public class OnionInterfaceImpl implements OnionInterface {
      */
     private Map<Lid, Tunnel> toBeDestroyed;
 
-    private Map<Lid, RequestResult> waitForAccept;
+    /**
+     * Pending extensions of our tunnels waiting for the ONION TUNNEL ACCEPT of the new peer, failed by the timeout
+     * service if the accept does not arrive in time.
+     */
+    private Map<Lid, CompletableFuture<OnionTunnelAcceptParsedMessage>> waitForAccept;
+    private TimeoutService timeouts;
+
+    /**
+     * Workers handling received data messages. The I/O threads only decode and route messages to them.
+     * Messages are keyed by their LID, so cells of a tunnel segment are processed in order while different tunnels
+     * are handled concurrently. The queue is bounded and sheds messages according to the configured drop policy.
+     */
+    private KeyedSerialExecutor dataLane;
+
+    /**
+     * Separate workers for control messages building tunnels, so a flood of data cells does not delay our handshakes.
+     */
+    private KeyedSerialExecutor controlLane;
+
+    /**
+     * Bundles transport cells relayed to the same neighbor.
+     */
+    private CellBundler bundler;
+
+    /**
+     * Sends teardown and established messages with a spacing per next hop, giving the hops time to process them.
+     */
+    private PacedSendScheduler pacer;
+
+    /**
+     * Session handshakes started ahead of tunnel extensions.
+     */
+    private HandshakePool handshakes;
+
+    /**
+     * Number of received messages dropped by the ingress queues, per message type.
+     */
+    private Map<MessageType, LongAdder> shedCounts;
     private Logger logger;
     private OnionCallback orchestratorCallback;
 
@@ -71,19 +135,34 @@ public class OnionInterfaceImpl implements OnionInterface {
      * @param config ConfigurationProvider to use.
      * @param parser Parser for Onion P2P messages.
      * @param authInterface Connection to the Onion Auth Module to use.
+     * @param timeouts The service failing tunnel extensions that are not accepted in time.
+     * @param resources The event loops serving the P2P sockets.
      */
     @Inject
-    public OnionInterfaceImpl(ConfigurationProvider config, OnionToOnionParser parser, AuthenticationInterface authInterface) {
+    public OnionInterfaceImpl(ConfigurationProvider config, OnionToOnionParser parser, AuthenticationInterface authInterface,
+                              TimeoutService timeouts, EventLoopResources resources) {
         this.logger = LogManager.getLogger(OnionInterface.class);
         this.parser = parser;
         this.config = config;
-        this.segments = new HashMap<>();
-        this.toBeDestroyed = new HashMap<>();
+        this.segments = new ConcurrentHashMap<>();
+        this.toBeDestroyed = new ConcurrentHashMap<>();
         this.listenAddress = config.getOnionP2PHost();
         this.port = this.config.getOnionP2PPort();
-        this.server = new UdpServer();
+        this.server = new UdpServer(resources, config.getP2PSocketCount(),
+                config.getUdpReceiveBufferMin(), config.getUdpReceiveBufferMax());
+        this.bundler = new CellBundler(this.server, parser, config.getBundleMtu());
+        this.pacer = new PacedSendScheduler(this.server);
         this.authInterface = authInterface;
-        this.waitForAccept = new HashMap<>();
+        this.asyncAuth = BlockingAuthAdapter.of(authInterface);
+        this.waitForAccept = new ConcurrentHashMap<>();
+        this.timeouts = timeouts;
+        this.handshakes = new HandshakePool(authInterface, timeouts, config.getHandshakePoolSize(), HANDSHAKE_TTL);
+        int workers = Runtime.getRuntime().availableProcessors();
+        this.dataLane = new KeyedSerialExecutor("onion-p2p", workers, config.getIngressQueueSize(), config.getIngressDropPolicy());
+        this.controlLane = new KeyedSerialExecutor("onion-p2p-control", workers, config.getIngressQueueSize(), DropPolicy.TAIL);
+        resources.register(this.dataLane);
+        resources.register(this.controlLane);
+        this.shedCounts = new ConcurrentHashMap<>();
     }
 
     /**
@@ -105,20 +184,102 @@ public class OnionInterfaceImpl implements OnionInterface {
 
         this.logger.info("Starting to listen for incoming P2P connections on port " + this.port);
         this.server.listen(this.listenAddress, this.port, (ctx, packet) -> {
-            final ByteBuf bb = packet.content();
-            byte[] buf = new byte[bb.readableBytes()];
-            bb.readBytes(buf);
-
             try {
-                ParsedMessage parsed = parser.parseMsg(buf);
-                InetSocketAddress senderSocketAddress = packet.sender();
-                handleReceiving(parsed, senderSocketAddress.getAddress(), (short)senderSocketAddress.getPort());
+                // Unpack bundles of cells sent by neighbors we negotiated bundling with
+                OnionTunnelBundleParsedMessage bundle = parser.parseBundle(packet.content());
+                if(bundle != null) {
+                    if(bundle.getCells().isEmpty()) {
+                        this.bundler.handleNegotiation(bundle, packet.sender());
+                    }
+                    for(ByteBuf cell : bundle.getCells()) {
+                        receive(cell, packet.sender());
+                    }
+                } else {
+                    receive(packet.content(), packet.sender());
+                }
             } catch (ParsingException e) {
                 logger.warn("Received invalid message over Onion P2P interface: " + e.getMessage());
             }
         });
     }
 
+    /**
+     * Decode a single received message and route it to the worker handling it.
+     *
+     * @param bb The buffer containing the message. Released by the caller after this method returns.
+     * @param senderSocketAddress The neighbor that sent the message.
+     * @throws ParsingException If the message is invalid.
+     */
+    private void receive(final ByteBuf bb, InetSocketAddress senderSocketAddress) throws ParsingException {
+        // Cells travelling backwards through a tunnel we are an intermediate hop for are forwarded in place
+        OnionTransportCell cell = parser.parseTransportCell(bb);
+        if(cell != null) {
+            TunnelSegment segment = this.segments.get(cell.getLid());
+            if(segment != null && segment.getDirection() == Direction.BACKWARD) {
+                // The receive buffer is released after the read, keep it until the cell is forwarded
+                bb.retain();
+                boolean queued = this.dataLane.trySubmit(cell.getLid(), () -> forwardTransportCell(cell, segment, bb));
+                if(!queued) {
+                    bb.release();
+                    shed(MessageType.ONION_TUNNEL_TRANSPORT);
+                }
+                return;
+            }
+        }
+
+        byte[] buf = new byte[bb.readableBytes()];
+        bb.readBytes(buf);
+        ParsedMessage parsed = parser.parseMsg(buf);
+        // Handling may block on Onion Auth, keep it away from the I/O thread
+        Object key = parsed instanceof OnionToOnionParsedMessage ? ((OnionToOnionParsedMessage)parsed).getLid() : senderSocketAddress;
+        KeyedSerialExecutor lane = isControlMessage(parsed) ? this.controlLane : this.dataLane;
+        boolean queued = lane.trySubmit(key, () ->
+                handleReceiving(parsed, senderSocketAddress.getAddress(), (short)senderSocketAddress.getPort()));
+        if(!queued) {
+            shed(parsed.getType());
+        }
+    }
+
+    /**
+     * Forward a transport cell received on a BACKWARD segment to our predecessor without parsing and serializing it.
+     * The cell is encrypted once, its LID is rewritten in place and the receive buffer is reused for sending once the
+     * Onion Auth module answered, in the order the cells of the LID arrived.
+     *
+     * @param cell The cell that is still located in the receive buffer.
+     * @param segment The BACKWARD segment the cell was received on.
+     * @param bb The receive buffer retained for the cell, released once the cell has been forwarded.
+     */
+    private void forwardTransportCell(OnionTransportCell cell, TunnelSegment segment, ByteBuf bb) {
+        this.logger.debug("Forwarding ONION_TUNNEL_TRANSPORT cell backwards through the tunnel.");
+        TunnelSegment other = segment.getOther();
+        if(other == null) {
+            this.logger.error("Unable to forward transport message backwards through the tunnel due to missing segment.");
+            bb.release();
+            return;
+        }
+
+        inOrder(cell.getLid(), this.asyncAuth.encryptAsync(cell.toParsedMessage(), other, true), encrypted -> {
+            this.bundler.send(other.getNextHop(), cell.rewrite(other.getLid(), encrypted.getData()));
+            segment.updateLastDataSeen();
+        }).whenComplete((forwarded, error) -> {
+            bb.release();
+            if(error != null)
+                logTransportError(error);
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public String getStatistics() {
+        StringBuilder shed = new StringBuilder();
+        this.shedCounts.forEach((type, count) -> shed.append(shed.length() == 0 ? "" : ", ").append(type).append('=').append(count.sum()));
+        return this.controlLane + "; " + this.dataLane + "; shed: {" + shed + "}; udp: drops="
+                + this.server.getReceiveDrops() + ", rcvbuf=" + this.server.getReceiveBufferSize() + "; paced: " + this.pacer.getQueuedCount()
+                + "; prepared handshakes: " + this.handshakes.getPrepared() + "; " + this.authInterface;
+    }
+
     /**
      * @inheritDoc
      */
@@ -127,6 +288,22 @@ public class OnionInterfaceImpl implements OnionInterface {
         this.segments = segments;
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void prepareHandshake(Peer peer) {
+        this.handshakes.prepare(peer);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void discardHandshake(Peer peer) {
+        this.handshakes.discard(peer);
+    }
+
     /**
      * @inheritDoc
      */
@@ -134,12 +311,15 @@ public class OnionInterfaceImpl implements OnionInterface {
     public void extendTunnel(Tunnel tunnel, Peer peer) throws OnionException, InterruptedException {
         TunnelSegment newSegment = new TunnelSegment(LidImpl.createRandomLid(), peer, Direction.FORWARD);
 
-        // Create the init message
+        // Create the init message, offering the cell sizes supported by us and all peers of the tunnel so far
+        short cellSizes = (short)(this.config.getCellSizes() & tunnel.getCellSizes());
         ParsedMessage msg;
         try {
-            AuthSessionHs1ParsedMessage hs1 = this.authInterface.startSession(peer);
+            AuthSessionHs1ParsedMessage hs1 = this.handshakes.take(peer);
+            if(hs1 == null)
+                hs1 = this.authInterface.startSession(peer);
             newSegment.setSessionId(hs1.getSessionId());
-            msg = this.parser.buildOnionTunnelInitMsg(newSegment.getLid().serialize(), hs1.getPayload());
+            msg = this.parser.buildOnionTunnelInitMsg(newSegment.getLid().serialize(), cellSizes, hs1.getPayload());
         } catch (InterruptedException e) {
             throw new OnionException("Interrupted during session start build: " + e.getMessage());
         } catch (ParsingException e) {
@@ -148,6 +328,48 @@ public class OnionInterfaceImpl implements OnionInterface {
             throw new OnionException("Error from the authentication module: " + e.getMessage());
         }
 
+        // Register for the accept message before sending, quick responses would be dropped otherwise
+        CompletableFuture<OnionTunnelAcceptParsedMessage> pending = new CompletableFuture<>();
+        this.waitForAccept.put(newSegment.getLid(), pending);
+        this.timeouts.expire(pending, this.config.getAcceptTimeout(),
+                () -> new OnionException("Error while extending the tunnel: Did not receive accept message in time!"));
+        pending.whenComplete((accept, error) -> this.waitForAccept.remove(newSegment.getLid()));
+
+        OnionTunnelAcceptParsedMessage acceptMsg;
+        try {
+            sendTunnelInit(tunnel, peer, newSegment, msg);
+            acceptMsg = pending.get();
+        } catch (ExecutionException e) {
+            throw (OnionException) e.getCause();
+        } finally {
+            pending.cancel(false);
+        }
+
+        // Continue with accept message
+        try {
+            this.authInterface.forwardIncomingHandshake2(newSegment.getSessionId(), acceptMsg.getAuthPayload());
+        } catch (ParsingException e) {
+            throw new OnionException("Error building the packet to forward the finalizing session handshake: " + e.getMessage());
+        }
+
+        // Advance the tunnel model by one segment if everything has been successful
+        tunnel.setCellSizes((short)(cellSizes & acceptMsg.getCellSizes()));
+        tunnel.addSegment(newSegment);
+    }
+
+    /**
+     * Send the ONION TUNNEL INIT message for a new segment either directly to the new peer or through the existing
+     * tunnel.
+     *
+     * @param tunnel The tunnel that is extended.
+     * @param peer The new peer in the tunnel.
+     * @param newSegment The new segment towards the peer.
+     * @param msg The ONION TUNNEL INIT message.
+     * @throws OnionException If the message could not be built or sent.
+     * @throws InterruptedException If we were interrupted while waiting for the encryption.
+     */
+    private void sendTunnelInit(Tunnel tunnel, Peer peer, TunnelSegment newSegment, ParsedMessage msg)
+            throws OnionException, InterruptedException {
         // Create a relay-init message (use the currently last lid as incoming lid)
         // Wrap the relay-init message into a transport message for the first hop if there are already peers in the tunnel
         // Send the message to the new hop or the first in an existing tunnel accordingly
@@ -166,7 +388,7 @@ public class OnionInterfaceImpl implements OnionInterface {
                 msg = this.authInterface.encrypt((OnionTunnelTransportParsedMessage)msg, tunnel.getSegments());
                 try {
                     this.logger.debug("Sending Tunnel Relay encrypted " + tunnel.getSegments().size() + " times.");
-                    this.server.send(firstSegment.getNextAddress(), firstSegment.getNextPort(), msg.serialize());
+                    this.server.send(firstSegment.getNextHop(), msg);
                 } catch (IOException e) {
                     throw new OnionException("Error sending the packet to initiate the a tunnel: " + e.getMessage());
                 }
@@ -184,27 +406,29 @@ public class OnionInterfaceImpl implements OnionInterface {
             }
         }
 
-        // Wait for a response being there or timeout
-        this.waitForAccept.put(newSegment.getLid(), new RequestResult());
-        synchronized (this.waitForAccept.get(newSegment.getLid())) {
-            this.waitForAccept.get(newSegment.getLid()).wait(5000);
-        }
+    }
 
-        RequestResult res = this.waitForAccept.remove(newSegment.getLid());
-        if (res != null && res.isReturned()) {
-            // Continue with accept message (if there is one)
-            OnionTunnelAcceptParsedMessage acceptMsg = (OnionTunnelAcceptParsedMessage) res.getResult();
-            try {
-                this.authInterface.forwardIncomingHandshake2(newSegment.getSessionId(), acceptMsg.getAuthPayload());
-            } catch (ParsingException e) {
-                throw new OnionException("Error building the packet to forward the finalizing session handshake: " + e.getMessage());
-            }
+    /**
+     * Check if a received message is used to build tunnels and belongs into the control lane.
+     * Relay, teardown and established messages are only visible after decryption, so they travel within transport
+     * cells in the data lane.
+     *
+     * @param parsedMessage The received message.
+     *
+     * @return True if the message is a control message.
+     */
+    private boolean isControlMessage(ParsedMessage parsedMessage) {
+        return parsedMessage.getType() != MessageType.ONION_TUNNEL_TRANSPORT;
+    }
 
-            // Advance the tunnel model by one segment if everything has been successful
-            tunnel.addSegment(newSegment);
-        } else {
-            throw new OnionException("Error while extending the tunnel: Did not receive accept message in time!");
-        }
+    /**
+     * Count a received message dropped as the ingress queue is congested.
+     *
+     * @param type The type of the dropped message.
+     */
+    private void shed(MessageType type) {
+        this.shedCounts.computeIfAbsent(type, t -> new LongAdder()).increment();
+        this.logger.debug("Ingress queue congested, dropping received " + type + " message.");
     }
 
     /**
@@ -235,19 +459,13 @@ public class OnionInterfaceImpl implements OnionInterface {
                 }
                 break;
             case ONION_TUNNEL_TRANSPORT:
-                try {
-                    handleTunnelTransport((OnionTunnelTransportParsedMessage)parsedMessage, senderAddress, senderPort);
-                    handleDestroyedTunnel((OnionToOnionParsedMessage)parsedMessage, senderAddress, senderPort);
-                } catch (InterruptedException e) {
-                    logger.error("Interrupted during transport message decryption: " + e.getMessage());
-                } catch (ParsingException e) {
-                    logger.error("Unable to parse transport message: " + e.getMessage());
-                    // todo: Specification: Teardown in case of an API violation
-                } catch(IOException e) {
-                    this.logger.error("Error during message forwarding, tunnel possibly went down: " + e.getMessage());
-                } catch (AuthException e) {
-                    this.logger.warn("Error during encrypt or decrypt of packet. Dropping the packet!");
-                }
+                OnionTunnelTransportParsedMessage transport = (OnionTunnelTransportParsedMessage)parsedMessage;
+                handleTunnelTransport(transport, senderAddress, senderPort)
+                        .thenCompose(handled -> handleDestroyedTunnel(transport, senderAddress, senderPort))
+                        .whenComplete((handled, error) -> {
+                            if(error != null)
+                                logTransportError(error);
+                        });
                 break;
             case ONION_TUNNEL_TEARDOWN:
                 try {
@@ -260,13 +478,7 @@ public class OnionInterfaceImpl implements OnionInterface {
                 break;
             case ONION_TUNNEL_VOICE:
                 handleTunnelVoice((OnionTunnelVoiceParsedMessage)parsedMessage);
-                try {
-                    handleDestroyedTunnel((OnionToOnionParsedMessage)parsedMessage, senderAddress, senderPort);
-                } catch (ParsingException e) {
-                    this.logger.warn("This is impossible to happen, please send an error report.");
-                } catch (InterruptedException e) {
-                    this.logger.warn("This is impossible to happen, please send an error report.");
-                }
+                handleDestroyedTunnel((OnionToOnionParsedMessage)parsedMessage, senderAddress, senderPort);
                 break;
             case ONION_TUNNEL_ESTABLISHED:
                 handleTunnelEstablished((OnionTunnelEstablishedParsedMessage)parsedMessage);
@@ -292,17 +504,23 @@ public class OnionInterfaceImpl implements OnionInterface {
             logger.debug("INIT results in new session with session ID " + response.getSessionId());
             segment.setSessionId(response.getSessionId());
 
+            // Agree on the largest cell size offered by all previous peers and us, used if we are the endpoint
+            short cellSizes = (short)(parsedMessage.getCellSizes() & this.config.getCellSizes());
+            segment.setCellSize(CellSize.largest(cellSizes));
+
             // build accept message
-            ParsedMessage acceptMsg = this.parser.buildOnionTunnelAcceptMsg(parsedMessage.getLid().serialize(), response.getPayload());
-            this.server.send(senderAddress, senderPort, acceptMsg.serialize());
+            ParsedMessage acceptMsg = this.parser.buildOnionTunnelAcceptMsg(parsedMessage.getLid().serialize(), cellSizes, response.getPayload());
 
-            // if everything went like expected, add the state to this peer's segments list
+            // add the state to this peer's segments list before answering, as the first transport cells are handled
+            // in another lane than this INIT
             this.segments.put(parsedMessage.getLid(), segment);
+            this.server.send(senderAddress, senderPort, acceptMsg.serialize());
         } catch (InterruptedException e) {
             logger.error("Interrupted during session init build: " + e.getMessage());
         } catch (ParsingException e) {
             logger.error("Unable to parse message: " + e.getMessage());
         } catch (IOException e) {
+            this.segments.remove(parsedMessage.getLid());
             logger.error("Unable to send accept message: " + e.getMessage());
         } catch (AuthException e) {
             logger.error("Error from the authentication module: " + e.getMessage());
@@ -320,21 +538,22 @@ public class OnionInterfaceImpl implements OnionInterface {
      * @throws OnionException On any error during message handling. Use OnionException.getMessage() for further information.
      */
     private void handleTunnelAccept(OnionTunnelAcceptParsedMessage msg, InetAddress senderAddress, short senderPort) throws OnionException {
-        if(this.waitForAccept.containsKey(msg.getLid())) {
-            RequestResult res = this.waitForAccept.get(msg.getLid());
-            res.setResult(msg);
-            synchronized (res) {
-                res.notify();
-            }
+        CompletableFuture<OnionTunnelAcceptParsedMessage> res = this.waitForAccept.get(msg.getLid());
+        if(res != null) {
+            res.complete(msg);
         } else if(segments.containsKey(msg.getLid())) { // Intermediate hop + accept => Answer to relay-init
             // The relayHandler sent the init message -> Send accept through the tunnel
             TunnelSegment outgoingSegment = segments.get(msg.getLid());
             TunnelSegment incomingSegment = outgoingSegment.getOther();
             this.logger.debug("Incoming accept in our role as intermediate hop. Matching segments " + outgoingSegment.getLid() + " and " + incomingSegment.getLid());
             try {
-                ParsedMessage relayAnswer = this.parser.buildOnionTunnelTransferMsgPlain(incomingSegment.getLid().serialize(), msg);
+                // the accept carries the handshake of the new hop, which exceeds a small cell for large hostkeys
+                CellSize cellSize = CellSize.fitting(msg.getSize() + OnionTunnelTransportParsedMessage.MAGIC.length);
+                if(cellSize == null)
+                    throw new OnionException("Accept message of the new hop is too large to be relayed.");
+                ParsedMessage relayAnswer = this.parser.buildOnionTunnelTransferMsgPlain(incomingSegment.getLid().serialize(), msg, cellSize);
                 relayAnswer = this.authInterface.encrypt((OnionTunnelTransportParsedMessage)relayAnswer, incomingSegment, false);
-                this.server.send(incomingSegment.getNextAddress(), incomingSegment.getNextPort(), relayAnswer.serialize());
+                this.bundler.send(incomingSegment.getNextHop(), relayAnswer);
             } catch (IOException e) {
                 throw new OnionException("Error sending the packet to initiate the a tunnel: " + e.getMessage());
             } catch (ParsingException e) {
@@ -379,44 +598,47 @@ public class OnionInterfaceImpl implements OnionInterface {
 
     /**
      * Handle an incoming transport message that has to be decrypted at least once.
+     * The message is handled or forwarded once the Onion Auth module answered, in the order the messages of its LID
+     * arrived.
      *
      *
      * @param msg The incoming parsed OnionTunnelTransportParsedMessage message.
      * @param senderAddress InetAddress of the sender of this datagram.
      * @param senderPort The remote port of the sender of this datagram.
      *
-     * @throws IOException If we could not send the transport message to the next hop in the tunnel.
-     * @throws ParsingException If we could not parse the wrapped message.
-     * @throws InterruptedException If we were interrupted while waiting for en-/decryption response.
-     * @throws AuthException If Onion Auth sent an error.
+     * @return A future completed once the message has been handled. Fails with an IOException if we could not send
+     *          the transport message to the next hop in the tunnel, a ParsingException if we could not parse the
+     *          wrapped message and an AuthException if Onion Auth sent an error.
      */
-    private void handleTunnelTransport(OnionTunnelTransportParsedMessage msg, InetAddress senderAddress, short senderPort)
-            throws IOException, ParsingException, InterruptedException, AuthException {
+    private CompletableFuture<Void> handleTunnelTransport(OnionTunnelTransportParsedMessage msg, InetAddress senderAddress, short senderPort) {
         Lid lid = msg.getLid();
 
         // check Lid in TunnelSegment list (case: intermediate hop or receiver)
         TunnelSegment segment = this.segments.get(lid);
         if(segment != null) {
             if(segment.getDirection() == Direction.FORWARD) {
-                msg = this.authInterface.decrypt(msg, segment);
-                if(msg.forMe()) {   // if direction is forward, decrypt and check magic bytes
-                    this.handleReceiving(this.parser.parseMsg(msg.getInnerPacket()), senderAddress, senderPort);   // reinvoke handling for inner packet
-                } else {
-                    // if not for us (magic bytes not matching) replace Lid and forward to successor
-                    msg.setLid(segment.getOther().getLid());
-                    this.server.send(segment.getOther().getNextAddress(), segment.getOther().getNextPort(), msg.serialize());
-                    segment.updateLastDataSeen();
-                }
+                return inOrder(lid, this.asyncAuth.decryptAsync(msg, segment), decrypted -> {
+                    if(decrypted.forMe()) {   // if direction is forward, decrypt and check magic bytes
+                        this.handleReceiving(this.parser.parseMsg(decrypted.getInnerPacket()), senderAddress, senderPort);   // reinvoke handling for inner packet
+                    } else {
+                        // if not for us (magic bytes not matching) replace Lid and forward to successor
+                        decrypted.setLid(segment.getOther().getLid());
+                        this.bundler.send(segment.getOther().getNextHop(), decrypted);
+                        segment.updateLastDataSeen();
+                    }
+                });
             } else if (segment.getDirection() == Direction.BACKWARD) {
                 // if direction is BACKWARD, encrypt once and hand to predecessor
-                msg = this.authInterface.encrypt(msg, segment.getOther(), true);
-                if(segment.getOther() != null) {
-                    msg.setLid(segment.getOther().getLid());
-                    this.server.send(segment.getOther().getNextAddress(), segment.getOther().getNextPort(), msg.serialize());
-                    segment.updateLastDataSeen();
-                } else {
+                TunnelSegment other = segment.getOther();
+                if(other == null) {
                     this.logger.error("Unable to forward transport message backwards through the tunnel due to missing segment.");
+                    return CompletableFuture.completedFuture(null);
                 }
+                return inOrder(lid, this.asyncAuth.encryptAsync(msg, other, true), encrypted -> {
+                    encrypted.setLid(other.getLid());
+                    this.bundler.send(other.getNextHop(), encrypted);
+                    segment.updateLastDataSeen();
+                });
             }
         } else {    // initiator gets message
             Optional<Tunnel> tunnel = this.startedTunnels.values().stream()
@@ -424,12 +646,75 @@ public class OnionInterfaceImpl implements OnionInterface {
                     .findAny();
             if(tunnel.isPresent()) {
                 // decrypt the complete onion as this message is for us
-                this.handleReceiving(this.parser.parseMsg(this.authInterface.decrypt(msg, tunnel.get().getSegments()).getInnerPacket()), senderAddress, senderPort);
-                tunnel.get().getSegments().get(0).updateLastDataSeen();
+                TunnelSegment firstSegment = tunnel.get().getSegments().get(0);
+                return inOrder(lid, this.asyncAuth.decryptAsync(msg, tunnel.get().getSegments()), decrypted -> {
+                    this.handleReceiving(this.parser.parseMsg(decrypted.getInnerPacket()), senderAddress, senderPort);
+                    firstSegment.updateLastDataSeen();
+                });
             } else {
                 logger.warn("Received ONION TUNNEL TRANSPORT message for unknown tunnel!");
             }
         }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Continue handling a message with the response of the Onion Auth module, after all messages of the same LID
+     * that arrived before it.
+     *
+     * @param lid The LID the message arrived with.
+     * @param response The future of the response.
+     * @param continuation Handles the response, e.g. by sending the en- or decrypted message.
+     *
+     * @return A future completed once the continuation ran. Fails with the error of the response or the continuation.
+     */
+    private <T> CompletableFuture<Void> inOrder(Lid lid, CompletableFuture<T> response, Continuation<T> continuation) {
+        CompletableFuture<Void> handled = new CompletableFuture<>();
+        this.dataLane.whenComplete(lid, response, (result, error) -> {
+            if(error != null) {
+                handled.completeExceptionally(error);
+                return;
+            }
+            try {
+                continuation.accept(result);
+                handled.complete(null);
+            } catch (Throwable e) {
+                handled.completeExceptionally(e);
+            }
+        });
+        return handled;
+    }
+
+    /**
+     * Get the error a future failed with.
+     *
+     * @param error The error passed to a dependent of the future.
+     *
+     * @return The error itself, without the CompletionException wrapping it.
+     */
+    private static Throwable unwrap(Throwable error) {
+        if(error instanceof CompletionException && error.getCause() != null)
+            return error.getCause();
+        return error;
+    }
+
+    /**
+     * Log the error a received transport message could not be handled with.
+     *
+     * @param error The error.
+     */
+    private void logTransportError(Throwable error) {
+        error = unwrap(error);
+        if(error instanceof ParsingException) {
+            this.logger.error("Unable to parse transport message: " + error.getMessage());
+            // todo: Specification: Teardown in case of an API violation
+        } else if(error instanceof IOException) {
+            this.logger.error("Error during message forwarding, tunnel possibly went down: " + error.getMessage());
+        } else if(error instanceof AuthException) {
+            this.logger.warn("Error during encrypt or decrypt of packet. Dropping the packet!");
+        } else {
+            this.logger.error("Unable to handle transport message: " + error);
+        }
     }
 
     /**
@@ -487,6 +772,7 @@ public class OnionInterfaceImpl implements OnionInterface {
 
         if(tunnel.isPresent()) {
             this.orchestratorCallback.tunnelData(tunnel.get().getId(), msg.getData());
+            destroySwitchedOutTunnel(tunnel.get().getId());
         } else if(entry.isPresent()) {
             this.orchestratorCallback.tunnelData(entry.get().getKey(), msg.getData());
         } else {
@@ -494,6 +780,28 @@ public class OnionInterfaceImpl implements OnionInterface {
         }
     }
 
+    /**
+     * Tear down the switched out predecessor of a tunnel we started, if there is one.
+     * This is done as soon as the first data arrives on the new tunnel, because the receiver switched to it then.
+     * Control messages received while building the new tunnel (e.g. relayed accepts) must not trigger the teardown.
+     *
+     * @param tunnelId The ID of the tunnel we received data on.
+     */
+    private void destroySwitchedOutTunnel(int tunnelId) {
+        Optional<Map.Entry<Lid, Tunnel>> entry = this.toBeDestroyed.entrySet().stream()
+                .filter(e -> e.getValue().getId() == tunnelId)
+                .findAny();
+        if(entry.isPresent()) {
+            // Note: The first data with a new lid removes the intermediate mapping and issues a teardown on the old tunnel
+            try {
+                this.destroyTunnel(entry.get().getValue());
+                this.toBeDestroyed.remove(entry.get().getKey());
+            } catch (OnionException e) {
+                this.logger.warn("Could not destroy switched out tunnel: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Handle an incoming ONION_TUNNEL_ESTABLISHED message (either contact the superordinate module or conduct a
      * refresh of a tunnel).
@@ -533,42 +841,17 @@ public class OnionInterfaceImpl implements OnionInterface {
      * @param senderAddress InetAddress of the sender of this datagram.
      * @param senderPort The remote port of the sender of this datagram.
      *
-     * @throws ParsingException If we could not build the ONION TUNNEL TEARDOWN message.
-     * @throws InterruptedException If we were interrupted while waiting for decryption response.
+     * @return A future completed once the message has been handled. Fails with a ParsingException if the decrypted
+     *          message is invalid and an AuthException if Onion Auth sent an error.
      */
-    private void handleDestroyedTunnel(OnionToOnionParsedMessage msg, InetAddress senderAddress, short senderPort) throws ParsingException, InterruptedException {
+    private CompletableFuture<Void> handleDestroyedTunnel(OnionToOnionParsedMessage msg, InetAddress senderAddress, short senderPort) {
         // check type
         if(msg.getType() == MessageType.ONION_TUNNEL_TRANSPORT) {
             // check if this LID is part of toBeDestroyed, decrypt and forward it accordingly
             Tunnel tunnel = this.toBeDestroyed.get(msg.getLid());
             if(tunnel != null) {
-                try {
-                    this.handleReceiving(this.parser.parseMsg(this.authInterface.decrypt((OnionTunnelTransportParsedMessage) msg, tunnel.getSegments()).getInnerPacket()), senderAddress, senderPort);
-                } catch (AuthException e) {
-                    this.logger.warn("Error during decrypt of packet received on switched out tunnel. Dropping packet!");
-                }
-            } else { // Received data on a regular tunnel
-                // check if this LID has an old LID associated with it in toBeDestroyed (associated via Tunnel ID)
-
-                // get tunnel ID of incoming Lid
-                Optional<Integer> tunnelId = this.startedTunnels.values().stream()
-                        .filter(t -> !t.getSegments().isEmpty() && t.getSegments().get(0).getLid().equals(msg.getLid()))
-                        .map(t -> t.getId()).findAny();
-
-                if(tunnelId.isPresent()) {  // check for associated destroyed entry
-                    Optional<Map.Entry<Lid, Tunnel>> entry = this.toBeDestroyed.entrySet().stream()
-                            .filter(e -> e.getValue().getId() == tunnelId.get())
-                            .findAny();
-                    if(entry.isPresent()) {
-                        // Note: The first data with a new lid removes the intermediate mapping and issues a teardown on the old tunnel
-                        try {
-                            this.destroyTunnel(entry.get().getValue());
-                            this.toBeDestroyed.remove(entry.get().getKey());
-                        } catch (OnionException e) {
-                            this.logger.warn("Could not destroy switched out tunnel: " + e.getMessage());
-                        }
-                    }
-                }
+                return inOrder(msg.getLid(), this.asyncAuth.decryptAsync((OnionTunnelTransportParsedMessage) msg, tunnel.getSegments()),
+                        decrypted -> this.handleReceiving(this.parser.parseMsg(decrypted.getInnerPacket()), senderAddress, senderPort));
             }
         } else if(msg.getType() == MessageType.ONION_TUNNEL_VOICE) {
             // get the tunnel ID of the LID and transmit this voice packet
@@ -579,6 +862,7 @@ public class OnionInterfaceImpl implements OnionInterface {
         } else {
             this.logger.warn("This is impossible to happen, please send an error report.");
         }
+        return CompletableFuture.completedFuture(null);
     }
 
     /**
@@ -606,6 +890,7 @@ public class OnionInterfaceImpl implements OnionInterface {
 
     /**
      * Destroy a concrete tunnel given by a Tunnel-instance.
+     * The teardown messages are sent and the sessions closed once the Onion Auth module encrypted all of them.
      *
      *
      * @param tunnel The tunnel instance to destroy.
@@ -619,36 +904,50 @@ public class OnionInterfaceImpl implements OnionInterface {
             return; // can be cleaned up without further teardown
         }
         TunnelSegment firstSegment = tunnel.getSegments().get(0);
-        List<ParsedMessage> transportPackets = new ArrayList<>();
+        List<CompletableFuture<OnionTunnelTransportParsedMessage>> transportPackets = new ArrayList<>();
+        List<Short> sessions = new ArrayList<>();
+        boolean built = true;
 
         try {
             for(int i=tunnel.getSegments().size() - 1; i >= 0; i--){
                 TunnelSegment segment = tunnel.getSegments().get(i);
                 ParsedMessage teardownPacket = this.parser.buildOnionTunnelTeardownMsg(segment.getLid().serialize());
                 ParsedMessage transportPacket = this.parser.buildOnionTunnelTransferMsgPlain(firstSegment.getLid().serialize(), teardownPacket);
-                transportPackets.add(this.authInterface.encrypt((OnionTunnelTransportParsedMessage)transportPacket, tunnel.getSegments()));
-
-                // close the session associated with the segment
-                authInterface.closeSession(segment.getSessionId());
+                // encrypt for the hops up to the segment, the list shrinks before the encryption is done
+                transportPackets.add(this.asyncAuth.encryptAsync((OnionTunnelTransportParsedMessage)transportPacket, new ArrayList<>(tunnel.getSegments())));
+                sessions.add(segment.getSessionId());
 
                 // remove the segment
                 tunnel.getSegments().remove(i);
             }
-
-            // send all teardown messages
-            for(ParsedMessage transportPacket : transportPackets) {
-                this.server.send(firstSegment.getNextAddress(), firstSegment.getNextPort(), transportPacket.serialize());
-                Thread.sleep(333);
-            }
         } catch (ParsingException e) {
             this.logger.error("Unable to build required teardown or transport data packet to send out a teardown message: " + e.getMessage());
-        } catch (InterruptedException e) {
-            this.logger.error("Unable to encrypt a message via the authentication module: " + e.getMessage());
-        } catch (IOException e) {
-            this.logger.error("Unable to send message to next peer: " + e.getMessage());
-        } catch (AuthException e) {
-            throw new OnionException("Error during encryption of ONION TUNNEL TEARDOWN message: " + e.getMessage());
+            built = false;
         }
+
+        boolean send = built;
+        CompletableFuture.allOf(transportPackets.toArray(new CompletableFuture[0])).whenComplete((encrypted, error) -> {
+            // close the sessions associated with the segments once they encrypted the teardown messages
+            for(short sessionId : sessions) {
+                try {
+                    this.authInterface.closeSession(sessionId);
+                } catch (ParsingException e) {
+                    this.logger.error("Unable to close session " + sessionId + ": " + e.getMessage());
+                }
+            }
+            if(error != null) {
+                this.logger.error("Error during encryption of ONION TUNNEL TEARDOWN message: " + unwrap(error).getMessage());
+            } else if(send) {
+                // send all teardown messages, the pacer spaces them without blocking us
+                List<ParsedMessage> packets = new ArrayList<>(transportPackets.size());
+                transportPackets.forEach(packet -> packets.add(packet.join()));
+                try {
+                    this.pacer.send(firstSegment.getNextHop(), packets, CONTROL_SPACING_MILLIS);
+                } catch (IOException e) {
+                    this.logger.error("Unable to send message to next peer: " + e.getMessage());
+                }
+            }
+        });
     }
 
     /**
@@ -689,7 +988,8 @@ public class OnionInterfaceImpl implements OnionInterface {
                 ParsedMessage msg = this.parser.buildOnionTunnelEstablishedMsg(tunnel.getSegments().get(tunnel.getSegments().size() - 1).getLid().serialize());
                 ParsedMessage transportPacket = this.parser.buildOnionTunnelTransferMsgPlain(tunnel.getSegments().get(0).getLid().serialize(), msg);
                 transportPacket = this.authInterface.encrypt((OnionTunnelTransportParsedMessage)transportPacket, tunnel.getSegments());
-                this.server.send(tunnel.getSegments().get(0).getNextAddress(), tunnel.getSegments().get(0).getNextPort(), transportPacket.serialize());
+                // hold back further messages to the first hop until the destination had time to process it
+                this.pacer.send(tunnel.getSegments().get(0).getNextHop(), Collections.singletonList(transportPacket), CONTROL_SPACING_MILLIS);
             } catch (ParsingException e) {
                 throw new OnionException("Unable to build established message or transport data packet to send over tunnel: " + e.getMessage());
             } catch (InterruptedException e) {
@@ -718,7 +1018,7 @@ public class OnionInterfaceImpl implements OnionInterface {
                 ParsedMessage msg = this.parser.buildOnionTunnelEstablishedMsg(lastNewTunnelSegment.getLid().serialize(), lastOldTunnelSegment.getLid().serialize());
                 ParsedMessage transportPacket = this.parser.buildOnionTunnelTransferMsgPlain(firstNewTunnelSegment.getLid().serialize(), msg);
                 transportPacket = this.authInterface.encrypt((OnionTunnelTransportParsedMessage)transportPacket, newTunnel.getSegments());
-                this.server.send(firstNewTunnelSegment.getNextAddress(), firstNewTunnelSegment.getNextPort(), transportPacket.serialize());
+                this.pacer.send(firstNewTunnelSegment.getNextHop(), Collections.singletonList(transportPacket), CONTROL_SPACING_MILLIS);
 
                 // Create mapping to be able to handle old incoming data until the receiver switched to the new keys
                 this.toBeDestroyed.put(oldTunnel.getSegments().get(0).getLid(), oldTunnel);
@@ -751,6 +1051,7 @@ public class OnionInterfaceImpl implements OnionInterface {
         Tunnel tunnel = this.startedTunnels.get(tunnelId);
         TunnelSegment firstSegment;
         TunnelSegment lastSegment;
+        CellSize cellSize;
 
         this.logger.debug("Using tunnel " + tunnelId + " to send a voice message!");
         try {
@@ -758,27 +1059,68 @@ public class OnionInterfaceImpl implements OnionInterface {
                 // tunnel started by us
                 firstSegment = tunnel.getSegments().get(0);
                 lastSegment = tunnel.getSegments().get(tunnel.getSegments().size() - 1);
+                cellSize = tunnel.getCellSize();
             } else if(this.incomingTunnels.containsKey(tunnelId) && !this.incomingTunnels.get(tunnelId).getSegments().isEmpty()) {
                 // tunnel we are an endpoint to
                 firstSegment = lastSegment = this.incomingTunnels.get(tunnelId).getSegments().get(0);
+                cellSize = firstSegment.getCellSize();
             } else {
                 this.logger.error("Unable to send data on unknown tunnel with ID: " + tunnelId);
                 return;
             }
 
-            // create the voice messages and handle each one
-            List<ParsedMessage> voicePackets = this.parser.buildOnionTunnelVoiceMsgs(lastSegment.getLid().serialize(), data);
-            for (ParsedMessage voicePacket : voicePackets) {
-                ParsedMessage transportPacket = this.parser.buildOnionTunnelTransferMsgPlain(firstSegment.getLid().serialize(), voicePacket);
-                // encrypt accordingly
-                if(tunnel != null) {
-                    transportPacket = this.authInterface.encrypt((OnionTunnelTransportParsedMessage)transportPacket, tunnel.getSegments());
-                } else {
-                    transportPacket = this.authInterface.encrypt((OnionTunnelTransportParsedMessage)transportPacket, firstSegment, false);
+            // create the voice messages and have all fragments encrypted at once, their auth requests are in flight together
+            List<ParsedMessage> voicePackets = this.parser.buildOnionTunnelVoiceMsgs(lastSegment.getLid().serialize(), data, cellSize);
+            List<CompletableFuture<OnionTunnelTransportParsedMessage>> encryptions = new ArrayList<>(voicePackets.size());
+            Throwable error = null;
+            try {
+                for (ParsedMessage voicePacket : voicePackets) {
+                    OnionTunnelTransportParsedMessage transportPacket = (OnionTunnelTransportParsedMessage)
+                            this.parser.buildOnionTunnelTransferMsgPlain(firstSegment.getLid().serialize(), voicePacket, cellSize);
+                    // encrypt accordingly
+                    if(tunnel != null) {
+                        encryptions.add(this.asyncAuth.encryptAsync(transportPacket, tunnel.getSegments()));
+                    } else {
+                        encryptions.add(this.asyncAuth.encryptAsync(transportPacket, firstSegment, false));
+                    }
                 }
-                this.server.send(firstSegment.getNextAddress(), firstSegment.getNextPort(), transportPacket.serialize());
+            } catch (ParsingException e) {
+                error = e;
+            }
+            try {
+                CompletableFuture.allOf(encryptions.toArray(new CompletableFuture[0])).get();
+            } catch (ExecutionException e) {
+                // the fragments encrypted before the failed one are still sent below
+            }
+
+            // collect the fragments in order up to the first failed one
+            List<ParsedMessage> transportPackets = new ArrayList<>(encryptions.size());
+            for (CompletableFuture<OnionTunnelTransportParsedMessage> encryption : encryptions) {
+                try {
+                    transportPackets.add(encryption.join());
+                } catch (CompletionException e) {
+                    error = e.getCause();
+                    break;
+                }
+            }
+
+            // send behind messages the pacer holds back for the hop, a failure to send must not hide an earlier error
+            try {
+                this.pacer.send(firstSegment.getNextHop(), transportPackets, 0);
                 firstSegment.updateLastDataSeen();
+            } catch (IOException e) {
+                if(error == null)
+                    throw e;
+                error.addSuppressed(e);
             }
+            if(error instanceof ParsingException)
+                throw (ParsingException) error;
+            if(error instanceof AuthException)
+                throw (AuthException) error;
+            if(error instanceof IOException)
+                throw (IOException) error;
+            if(error != null)
+                throw new OnionException("Cannot encrypt ONION TUNNEL TRANSPORT package: " + error);
         } catch (ParsingException e) {
             this.logger.error("Unable to build required voice or transport data packet to send out a voice message: " + e.getMessage());
         } catch (InterruptedException e) {
@@ -789,4 +1131,11 @@ public class OnionInterfaceImpl implements OnionInterface {
             throw new OnionException("Cannot encrypt ONION TUNNEL TRANSPORT package: " + e.getMessage());
         }
     }
+
+    /**
+     * Continues handling a message with the response of the Onion Auth module.
+     */
+    private interface Continuation<T> {
+        void accept(T response) throws IOException, ParsingException;
+    }
 }
@@ -0,0 +1,187 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.interfaces.UdpServer;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends messages to neighbors while enforcing a minimal spacing between them without blocking the caller.
+ * Every neighbor has its own queue. A message with a spacing holds back all messages queued after it for the same
+ * neighbor until the spacing elapsed, messages without spacing leave as soon as everything queued before them did.
+ * Held back messages are released by a timer on the event loop of the socket used for the neighbor.
+ * A neighbor is forgotten once its queue drained and its last spacing elapsed.
+ */
+public class PacedSendScheduler {
+    private final UdpServer server;
+    private final Logger logger;
+    private final Map<InetSocketAddress, Neighbor> neighbors = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param server The server used to send datagrams.
+     */
+    public PacedSendScheduler(UdpServer server) {
+        this.server = server;
+        this.logger = LogManager.getLogger(PacedSendScheduler.class);
+    }
+
+    /**
+     * Send messages to a neighbor in order, keeping at least the given spacing after each of them.
+     * Messages are sent right away on the calling thread if nothing is held back for the neighbor, otherwise they are
+     * queued and this method returns immediately.
+     *
+     * @param target The neighbor to send the messages to.
+     * @param messages The messages to send.
+     * @param spacingMillis Time in milliseconds that has to pass after each of the messages before the next message
+     *                      to the neighbor is sent. 0 sends the messages back to back.
+     * @throws IOException If the messages cannot be sent or scheduled.
+     */
+    public void send(InetSocketAddress target, List<ParsedMessage> messages, long spacingMillis) throws IOException {
+        if(messages.isEmpty())
+            return;
+
+        while(true) {
+            Neighbor neighbor = this.neighbors.computeIfAbsent(target, t -> new Neighbor());
+            synchronized (neighbor) {
+                if(neighbor.retired)
+                    continue; // forgotten in the meantime, use a fresh one
+                for(ParsedMessage message : messages) {
+                    neighbor.queue.add(new Entry(message, spacingMillis));
+                }
+                if(!neighbor.scheduled) {
+                    try {
+                        release(target, neighbor);
+                    } catch (IOException e) {
+                        neighbor.queue.clear();
+                        retire(target, neighbor);
+                        throw e;
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of messages held back for all neighbors.
+     *
+     * @return The number of queued messages.
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for(Neighbor neighbor : this.neighbors.values()) {
+            synchronized (neighbor) {
+                queued += neighbor.queue.size();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Get the number of neighbors with held back messages or a spacing that did not elapse yet.
+     *
+     * @return The number of neighbors.
+     */
+    public int getNeighborCount() {
+        return this.neighbors.size();
+    }
+
+    /**
+     * Send all messages of a neighbor whose time has come and schedule the release of the remaining ones.
+     * A neighbor without held back messages is kept until its spacing elapsed and forgotten afterwards.
+     * Has to be called while holding the lock of the neighbor.
+     *
+     * @param target The neighbor.
+     * @param neighbor The queue state of the neighbor.
+     * @throws IOException If the messages cannot be sent or the release cannot be scheduled.
+     */
+    private void release(InetSocketAddress target, Neighbor neighbor) throws IOException {
+        boolean written = false;
+        try {
+            long now = System.nanoTime();
+            while(!neighbor.queue.isEmpty() && now - neighbor.nextRelease >= 0) {
+                Entry entry = neighbor.queue.poll();
+                this.server.write(target, entry.message);
+                written = true;
+                if(entry.spacingMillis > 0)
+                    neighbor.nextRelease = now + entry.spacingMillis * 1000000L;
+            }
+        } finally {
+            if(written)
+                this.server.flush(target);
+        }
+
+        long delay = neighbor.nextRelease - System.nanoTime();
+        if(!neighbor.queue.isEmpty() || delay > 0) {
+            // the timer also forgets the neighbor if nothing is queued until the spacing elapsed
+            long delayMillis = (delay + 999999L) / 1000000L;
+            this.server.schedule(target, () -> releaseScheduled(target, neighbor), Math.max(0, delayMillis));
+            neighbor.scheduled = true;
+        } else {
+            retire(target, neighbor);
+        }
+    }
+
+    /**
+     * Forget a neighbor without held back messages. Has to be called while holding the lock of the neighbor.
+     *
+     * @param target The neighbor.
+     * @param neighbor The queue state of the neighbor.
+     */
+    private void retire(InetSocketAddress target, Neighbor neighbor) {
+        neighbor.retired = true;
+        this.neighbors.remove(target, neighbor);
+    }
+
+    /**
+     * Timer task releasing held back messages of a neighbor.
+     *
+     * @param target The neighbor.
+     * @param neighbor The queue state of the neighbor.
+     */
+    private void releaseScheduled(InetSocketAddress target, Neighbor neighbor) {
+        synchronized (neighbor) {
+            neighbor.scheduled = false;
+            try {
+                release(target, neighbor);
+            } catch (IOException e) {
+                this.logger.warn("Unable to send " + neighbor.queue.size() + " paced message(s) to " + target + ": " + e.getMessage());
+                neighbor.queue.clear();
+                retire(target, neighbor);
+            }
+        }
+    }
+
+    /**
+     * Messages held back for a single neighbor.
+     */
+    private static class Neighbor {
+        private final Queue<Entry> queue = new ArrayDeque<>();
+        private long nextRelease = System.nanoTime();
+        private boolean scheduled;
+        private boolean retired;
+    }
+
+    /**
+     * A queued message and the spacing to keep after it.
+     */
+    private static class Entry {
+        private final ParsedMessage message;
+        private final long spacingMillis;
+
+        private Entry(ParsedMessage message, long spacingMillis) {
+            this.message = message;
+            this.spacingMillis = spacingMillis;
+        }
+    }
+}
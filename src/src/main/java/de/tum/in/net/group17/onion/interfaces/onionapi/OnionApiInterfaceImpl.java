@@ -2,6 +2,7 @@ package de.tum.in.net.group17.onion.interfaces.onionapi;
 
 import com.google.inject.Inject;
 import de.tum.in.net.group17.onion.config.ConfigurationProvider;
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
 import de.tum.in.net.group17.onion.interfaces.TcpServerInterface;
 import de.tum.in.net.group17.onion.parser.MessageType;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
@@ -32,10 +33,11 @@ public class OnionApiInterfaceImpl extends TcpServerInterface implements OnionAp
      * Create a new Onion API interface.
      * @param config The configuration of the Onion module to read listening ports and other values from.
      * @param parser The parser for packets that are expected to be received at the Onion API interface.
+     * @param resources The event loops and handler threads serving the API connections.
      */
     @Inject
-    public OnionApiInterfaceImpl(ConfigurationProvider config, OnionApiParser parser) {
-        super();
+    public OnionApiInterfaceImpl(ConfigurationProvider config, OnionApiParser parser, EventLoopResources resources) {
+        super(resources);
 
         this.logger = LogManager.getLogger(OnionApiInterface.class);
         this.parser = parser;
@@ -2,19 +2,23 @@ package de.tum.in.net.group17.onion.interfaces.rps;
 
 import com.google.inject.Inject;
 import de.tum.in.net.group17.onion.config.ConfigurationProvider;
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
 import de.tum.in.net.group17.onion.interfaces.TcpClientInterface;
 import de.tum.in.net.group17.onion.model.Peer;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
 import de.tum.in.net.group17.onion.parser.rps.RandomPeerSamplingParser;
 import de.tum.in.net.group17.onion.parser.rps.RpsPeerParsedMessage;
+import de.tum.in.net.group17.onion.util.TimeoutService;
 import io.netty.channel.ChannelException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 
 
 /**
@@ -25,37 +29,51 @@ public class RandomPeerSamplingInterfaceImpl extends TcpClientInterface implemen
     private RandomPeerSamplingParser parser;
     private ConfigurationProvider config;
     private Logger logger;
-    private List<Peer> peers;
+    private TimeoutService timeouts;
+
+    /**
+     * Queries waiting for a peer, in the order they have been sent. The RPS module answers queries in order.
+     */
+    private Queue<CompletableFuture<Peer>> pending;
 
     /**
      * Create a new RPS interface.
      * @param config The configuration of the Onion module to read listening ports and other values from.
      * @param parser The parser for packets that are expected to be received from the RPS module.
+     * @param timeouts The service failing queries that are not answered in time.
+     * @param resources The event loops serving the connection to the RPS module.
      */
     @Inject
-    public RandomPeerSamplingInterfaceImpl(ConfigurationProvider config, RandomPeerSamplingParser parser) {
-        super(config.getRpsApiHost(), config.getRpsApiPort());
+    public RandomPeerSamplingInterfaceImpl(ConfigurationProvider config, RandomPeerSamplingParser parser, TimeoutService timeouts,
+                                           EventLoopResources resources) {
+        super(config.getRpsApiHost(), config.getRpsApiPort(), resources, 1);
         this.logger = LogManager.getLogger(RandomPeerSamplingInterface.class);
         this.parser = parser;
         this.config = config;
-        this.peers = Collections.synchronizedList(new ArrayList<Peer>());
-        setCallback(result -> randomPeerResult(result));
+        this.timeouts = timeouts;
+        this.pending = new ConcurrentLinkedQueue<>();
+        setCallback(parser, result -> randomPeerResult(result));
+        connect();
     }
 
     /**
-     * Triggered when a new random peer is being delivered by the RPS module.
+     * Triggered on the I/O thread when a new random peer is being delivered by the RPS module.
      *
-     * @param data The raw data from RPS.
+     * @param msg The message from RPS.
      */
-    private void randomPeerResult(byte[] data) {
-        try {
-            peers.add(Peer.fromRpsReponse((RpsPeerParsedMessage) parser.parseMsg(data)));
-            synchronized (peers) {
-                peers.notify(); //Notify one consumer to be allowed to take a peer
-            }
-        } catch (ParsingException e) {
-            logger.error("Parsing error for response: " + e.getMessage());
+    private void randomPeerResult(ParsedMessage msg) {
+        if(!(msg instanceof RpsPeerParsedMessage)) {
+            logger.error("Received unexpected message from RPS: " + msg.getType());
+            return;
         }
+        Peer peer = Peer.fromRpsReponse((RpsPeerParsedMessage) msg);
+        // Hand the peer to the oldest query that did not time out yet
+        CompletableFuture<Peer> query;
+        while((query = pending.poll()) != null) {
+            if(query.complete(peer))
+                return;
+        }
+        logger.warn("Received peer from RPS after its query timed out, dropping it.");
     }
 
     /**
@@ -71,25 +89,31 @@ public class RandomPeerSamplingInterfaceImpl extends TcpClientInterface implemen
             throw new RandomPeerSamplingException("Parsing error during build: " + e.getMessage());
         }
 
+        // Register before sending, quick responses would be dropped otherwise
+        CompletableFuture<Peer> query = new CompletableFuture<>();
+        this.pending.add(query);
+        this.timeouts.expire(query, this.config.getRpsTimeout(),
+                () -> new RandomPeerSamplingException("No peer found after query. Timed out."));
+        query.whenComplete((peer, error) -> this.pending.remove(query));
+
         try {
-            sendMessage(packet.serialize());
+            // a query queued while connecting fails at once if the connection cannot be established
+            sendMessage(packet, 0, error -> query.completeExceptionally(
+                    new RandomPeerSamplingException("Unable to fetch random peer: " + error.getMessage())));
         } catch(ChannelException e) { // No connection to RPS
+            query.cancel(false);
             throw new RandomPeerSamplingException("Unable to fetch random peer: " + e.getMessage());
         }
 
         try {
-            synchronized (peers) {
-                peers.wait(5000);
-            }
+            Peer peer = query.get();
+            this.logger.debug("Got host from RPS: " + peer.getIpAddress());
+            return peer;
         } catch (InterruptedException e) {
+            query.cancel(false);
             throw new RandomPeerSamplingException("Interrupted during RPS fetch: " + e.getMessage());
-        }
-
-        if(!this.peers.isEmpty()) {
-            this.logger.debug("Got host from RPS: " + this.peers.get(0).getIpAddress());
-            return this.peers.remove(0);
-        } else {
-            throw new RandomPeerSamplingException("No peer found after query. Timed out.");
+        } catch (ExecutionException e) {
+            throw (RandomPeerSamplingException) e.getCause();
         }
     }
 
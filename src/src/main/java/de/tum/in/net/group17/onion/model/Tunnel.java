@@ -1,7 +1,9 @@
 package de.tum.in.net.group17.onion.model;
 
-import java.util.ArrayList;
+import de.tum.in.net.group17.onion.parser.onion2onion.CellSize;
+
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by Christoph Rudolf on 27.05.17.
@@ -9,6 +11,7 @@ import java.util.List;
 public class Tunnel {
     private int id;
     private List<TunnelSegment> segments;
+    private volatile short cellSizes = (short)0xFFFF;
 
     /**
      * Create a new tunnel with the given tunnel ID.
@@ -17,7 +20,8 @@ public class Tunnel {
      */
     public Tunnel(int id) {
         this.id = id;
-        this.segments = new ArrayList<>();
+        // Segments are only added while building, but read by all workers handling cells of this tunnel
+        this.segments = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -36,6 +40,30 @@ public class Tunnel {
         return this.segments;
     }
 
+    /**
+     * Retrieve the mask of cell size classes supported by all peers of this tunnel.
+     * @return A mask of CellSize bits, all bits are set as long as the tunnel has no peers.
+     */
+    public short getCellSizes() {
+        return this.cellSizes;
+    }
+
+    /**
+     * Set the mask of cell size classes supported by all peers of this tunnel after another peer joined it.
+     * @param cellSizes A mask of CellSize bits.
+     */
+    public void setCellSizes(short cellSizes) {
+        this.cellSizes = cellSizes;
+    }
+
+    /**
+     * Retrieve the size class of the cells used for data in this tunnel, i.e. the largest class all peers support.
+     * @return The size class of the data cells.
+     */
+    public CellSize getCellSize() {
+        return CellSize.largest(this.cellSizes);
+    }
+
     /**
      * Add a new TunnelSegment to this tunnel, advancing it by one hop.
      * The new segment will mark the endpoint for this tunnel until another one is added.
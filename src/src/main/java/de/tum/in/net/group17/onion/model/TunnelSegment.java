@@ -1,6 +1,9 @@
 package de.tum.in.net.group17.onion.model;
 
+import de.tum.in.net.group17.onion.parser.onion2onion.CellSize;
+
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.time.LocalDateTime;
 
 /**
@@ -11,12 +14,12 @@ import java.time.LocalDateTime;
 public class TunnelSegment {
     private Lid Lid;
     private TunnelSegment other;    // the next TunnelSegment holding information for forwarding
-    private InetAddress nextAddress;
-    private short nextPort;
+    private InetSocketAddress nextHop;
     private short sessionId;
     private Direction direction;
     private byte[] hostkey;
     private LocalDateTime lastDataSeen;
+    private CellSize cellSize = CellSize.SMALL;
 
     /**
      * Create a new tunnel segment with the given parameters.
@@ -28,8 +31,7 @@ public class TunnelSegment {
      */
     public TunnelSegment(Lid lid, InetAddress nextAddress, short nextPort, Direction direction) {
         Lid = lid;
-        this.nextAddress = nextAddress;
-        this.nextPort = nextPort;
+        this.nextHop = new InetSocketAddress(nextAddress, nextPort & 0xFFFF);
         this.direction = direction;
 
         updateLastDataSeen();
@@ -75,13 +77,23 @@ public class TunnelSegment {
         return other;
     }
 
+    /**
+     * Get the socket address of the next hop in the tunnel.
+     * The address is created once per segment and can be used for every datagram sent to the next hop.
+     *
+     * @return The next hop's address and port.
+     */
+    public InetSocketAddress getNextHop() {
+        return nextHop;
+    }
+
     /**
      * Get the address of the next hop in the tunnel.
      *
      * @return The next hop's address.
      */
     public InetAddress getNextAddress() {
-        return nextAddress;
+        return nextHop.getAddress();
     }
 
     /**
@@ -90,7 +102,7 @@ public class TunnelSegment {
      * @return The next hop's port.
      */
     public short getNextPort() {
-        return nextPort;
+        return (short)nextHop.getPort();
     }
 
     /**
@@ -121,6 +133,15 @@ public class TunnelSegment {
         return this.lastDataSeen;
     }
 
+    /**
+     * Get the size class of the cells used for data if this segment is the endpoint of a tunnel.
+     *
+     * @return The negotiated cell size.
+     */
+    public CellSize getCellSize() {
+        return this.cellSize;
+    }
+
     /**
      * Set the linked tunnel segment. (Segment in the other direction in the tunnel.)
      *
@@ -139,6 +160,15 @@ public class TunnelSegment {
         this.sessionId = sessionId;
     }
 
+    /**
+     * Set the size class of the cells used for data, negotiated while the INIT message of this segment was handled.
+     *
+     * @param cellSize The negotiated cell size.
+     */
+    public void setCellSize(CellSize cellSize) {
+        this.cellSize = cellSize;
+    }
+
     /**
      * Specify that we just sent data through the tunnel containing this segment.
      */
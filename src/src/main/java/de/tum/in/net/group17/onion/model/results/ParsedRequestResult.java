@@ -0,0 +1,16 @@
+package de.tum.in.net.group17.onion.model.results;
+
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+
+/**
+ * This acts as a template for callbacks given to any client interface.
+ * Responses of other modules are parsed by the decoder stage of the client pipeline before they are handed over.
+ * Created by Christoph Rudolf on 27.05.17.
+ */
+public interface ParsedRequestResult {
+    /**
+     * Called once the asynchronous result has been retrieved.
+     * @param result The parsed message that was retrieved from the other module.
+     */
+    void respond(ParsedMessage result);
+}
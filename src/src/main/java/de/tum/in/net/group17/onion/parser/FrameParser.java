@@ -0,0 +1,21 @@
+package de.tum.in.net.group17.onion.parser;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Parsers of messages received over a Netty pipeline, reading them directly from the receive buffer.
+ */
+public interface FrameParser {
+    /**
+     * Parse an incoming message from a receive buffer without copying the complete frame first.
+     * Neither the reader index nor the reference count of the buffer are modified.
+     *
+     *
+     * @param data The buffer containing exactly one message starting at its reader index.
+     *
+     * @return ParsedMessage containing the message type and packet data if parsing succeeds.
+     *
+     * @throws ParsingException If the incoming message is invalid.
+     */
+    ParsedMessage parseMsg(ByteBuf data) throws ParsingException;
+}
@@ -1,5 +1,8 @@
 package de.tum.in.net.group17.onion.parser;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -14,6 +17,30 @@ public abstract class ParsedMessage {
      */
     public abstract byte[] serialize();
 
+    /**
+     * Write the serialized message to the given buffer.
+     * Messages that are sent frequently override this method to avoid the intermediate byte[].
+     *
+     * @param buffer The buffer the message is written to.
+     */
+    public void writeTo(ByteBuf buffer) {
+        buffer.writeBytes(serialize());
+    }
+
+    /**
+     * Encode this message into a buffer ready to be written to a channel.
+     * Messages carrying a large payload override this method to reference their payload instead of copying it.
+     *
+     * @param alloc The allocator of the buffer.
+     *
+     * @return A buffer containing the serialized message. The caller owns the buffer.
+     */
+    public ByteBuf encode(ByteBufAllocator alloc) {
+        ByteBuf buffer = alloc.buffer(getSize() & 0xFFFF);
+        writeTo(buffer);
+        return buffer;
+    }
+
     /**
      * Get the size of this message.
      *
@@ -44,4 +71,14 @@ public abstract class ParsedMessage {
 
         return buffer;
     }
+
+    /**
+     * Write the header of this message to the given buffer.
+     *
+     * @param buffer The buffer the header is written to.
+     */
+    protected void writeHeader(ByteBuf buffer) {
+        buffer.writeShort(getSize());
+        buffer.writeShort(getType().getValue());
+    }
 }
@@ -1,5 +1,7 @@
 package de.tum.in.net.group17.onion.parser;
 
+import io.netty.buffer.ByteBuf;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -67,4 +69,41 @@ public abstract class VoidphoneParser {
             throw new ParsingException("Unknown message type! Have: " + buffer.getShort(2));
         return type;
     }
+
+    /**
+     * Check the size value of a message in a receive buffer.
+     *
+     *
+     * @param message The buffer containing exactly the message starting at its reader index.
+     *
+     * @throws ParsingException If the size in the packet is invalid.
+     */
+    protected void checkSize(ByteBuf message) throws ParsingException {
+        if (message == null || message.readableBytes() < 4) // Null or shorter than the header?
+            throw new ParsingException("The package must at least contain the header!");
+
+        if(message.readableBytes() > 65536)
+            throw new ParsingException("Packet too long!");
+
+        int size = message.getUnsignedShort(message.readerIndex());
+        if(size != message.readableBytes())
+            throw new ParsingException("Packet size does not match size field in header! Size of buffer: "
+                    + message.readableBytes() + "; Size in packet: " + size);
+    }
+
+    /**
+     * Get the MessageType of a message in a receive buffer.
+     *
+     * @param message The buffer containing the message starting at its reader index.
+     * @return The MessageType.
+     *
+     * @throws ParsingException If the type is unknown.
+     */
+    protected MessageType extractType(ByteBuf message) throws ParsingException {
+        short value = message.getShort(message.readerIndex() + 2);
+        MessageType type = MessageType.valueOf(value);
+        if(type == null)
+            throw new ParsingException("Unknown message type! Have: " + value);
+        return type;
+    }
 }
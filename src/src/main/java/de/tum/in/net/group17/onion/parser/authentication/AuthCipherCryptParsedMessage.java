@@ -1,6 +1,8 @@
 package de.tum.in.net.group17.onion.parser.authentication;
 
-import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 
 /**
  * Created by Marko Dorfhuber(PraMiD) on 24.07.17.
@@ -39,18 +41,46 @@ public abstract class AuthCipherCryptParsedMessage extends AuthParsedMessage {
      */
     @Override
     public byte[] serialize() {
+        ByteBuf buffer = Unpooled.buffer(getSize() & 0xFFFF);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void writeTo(ByteBuf buffer) {
+        writeFixedPart(buffer);
+        buffer.writeBytes(payload);
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * The payload is referenced by a composite buffer instead of being copied behind the fixed part.
+     */
+    @Override
+    public ByteBuf encode(ByteBufAllocator alloc) {
+        ByteBuf fixedPart = alloc.buffer((getSize() & 0xFFFF) - payload.length);
+        writeFixedPart(fixedPart);
+        return alloc.compositeBuffer(2).addComponents(true, fixedPart, Unpooled.wrappedBuffer(payload));
+    }
+
+    /**
+     * Write all fields of this message in front of the payload.
+     *
+     * @param buffer The buffer the fields are written to.
+     */
+    private void writeFixedPart(ByteBuf buffer) {
         int bits = 0;
-        ByteBuffer buffer = buildHeader();
 
         if(stillEnc)
             bits |= 0x00000001;
-        buffer.putInt(bits);
-        buffer.putInt(requestId);
-        buffer.putShort(sessionId);
-
-        buffer.put(payload);
-
-        return buffer.array();
+        writeHeader(buffer);
+        buffer.writeInt(bits);
+        buffer.writeInt(requestId);
+        buffer.writeShort(sessionId);
     }
 
     /**
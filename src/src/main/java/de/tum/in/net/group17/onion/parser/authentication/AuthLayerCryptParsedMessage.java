@@ -1,6 +1,8 @@
 package de.tum.in.net.group17.onion.parser.authentication;
 
-import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 
 /**
  * Created by Marko Dorfhuber(PraMiD) on 06.06.17.
@@ -31,18 +33,46 @@ public abstract class AuthLayerCryptParsedMessage extends AuthParsedMessage {
      * @inheritDoc
      */
     public byte[] serialize() {
-        ByteBuffer buffer = buildHeader();
+        ByteBuf buffer = Unpooled.buffer(getSize() & 0xFFFF);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void writeTo(ByteBuf buffer) {
+        writeFixedPart(buffer);
+        buffer.writeBytes(payload);
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * The payload is referenced by a composite buffer instead of being copied behind the fixed part.
+     */
+    @Override
+    public ByteBuf encode(ByteBufAllocator alloc) {
+        ByteBuf fixedPart = alloc.buffer((getSize() & 0xFFFF) - payload.length);
+        writeFixedPart(fixedPart);
+        return alloc.compositeBuffer(2).addComponents(true, fixedPart, Unpooled.wrappedBuffer(payload));
+    }
 
-        buffer.putShort((short)0);
-        buffer.put((byte)sessIds.length);
-        buffer.put((byte)0);
-        buffer.putInt(requestId);
+    /**
+     * Write all fields of this message in front of the payload.
+     *
+     * @param buffer The buffer the fields are written to.
+     */
+    private void writeFixedPart(ByteBuf buffer) {
+        writeHeader(buffer);
+        buffer.writeShort(0);
+        buffer.writeByte(sessIds.length);
+        buffer.writeByte(0);
+        buffer.writeInt(requestId);
         for(short id : sessIds) {
-            buffer.putShort(id);
+            buffer.writeShort(id);
         }
-        buffer.put(payload);
-
-        return buffer.array();
     }
 
     /**
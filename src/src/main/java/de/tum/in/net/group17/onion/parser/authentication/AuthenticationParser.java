@@ -1,5 +1,6 @@
 package de.tum.in.net.group17.onion.parser.authentication;
 
+import de.tum.in.net.group17.onion.parser.FrameParser;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.Parser;
 import de.tum.in.net.group17.onion.parser.ParsingException;
@@ -9,7 +10,7 @@ import de.tum.in.net.group17.onion.parser.ParsingException;
  *
  * Marko Dorfhuber (PraMiD) 24.07.2017: Added Cipher Messages
  */
-public interface AuthenticationParser extends Parser {
+public interface AuthenticationParser extends Parser, FrameParser {
     /**
      * Build the message used to issue the start of a a new session to the Onion Auth module.
      *
@@ -52,6 +53,36 @@ public interface AuthenticationParser extends Parser {
      */
     ParsedMessage buildSessionIncoming2(int requestId, short sessionId, byte[] payload) throws ParsingException;
 
+    /**
+     * Build the AUTH_SESSION_HS1 message an Onion Auth module answers a session start with.
+     * Used by Onion Auth implementations running inside the Onion module.
+     *
+     *
+     * @param sessionId ID of the newly started session.
+     * @param requestId The identifier of the request this message answers.
+     * @param payload The handshake payload to send to the other peer.
+     *
+     * @return The AUTH_SESSION_HS1 message conform to the specification.
+     *
+     * @throws ParsingException If the payload is too long to fit into the message.
+     */
+    ParsedMessage buildSessionHs1(short sessionId, int requestId, byte[] payload) throws ParsingException;
+
+    /**
+     * Build the AUTH_SESSION_HS2 message an Onion Auth module answers an incoming first handshake message with.
+     * Used by Onion Auth implementations running inside the Onion module.
+     *
+     *
+     * @param sessionId ID of the newly established session.
+     * @param requestId The identifier of the request this message answers.
+     * @param payload The handshake payload to send back to the initiating peer.
+     *
+     * @return The AUTH_SESSION_HS2 message conform to the specification.
+     *
+     * @throws ParsingException If the payload is too long to fit into the message.
+     */
+    ParsedMessage buildSessionHs2(short sessionId, int requestId, byte[] payload) throws ParsingException;
+
     /**
      * Build the message to issue the encryption of data for a certain tunnel which uses a list of sessions.
      *
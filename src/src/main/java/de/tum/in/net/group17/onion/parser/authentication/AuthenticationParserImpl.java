@@ -4,12 +4,13 @@ import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
 import de.tum.in.net.group17.onion.parser.VoidphoneParser;
 import de.tum.in.net.group17.onion.parser.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Primitive;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 /**
  * Created by Christoph Rudolf on 25.05.17.
@@ -61,6 +62,28 @@ public class AuthenticationParserImpl extends VoidphoneParser implements Authent
         return new AuthSessionIncomingHs2ParsedMessage(sessionId, requestId, payload);
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public ParsedMessage buildSessionHs1(short sessionId, int requestId, byte[] payload) throws ParsingException {
+        if(12 + payload.length > 65535)
+            throw new ParsingException("Message too large!");
+
+        return new AuthSessionHs1ParsedMessage(sessionId, requestId, payload);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public ParsedMessage buildSessionHs2(short sessionId, int requestId, byte[] payload) throws ParsingException {
+        if(12 + payload.length > 65535)
+            throw new ParsingException("Message too large!");
+
+        return new AuthSessionHs2ParsedMessage(sessionId, requestId, payload);
+    }
+
     /**
      * @inheritDoc
      */
@@ -118,122 +141,79 @@ public class AuthenticationParserImpl extends VoidphoneParser implements Authent
     }
 
     /**
-     * Confirm the size and type matching the specification of the AUTH SESSION HS1 message.
+     * Parse an AUTH SESSION HS1 or HS2 message.
      *
      *
-     * @param message The raw message as byte[].
+     * @param type The type of the message, AUTH SESSION HS1 or AUTH SESSION HS2.
+     * @param message The buffer containing the message starting at its reader index.
      *
      * @return The parsed message to confirm its validity.
      *
-     * @throws ParsingException If the input does not contain an AUTH SESSION HS1 message.
+     * @throws ParsingException If the input is too short to contain the session and request ID.
      */
-    private ParsedMessage parseSessionHandshake1(byte[] message) throws ParsingException {
-        ByteBuffer buffer;
-        byte[] payload = new byte[message.length - 12];
-        int requestId;
-        short sessId;
-
-        // No explicit length known
-        checkType(message, MessageType.AUTH_SESSION_HS1); // Will throw a parsing exception on any error
-
-        buffer = ByteBuffer.wrap(message);
-        sessId = buffer.getShort(6);
-        requestId = buffer.getInt(8);
-
-        buffer.position(12);
-        payload = new byte[message.length - 12];
-        buffer.get(payload);
-
-        return new AuthSessionHs1ParsedMessage(sessId, requestId, payload);
-    }
-
-    /**
-     * Confirm the size and type matching the specification of the AUTH SESSION HS2 message.
-     *
-     *
-     * @param message The raw message as byte[].
-     *
-     * @return The parsed message to confirm its validity.
-     *
-     * @throws ParsingException If the input does not contain an AUTH SESSION HS2 message.
-     */
-    private ParsedMessage parseSessionHandshake2(byte[] message) throws ParsingException {
-        ByteBuffer buffer;
-        byte[] payload = new byte[message.length - 12];
-        int requestId;
-        short sessId;
-
-        // No explicit length known
-        checkType(message, MessageType.AUTH_SESSION_HS2); // Will throw a parsing exception on any error
-
-        buffer = ByteBuffer.wrap(message);
-        sessId = buffer.getShort(6);
-        requestId = buffer.getInt(8);
-
-        buffer.position(12);
-        buffer.get(payload);
-
-        return new AuthSessionHs2ParsedMessage(sessId, requestId, payload);
+    private ParsedMessage parseSessionHandshake(MessageType type, ByteBuf message) throws ParsingException {
+        int start = message.readerIndex();
+        if(message.readableBytes() < 12)
+            throw new ParsingException("Packet is too short to contain a session and a request ID!");
+
+        short sessId = message.getShort(start + 6);
+        int requestId = message.getInt(start + 8);
+        byte[] payload = new byte[message.readableBytes() - 12];
+        message.getBytes(start + 12, payload);
+
+        return type == MessageType.AUTH_SESSION_HS1 ?
+                new AuthSessionHs1ParsedMessage(sessId, requestId, payload) :
+                new AuthSessionHs2ParsedMessage(sessId, requestId, payload);
     }
 
     /**
      * Parse a AUTH [LAYER|CIPHER] [EN-|DECRYPT] RESP message.
+     * The payload is copied once from the receive buffer into the array handed to the requester.
      *
      *
      * @param type Is this a decrypt/encrypt message?
-     * @param message The received message.
+     * @param message The buffer containing the message starting at its reader index.
      *
      * @return The parsed message to confirm its validity.
      *
-     * @throws ParsingException If the input does not contain a message of the type given by the type parameter.
+     * @throws ParsingException If the input is too short to contain the flags and request ID.
      */
-    private ParsedMessage parseCryptResponse(MessageType type, byte[] message) throws ParsingException {
-        ByteBuffer buffer;
-        int flagsArea;
-        int requestId;
-        byte[] payload;
-
-        checkType(message, type); // Will throw a parsing exception on any error
+    private ParsedMessage parseCryptResponse(MessageType type, ByteBuf message) throws ParsingException {
+        int start = message.readerIndex();
+        if(message.readableBytes() < 12)
+            throw new ParsingException("Packet is too short to contain a request ID!");
 
-        buffer = ByteBuffer.wrap(message);
-        flagsArea = buffer.getInt(4);
-        requestId = buffer.getInt(8);
-        payload = new byte[message.length - 12];
-        buffer.position(12);
-        buffer.get(payload);
+        int flagsArea = message.getInt(start + 4);
+        int requestId = message.getInt(start + 8);
+        byte[] payload = new byte[message.readableBytes() - 12];
+        message.getBytes(start + 12, payload);
 
         switch (type) {
             case AUTH_LAYER_ENCRYPT_RESP:
                 return new AuthLayerEncryptResParsedMessage(requestId, payload);
-            case AUTH_LAYER_DECRYPT_RESP:
-                return new AuthLayerDecryptResParsedMessage(requestId, payload);
             case AUTH_CIPHER_ENCRYPT_RESP:
                 return new AuthCipherEncryptResParsedMessage(requestId, payload);
             case AUTH_CIPHER_DECRYPT_RESP:
                 return new AuthCipherDecryptResParsedMessage((flagsArea & 0x00000001) != 0, requestId, payload);
+            default:
+                return new AuthLayerDecryptResParsedMessage(requestId, payload);
         }
-
-        return (type == MessageType.AUTH_LAYER_ENCRYPT_RESP ?
-                new AuthLayerEncryptResParsedMessage(requestId, payload) :
-                new AuthLayerDecryptResParsedMessage(requestId, payload));
     }
 
     /**
      * Parse an ONION AUTH ERROR message.
      *
-     * @param message The message sent by the Onion Auth module.
+     * @param message The buffer containing the message starting at its reader index.
      *
      * @return A ParsedMessage to confirm the validity of the message.
      *
-     * @throws ParsingException If the input does not contain an AUTH ERROR message.
+     * @throws ParsingException If the input is too short to contain the request ID.
      */
-    private ParsedMessage parseAuthErrorRespone(byte[] message) throws ParsingException {
-        ByteBuffer buffer;
-
-        checkType(message, MessageType.AUTH_ERROR); // Will throw an parsing exception on every error
+    private ParsedMessage parseAuthErrorRespone(ByteBuf message) throws ParsingException {
+        if(message.readableBytes() < 12)
+            throw new ParsingException("Packet is too short to contain a request ID!");
 
-        buffer = ByteBuffer.wrap(message);
-        return new AuthErrorParsedMessage(buffer.getInt(8));
+        return new AuthErrorParsedMessage(message.getInt(message.readerIndex() + 8));
     }
 
     /**
@@ -243,23 +223,30 @@ public class AuthenticationParserImpl extends VoidphoneParser implements Authent
     public ParsedMessage parseMsg(byte[] message) throws ParsingException {
         checkSize(message); // Throws an exception if an error occurs
 
-        switch (extractType(message)) {
+        return parseMsg(Unpooled.wrappedBuffer(message));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public ParsedMessage parseMsg(ByteBuf message) throws ParsingException {
+        checkSize(message); // Throws an exception if an error occurs
+
+        MessageType type = extractType(message);
+        switch (type) {
             case AUTH_SESSION_HS1:
-                return parseSessionHandshake1(message);
             case AUTH_SESSION_HS2:
-                return parseSessionHandshake2(message);
+                return parseSessionHandshake(type, message);
             case AUTH_LAYER_ENCRYPT_RESP:
-                return parseCryptResponse(MessageType.AUTH_LAYER_ENCRYPT_RESP, message);
             case AUTH_LAYER_DECRYPT_RESP:
-                return parseCryptResponse(MessageType.AUTH_LAYER_DECRYPT_RESP, message);
             case AUTH_CIPHER_ENCRYPT_RESP:
-                return parseCryptResponse(MessageType.AUTH_CIPHER_ENCRYPT_RESP, message);
             case AUTH_CIPHER_DECRYPT_RESP:
-                return parseCryptResponse(MessageType.AUTH_CIPHER_DECRYPT_RESP, message);
+                return parseCryptResponse(type, message);
             case AUTH_ERROR:
                 return parseAuthErrorRespone(message);
             default:
-                throw new ParsingException("Not able to parse message. Type: " + extractType(message).getValue() + "!");
+                throw new ParsingException("Not able to parse message. Type: " + type.getValue() + "!");
         }
     }
 
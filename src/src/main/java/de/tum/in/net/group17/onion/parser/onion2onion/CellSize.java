@@ -0,0 +1,90 @@
+package de.tum.in.net.group17.onion.parser.onion2onion;
+
+/**
+ * The size classes the (unencrypted) payload of ONION_TUNNEL_TRANSPORT cells may have.
+ * Peers announce the classes they support as a bit mask in ONION_TUNNEL_INIT and ONION_TUNNEL_ACCEPT messages. A
+ * tunnel uses the largest class supported by all of its peers for its data, control messages always use the
+ * smallest class. The smallest class is supported by every peer.
+ */
+public enum CellSize {
+    SMALL(512, (short)0x0001),
+    MEDIUM(1200, (short)0x0002),
+    LARGE(8192, (short)0x0004);
+
+    /**
+     * Mask containing the size class every peer has to support.
+     */
+    public static final short DEFAULT_MASK = SMALL.bit;
+
+    private final int size;
+    private final short bit;
+
+    CellSize(int size, short bit) {
+        this.size = size;
+        this.bit = bit;
+    }
+
+    /**
+     * Get the size of the payload of a transport cell of this class, including the magic and padding.
+     *
+     * @return The payload size in bytes.
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Get the bit representing this class in a size class mask.
+     *
+     * @return The bit of this class.
+     */
+    public short getBit() {
+        return this.bit;
+    }
+
+    /**
+     * Get the largest size class contained in a mask.
+     *
+     * @param mask A mask of size classes.
+     *
+     * @return The largest size class in the mask, the smallest class if the mask does not contain any known class.
+     */
+    public static CellSize largest(short mask) {
+        CellSize[] values = values();
+        for(int i = values.length - 1; i >= 0; i--) {
+            if((mask & values[i].bit) != 0)
+                return values[i];
+        }
+        return SMALL;
+    }
+
+    /**
+     * Get the smallest size class that can hold a payload of the given size.
+     *
+     * @param size A payload size in bytes.
+     *
+     * @return The smallest size class of at least this size or null if the payload exceeds all classes.
+     */
+    public static CellSize fitting(int size) {
+        for(CellSize cellSize : values()) {
+            if(cellSize.size >= size)
+                return cellSize;
+        }
+        return null;
+    }
+
+    /**
+     * Get the size class of the given payload size.
+     *
+     * @param size A payload size in bytes.
+     *
+     * @return The size class or null if there is no class of this size.
+     */
+    public static CellSize fromSize(int size) {
+        for(CellSize cellSize : values()) {
+            if(cellSize.size == size)
+                return cellSize;
+        }
+        return null;
+    }
+}
@@ -2,6 +2,7 @@ package de.tum.in.net.group17.onion.parser.onion2onion;
 
 import de.tum.in.net.group17.onion.model.Lid;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import io.netty.buffer.ByteBuf;
 
 import java.nio.ByteBuffer;
 
@@ -46,6 +47,16 @@ public abstract class OnionToOnionParsedMessage extends ParsedMessage {
         return buffer;
     }
 
+    /**
+     * Write the header and the incoming tunnel LID to the given buffer.
+     *
+     * @param buffer The buffer the header and LID are written to.
+     */
+    protected void writeBase(ByteBuf buffer) {
+        writeHeader(buffer);
+        buffer.writeBytes(incomingLid.serialize());
+    }
+
     /**
      * This method only returns the size that equal for all OnionToOnion messages. (Header and incoming LID)
      *
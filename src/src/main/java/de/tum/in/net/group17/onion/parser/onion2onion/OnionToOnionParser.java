@@ -3,6 +3,7 @@ package de.tum.in.net.group17.onion.parser.onion2onion;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.Parser;
 import de.tum.in.net.group17.onion.parser.ParsingException;
+import io.netty.buffer.ByteBuf;
 
 import java.util.List;
 
@@ -18,6 +19,7 @@ public interface OnionToOnionParser extends Parser {
      *
      *
      * @param incomingLidRaw The LID of the new tunnel.
+     * @param cellSizes Mask of the cell size classes the tunnel may use from the perspective of the sender.
      * @param handshakePayload The handshake payload build by the Onion Auth module.
      *
      * @return A OnionTunnelInitParsedMessage containing all parameters.
@@ -25,13 +27,14 @@ public interface OnionToOnionParser extends Parser {
      * @throws ParsingException If invalid parameters were provided or the message is too large after
      *                              packing all parameters.
      */
-    ParsedMessage buildOnionTunnelInitMsg(byte[] incomingLidRaw, byte[] handshakePayload) throws ParsingException;
+    ParsedMessage buildOnionTunnelInitMsg(byte[] incomingLidRaw, short cellSizes, byte[] handshakePayload) throws ParsingException;
 
     /**
      * Create a new ONION_TUNNEL_ACCEPT message.
      *
      *
      * @param incomingLidRaw The LID of the yet established tunnel.
+     * @param cellSizes Mask of the cell size classes offered by the INIT message that are supported by this peer.
      * @param handshakePayload The handshake payload build by the Onion Auth module.
      *
      * @return A OnionTunnelInitParsedMessage containing all parameters.
@@ -39,7 +42,7 @@ public interface OnionToOnionParser extends Parser {
      * @throws ParsingException If invalid parameters were provided or the message is too large after
      *                              packing all parameters.
      */
-    ParsedMessage buildOnionTunnelAcceptMsg(byte[] incomingLidRaw, byte[] handshakePayload) throws ParsingException;
+    ParsedMessage buildOnionTunnelAcceptMsg(byte[] incomingLidRaw, short cellSizes, byte[] handshakePayload) throws ParsingException;
 
     /**
      * Create a new unencrypted ONION_TUNNEL_RELAY message.
@@ -75,6 +78,21 @@ public interface OnionToOnionParser extends Parser {
      */
     ParsedMessage buildOnionTunnelTransferMsgPlain(byte[] incomingLidRaw, ParsedMessage innerPkt) throws ParsingException;
 
+    /**
+     * Create a ONION_TUNNEL_TRANSPORT message with unencrypted inner data padded to the given cell size.
+     * Further encryption is supposed to happen on the completed OnionTunnelTransferParsedMessage.
+     *
+     *
+     * @param incomingLidRaw The LID of the incoming tunnel in the perspective of the receiving host.
+     * @param innerPkt The inner packet contained in this message.
+     * @param cellSize The size class negotiated for the tunnel.
+     *
+     * @return A OnionTunnelTransportParsedMessage containing the given parameters.
+     *
+     * @throws ParsingException If invalid parameters were provided or the inner packet does not fit into the cell.
+     */
+    ParsedMessage buildOnionTunnelTransferMsgPlain(byte[] incomingLidRaw, ParsedMessage innerPkt, CellSize cellSize) throws ParsingException;
+
     /**
      * Build a new ONION_TUNNEL_TEARDOWN message containing the given parameters.
      *
@@ -120,6 +138,21 @@ public interface OnionToOnionParser extends Parser {
      */
     List<ParsedMessage> buildOnionTunnelVoiceMsgs(byte[] incomingLidRaw, byte[] payload) throws ParsingException;
 
+    /**
+     * Build a list of ONION_TUNNEL_VOICE messages containing the given payload split over multiple messages, each one
+     * fitting into a transport cell of the given size class.
+     *
+     *
+     * @param incomingLidRaw The LID of the incoming tunnel in the perspective of the receiving host.
+     * @param payload The payload that shall be contained in the voice messages.
+     * @param cellSize The size class negotiated for the tunnel.
+     *
+     * @return A list of OnionTunnelVoiceParsedMessage containing the given payload split over all messages in order.
+     *
+     * @throws ParsingException If invalid parameters were provided or the message.
+     */
+    List<ParsedMessage> buildOnionTunnelVoiceMsgs(byte[] incomingLidRaw, byte[] payload, CellSize cellSize) throws ParsingException;
+
     /**
      * Build a new ONION_TUNNEL_ESTABLISHED message containing the given LID.
      *
@@ -144,4 +177,44 @@ public interface OnionToOnionParser extends Parser {
      * @throws ParsingException If invalid parameters were provided.
      */
     ParsedMessage buildOnionTunnelEstablishedMsg(byte[] lidRawNew, byte[] lidRawOld) throws ParsingException;
+
+    /**
+     * Parse a ONION_TUNNEL_TRANSPORT message in place without copying it out of the receive buffer.
+     * The reader index of the buffer is not modified.
+     *
+     *
+     * @param data The buffer containing the complete message starting at its reader index.
+     *
+     * @return A OnionTransportCell referring to the buffer or null if the message is no ONION_TUNNEL_TRANSPORT message.
+     *
+     * @throws ParsingException If the message is a ONION_TUNNEL_TRANSPORT message but invalid.
+     */
+    OnionTransportCell parseTransportCell(ByteBuf data) throws ParsingException;
+
+    /**
+     * Build a new ONION_TUNNEL_BUNDLE message containing the given cells.
+     * The cells are not copied, hence they have to stay valid until the bundle has been sent.
+     *
+     *
+     * @param flags The flags of the bundle, e.g. OnionTunnelBundleParsedMessage.FLAG_PROBE.
+     * @param cells Buffers containing complete ONION_TUNNEL_TRANSPORT messages. May be empty for probes.
+     *
+     * @return A OnionTunnelBundleParsedMessage containing the given cells.
+     *
+     * @throws ParsingException If a cell is no ONION_TUNNEL_TRANSPORT message or the bundle is too large.
+     */
+    ParsedMessage buildOnionTunnelBundleMsg(byte flags, List<ByteBuf> cells) throws ParsingException;
+
+    /**
+     * Parse a ONION_TUNNEL_BUNDLE message without copying the contained cells out of the receive buffer.
+     * The returned cells are slices of the given buffer. The reader index of the buffer is not modified.
+     *
+     *
+     * @param data The buffer containing the complete message starting at its reader index.
+     *
+     * @return A OnionTunnelBundleParsedMessage or null if the message is no ONION_TUNNEL_BUNDLE message.
+     *
+     * @throws ParsingException If the message is a ONION_TUNNEL_BUNDLE message but invalid.
+     */
+    OnionTunnelBundleParsedMessage parseBundle(ByteBuf data) throws ParsingException;
 }
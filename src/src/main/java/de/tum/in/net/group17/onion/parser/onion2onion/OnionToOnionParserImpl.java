@@ -6,6 +6,8 @@ import de.tum.in.net.group17.onion.parser.MessageType;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
 import de.tum.in.net.group17.onion.parser.VoidphoneParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.bouncycastle.util.Arrays;
 
 import java.net.Inet4Address;
@@ -33,12 +35,12 @@ public class OnionToOnionParserImpl extends VoidphoneParser implements OnionToOn
      * This implementation throws a ParsingError on every error!
      */
     @Override
-    public ParsedMessage buildOnionTunnelInitMsg(byte[] incomingLidRaw, byte[] handshakePayload) throws ParsingException
+    public ParsedMessage buildOnionTunnelInitMsg(byte[] incomingLidRaw, short cellSizes, byte[] handshakePayload) throws ParsingException
     {
         if(handshakePayload == null || handshakePayload.length < 1)
             throw new ParsingException("Handshake data is too short");
 
-        return new OnionTunnelInitParsedMessage(LidImpl.deserialize(incomingLidRaw), handshakePayload);
+        return new OnionTunnelInitParsedMessage(LidImpl.deserialize(incomingLidRaw), cellSizes, handshakePayload);
     }
 
     /**
@@ -47,12 +49,12 @@ public class OnionToOnionParserImpl extends VoidphoneParser implements OnionToOn
      * This implementation throws a ParsingError on every error!
      */
     @Override
-    public ParsedMessage buildOnionTunnelAcceptMsg(byte[] incomingLidRaw, byte[] handshakePayload) throws ParsingException
+    public ParsedMessage buildOnionTunnelAcceptMsg(byte[] incomingLidRaw, short cellSizes, byte[] handshakePayload) throws ParsingException
     {
         if(handshakePayload == null || handshakePayload.length < 1)
             throw new ParsingException("Handshake data is too short");
 
-        return new OnionTunnelAcceptParsedMessage(LidImpl.deserialize(incomingLidRaw), handshakePayload);
+        return new OnionTunnelAcceptParsedMessage(LidImpl.deserialize(incomingLidRaw), cellSizes, handshakePayload);
     }
 
     /**
@@ -85,9 +87,19 @@ public class OnionToOnionParserImpl extends VoidphoneParser implements OnionToOn
      */
     @Override
     public ParsedMessage buildOnionTunnelTransferMsgPlain(byte[] incomingLidRaw, ParsedMessage innerPkt) throws ParsingException {
-        if(innerPkt.getSize() > OnionTunnelTransportParsedMessage.MAX_INNER_SIZE)
+        return buildOnionTunnelTransferMsgPlain(incomingLidRaw, innerPkt, CellSize.SMALL);
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * This implementation throws a ParsingError on every error!
+     */
+    @Override
+    public ParsedMessage buildOnionTunnelTransferMsgPlain(byte[] incomingLidRaw, ParsedMessage innerPkt, CellSize cellSize) throws ParsingException {
+        if(innerPkt.getSize() + OnionTunnelTransportParsedMessage.MAGIC.length > cellSize.getSize())
             throw new ParsingException("Inner packet too large!");
-        int paddingSize = OnionTunnelTransportParsedMessage.MAX_INNER_SIZE - innerPkt.getSize() - OnionTunnelTransportParsedMessage.MAGIC.length;
+        int paddingSize = cellSize.getSize() - innerPkt.getSize() - OnionTunnelTransportParsedMessage.MAGIC.length;
         if(paddingSize == 0) {
             return new OnionTunnelTransportParsedMessage(LidImpl.deserialize(incomingLidRaw),
                     Arrays.concatenate("PtoP".getBytes(), innerPkt.serialize()));
@@ -117,7 +129,7 @@ public class OnionToOnionParserImpl extends VoidphoneParser implements OnionToOn
      */
     @Override
     public ParsedMessage buildOnionTunnelVoiceMsg(byte[] incomingLidRaw, byte[] payload) throws ParsingException {
-        if(payload.length + 4 + lidLen > OnionTunnelTransportParsedMessage.MAX_INNER_SIZE)
+        if(payload.length + 4 + lidLen > CellSize.LARGE.getSize())
             throw new ParsingException("Payload too long!");
 
         return new OnionTunnelVoiceParsedMessage(LidImpl.deserialize(incomingLidRaw), payload);
@@ -144,8 +156,16 @@ public class OnionToOnionParserImpl extends VoidphoneParser implements OnionToOn
      */
     @Override
     public List<ParsedMessage> buildOnionTunnelVoiceMsgs(byte[] incomingLidRaw, byte[] payload) throws ParsingException {
+        return buildOnionTunnelVoiceMsgs(incomingLidRaw, payload, CellSize.SMALL);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public List<ParsedMessage> buildOnionTunnelVoiceMsgs(byte[] incomingLidRaw, byte[] payload, CellSize cellSize) throws ParsingException {
         List<ParsedMessage> result = new ArrayList<>();
-        int partSize = OnionTunnelTransportParsedMessage.MAX_INNER_SIZE - lidLen - OnionTunnelTransportParsedMessage.MAGIC.length - 4; // subtract header
+        int partSize = cellSize.getSize() - lidLen - OnionTunnelTransportParsedMessage.MAGIC.length - 4; // subtract header
 
         int start = 0;
         while (start < payload.length) {
@@ -169,11 +189,13 @@ public class OnionToOnionParserImpl extends VoidphoneParser implements OnionToOn
 
         switch(extractType(data)) {
             case ONION_TUNNEL_INIT:
-                content = parseIncomingOnionMessage(data, 1, MessageType.ONION_TUNNEL_INIT);
-                return new OnionTunnelInitParsedMessage(content.lid, content.data);
+                content = parseIncomingOnionMessage(data, 4 + 1, MessageType.ONION_TUNNEL_INIT); // cell sizes, res, data
+                return new OnionTunnelInitParsedMessage(content.lid, extractCellSizes(content.data),
+                        Arrays.copyOfRange(content.data, 4, content.data.length));
             case ONION_TUNNEL_ACCEPT:
-                content = parseIncomingOnionMessage(data, 1, MessageType.ONION_TUNNEL_ACCEPT);
-                return new OnionTunnelAcceptParsedMessage(content.lid, content.data);
+                content = parseIncomingOnionMessage(data, 4 + 1, MessageType.ONION_TUNNEL_ACCEPT); // cell sizes, res, data
+                return new OnionTunnelAcceptParsedMessage(content.lid, extractCellSizes(content.data),
+                        Arrays.copyOfRange(content.data, 4, content.data.length));
             case ONION_TUNNEL_RELAY:
                 return parseIncomingRelayMessage(data);
             case ONION_TUNNEL_TRANSPORT:
@@ -186,11 +208,103 @@ public class OnionToOnionParserImpl extends VoidphoneParser implements OnionToOn
                 return new OnionTunnelVoiceParsedMessage(content.lid, content.data);
             case ONION_TUNNEL_ESTABLISHED:
                 return parseIncomingEstablishedMessage(data);
+            case ONION_TUNNEL_BUNDLE:
+                return parseBundle(Unpooled.wrappedBuffer(data));
             default:
                 throw new ParsingException("Not able to parse message. Type: " + extractType(data).getValue() + "!");
         }
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public OnionTransportCell parseTransportCell(ByteBuf data) throws ParsingException {
+        int start = data.readerIndex();
+        int length = data.readableBytes();
+        if(length < 4 || data.getShort(start + 2) != MessageType.ONION_TUNNEL_TRANSPORT.getValue())
+            return null;
+
+        if(data.getUnsignedShort(start) != length)
+            throw new ParsingException("Packet size does not match size field in header! Size of buffer: "
+                    + length + "; Size in packet: " + data.getUnsignedShort(start));
+        if(length < 4 + lidLen + OnionTunnelTransportParsedMessage.MAX_INNER_SIZE)
+            throw new ParsingException("Could not parse incoming ONION TUNNEL TRANSPORT message. Message too short to contain an Onion message");
+
+        byte[] lidRaw = new byte[lidLen];
+        data.getBytes(start + 4, lidRaw);
+        return new OnionTransportCell(data, LidImpl.deserialize(lidRaw));
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * This implementation throws a ParsingError on every error!
+     */
+    @Override
+    public ParsedMessage buildOnionTunnelBundleMsg(byte flags, List<ByteBuf> cells) throws ParsingException {
+        int size = OnionTunnelBundleParsedMessage.HEADER_SIZE;
+        for(ByteBuf cell : cells) {
+            if(cell.readableBytes() < 4 || cell.getShort(cell.readerIndex() + 2) != MessageType.ONION_TUNNEL_TRANSPORT.getValue())
+                throw new ParsingException("Only ONION TUNNEL TRANSPORT messages can be bundled!");
+            size += cell.readableBytes();
+        }
+        if(size > Short.MAX_VALUE)
+            throw new ParsingException("Bundle too large!");
+
+        return new OnionTunnelBundleParsedMessage(flags, new ArrayList<>(cells));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public OnionTunnelBundleParsedMessage parseBundle(ByteBuf data) throws ParsingException {
+        int start = data.readerIndex();
+        int length = data.readableBytes();
+        if(length < 4 || data.getShort(start + 2) != MessageType.ONION_TUNNEL_BUNDLE.getValue())
+            return null;
+
+        if(data.getUnsignedShort(start) != length)
+            throw new ParsingException("Packet size does not match size field in header! Size of buffer: "
+                    + length + "; Size in packet: " + data.getUnsignedShort(start));
+        if(length < OnionTunnelBundleParsedMessage.HEADER_SIZE)
+            throw new ParsingException("Could not parse incoming ONION TUNNEL BUNDLE message. Message too short!");
+
+        byte flags = data.getByte(start + 4);
+        int count = data.getUnsignedShort(start + 6);
+        List<ByteBuf> cells = new ArrayList<>(count);
+        int offset = start + OnionTunnelBundleParsedMessage.HEADER_SIZE;
+        for(int i = 0; i < count; i++) {
+            if(offset + 4 > start + length)
+                throw new ParsingException("Could not parse incoming ONION TUNNEL BUNDLE message. Cell " + i + " is truncated!");
+            int cellSize = data.getUnsignedShort(offset);
+            if(cellSize < 4 || offset + cellSize > start + length)
+                throw new ParsingException("Could not parse incoming ONION TUNNEL BUNDLE message. Invalid size of cell " + i + "!");
+            if(data.getShort(offset + 2) != MessageType.ONION_TUNNEL_TRANSPORT.getValue())
+                throw new ParsingException("Could not parse incoming ONION TUNNEL BUNDLE message. Cell " + i + " is no transport message!");
+            cells.add(data.slice(offset, cellSize));
+            offset += cellSize;
+        }
+        if(offset != start + length)
+            throw new ParsingException("Could not parse incoming ONION TUNNEL BUNDLE message. Trailing data after the last cell!");
+
+        return new OnionTunnelBundleParsedMessage(flags, cells);
+    }
+
+    /**
+     * Extract the mask of cell size classes at the beginning of the content of INIT and ACCEPT messages.
+     * Every peer supports the smallest class, hence it is always contained in the returned mask.
+     *
+     *
+     * @param content The content of the message following the LID.
+     *
+     * @return The mask of cell size classes.
+     */
+    private short extractCellSizes(byte[] content) {
+        return (short)(((content[0] & 0xFF) << 8 | (content[1] & 0xFF)) | CellSize.DEFAULT_MASK);
+    }
+
     /**
      * Parse an incoming ONION TUNNEL ESTABLISHED message.
      *
@@ -0,0 +1,87 @@
+package de.tum.in.net.group17.onion.parser.onion2onion;
+
+import de.tum.in.net.group17.onion.model.Lid;
+import de.tum.in.net.group17.onion.model.LidImpl;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * A ONION_TUNNEL_TRANSPORT message that is still located in the buffer it was received in.
+ * Intermediate hops use this view to forward cells without parsing them into a OnionTunnelTransportParsedMessage
+ * and serializing them again: The LID is rewritten in place and only the payload is swapped for the crypto output.
+ *
+ * Objects of this class may only be created by a OnionToOnionParser after checking all parameters.
+ * The cell does not own a reference to the buffer. Callers must not use it after the buffer was released.
+ */
+public class OnionTransportCell {
+    private static final int PAYLOAD_OFFSET = 4 + LidImpl.LENGTH;
+
+    private final ByteBuf buffer;
+    private final Lid lid;
+
+    /**
+     * Create a new view on a ONION_TUNNEL_TRANSPORT message after checking all parameters.
+     * This object may only be created by a OnionToOnionParser.
+     *
+     * @param buffer The buffer containing the complete message starting at its reader index.
+     * @param lid The LID contained in the message.
+     */
+    OnionTransportCell(ByteBuf buffer, Lid lid) {
+        this.buffer = buffer;
+        this.lid = lid;
+    }
+
+    /**
+     * Get the LID contained in this cell.
+     *
+     * @return The LID of the incoming tunnel from the receivers perspective.
+     */
+    public Lid getLid() {
+        return lid;
+    }
+
+    /**
+     * Create a OnionTunnelTransportParsedMessage carrying a copy of this cell's payload.
+     * This is the only copy of the payload on the forwarding path and is required to hand it to Onion Auth.
+     *
+     * @return The cell as parsed message.
+     */
+    public OnionTunnelTransportParsedMessage toParsedMessage() {
+        byte[] data = new byte[buffer.readableBytes() - PAYLOAD_OFFSET];
+        buffer.getBytes(buffer.readerIndex() + PAYLOAD_OFFSET, data);
+        return new OnionTunnelTransportParsedMessage(lid, data);
+    }
+
+    /**
+     * Rewrite this cell for the next hop.
+     * The LID is replaced in place. The payload is replaced in place if its size did not change, otherwise the
+     * header is reused and the new payload is appended without copying it.
+     *
+     * The returned buffer holds its own reference to the underlying buffer and must be released by the receiver
+     * (e.g. by writing it to a channel).
+     *
+     * @param newLid The LID used towards the next hop.
+     * @param payload The new payload, i.e. the output of Onion Auth.
+     * @return A buffer containing the complete rewritten cell.
+     * @throws ParsingException If the rewritten cell would exceed the maximum message size.
+     */
+    public ByteBuf rewrite(Lid newLid, byte[] payload) throws ParsingException {
+        int size = PAYLOAD_OFFSET + payload.length;
+        if(size > 65535)
+            throw new ParsingException("Packet too long!");
+
+        int start = buffer.readerIndex();
+        if(payload.length == buffer.readableBytes() - PAYLOAD_OFFSET) {
+            ByteBuf cell = buffer.retainedSlice(start, size);
+            cell.setBytes(4, newLid.serialize());
+            cell.setBytes(PAYLOAD_OFFSET, payload);
+            return cell;
+        }
+
+        ByteBuf header = buffer.retainedSlice(start, PAYLOAD_OFFSET);
+        header.setShort(0, size);
+        header.setBytes(4, newLid.serialize());
+        return Unpooled.wrappedBuffer(header, Unpooled.wrappedBuffer(payload));
+    }
+}
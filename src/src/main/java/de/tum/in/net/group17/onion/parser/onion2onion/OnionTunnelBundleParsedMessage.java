@@ -0,0 +1,122 @@
+package de.tum.in.net.group17.onion.parser.onion2onion;
+
+import de.tum.in.net.group17.onion.parser.MessageType;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * This class represents a ONION_TUNNEL_BUNDLE message packing several ONION_TUNNEL_TRANSPORT cells for the same
+ * neighbor into one datagram. Bundles are only sent to neighbors that answered a probe with an acknowledgement.
+ * The message consists of the header, one byte of flags, one reserved byte, the number of cells (two bytes) and the
+ * complete cells including their own headers.
+ * Objects of this class may only be created by OnionToOnionParsers.
+ *
+ * The cells are kept as buffers that are not owned by this message, i.e. the creator has to release them.
+ */
+public class OnionTunnelBundleParsedMessage extends ParsedMessage {
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * Flag of a bundle asking the receiver whether it is able to handle bundles.
+     */
+    public static final byte FLAG_PROBE = 0x01;
+
+    /**
+     * Flag of a bundle acknowledging a probe.
+     */
+    public static final byte FLAG_ACK = 0x02;
+
+    private byte flags;
+    private List<ByteBuf> cells;
+
+    /**
+     * Create a new ONION_TUNNEL_BUNDLE message after checking all parameters.
+     * This object may only be created by a OnionToOnionParser.
+     *
+     * @param flags The flags of this bundle.
+     * @param cells The serialized ONION_TUNNEL_TRANSPORT cells contained in this bundle.
+     */
+    OnionTunnelBundleParsedMessage(byte flags, List<ByteBuf> cells) {
+        this.flags = flags;
+        this.cells = cells;
+    }
+
+    /**
+     * Check if this bundle asks the receiver whether it supports bundles.
+     *
+     * @return True if this bundle is a probe.
+     */
+    public boolean isProbe() {
+        return (this.flags & FLAG_PROBE) != 0;
+    }
+
+    /**
+     * Check if this bundle acknowledges a probe.
+     *
+     * @return True if the sender of this bundle supports bundles.
+     */
+    public boolean isAck() {
+        return (this.flags & FLAG_ACK) != 0;
+    }
+
+    /**
+     * Get the cells contained in this bundle.
+     * Each buffer contains a complete ONION_TUNNEL_TRANSPORT message between its reader and writer index.
+     *
+     * @return The list of cells in this bundle.
+     */
+    public List<ByteBuf> getCells() {
+        return this.cells;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public byte[] serialize() {
+        ByteBuffer buffer = buildHeader();
+        buffer.put(this.flags);
+        buffer.put((byte)0);
+        buffer.putShort((short)this.cells.size());
+        for(ByteBuf cell : this.cells) {
+            byte[] raw = new byte[cell.readableBytes()];
+            cell.getBytes(cell.readerIndex(), raw);
+            buffer.put(raw);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void writeTo(ByteBuf buffer) {
+        writeHeader(buffer);
+        buffer.writeByte(this.flags);
+        buffer.writeByte(0);
+        buffer.writeShort(this.cells.size());
+        for(ByteBuf cell : this.cells) {
+            buffer.writeBytes(cell, cell.readerIndex(), cell.readableBytes());
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public short getSize() {
+        int size = HEADER_SIZE;
+        for(ByteBuf cell : this.cells) {
+            size += cell.readableBytes();
+        }
+        return (short)size;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public MessageType getType() {
+        return MessageType.ONION_TUNNEL_BUNDLE;
+    }
+}
@@ -12,6 +12,7 @@ import java.nio.ByteBuffer;
  * Objects may only be created by an OnionToOnionParser after checking all parameters.
  */
 public class OnionTunnelInitParsedMessage extends OnionToOnionParsedMessage {
+    private final short cellSizes;
     private final byte[] authPayload;
 
     /**
@@ -19,10 +20,12 @@ public class OnionTunnelInitParsedMessage extends OnionToOnionParsedMessage {
      * Objects of this class may only be created by OnionToOnionParsers.
      *
      * @param lid The LID contained in the message.
+     * @param cellSizes Mask of the cell size classes supported by the sender.
      * @param authPayload The payload of the Onion Auth module contained in this message.
      */
-    OnionTunnelInitParsedMessage(Lid lid, byte[] authPayload) {
+    OnionTunnelInitParsedMessage(Lid lid, short cellSizes, byte[] authPayload) {
         super(lid);
+        this.cellSizes = cellSizes;
         this.authPayload = authPayload;
     }
 
@@ -35,12 +38,23 @@ public class OnionTunnelInitParsedMessage extends OnionToOnionParsedMessage {
         return authPayload;
     }
 
+    /**
+     * Get the mask of cell size classes contained in this message.
+     *
+     * @return A mask of CellSize bits.
+     */
+    public short getCellSizes() {
+        return cellSizes;
+    }
+
     /**
      * @inheritDoc
      */
     public byte[] serialize() {
         ByteBuffer buffer = super.serializeBase();
 
+        buffer.putShort(cellSizes);
+        buffer.putShort((short)0); // Reserved
         buffer.put(authPayload);
 
         return buffer.array();
@@ -50,7 +64,7 @@ public class OnionTunnelInitParsedMessage extends OnionToOnionParsedMessage {
      * @inheritDoc
      */
     public short getSize() {
-        return (short)(super.getSizeBase() + authPayload.length);
+        return (short)(super.getSizeBase() + 4 + authPayload.length);
     }
 
     /**
@@ -3,6 +3,7 @@ package de.tum.in.net.group17.onion.parser.onion2onion;
 import de.tum.in.net.group17.onion.model.Lid;
 import de.tum.in.net.group17.onion.parser.MessageType;
 import de.tum.in.net.group17.onion.parser.ParsingException;
+import io.netty.buffer.ByteBuf;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -15,7 +16,11 @@ import java.util.Arrays;
  * Objects of this class may only be created by a OnionToOnionParser after checking all parameters.
  */
 public class OnionTunnelTransportParsedMessage extends OnionToOnionParsedMessage {
-    public static final int MAX_INNER_SIZE = 512;
+    /**
+     * Size of the payload of the smallest cells, used for all control messages. Tunnels may negotiate larger cells
+     * for their data, see CellSize.
+     */
+    public static final int MAX_INNER_SIZE = CellSize.SMALL.getSize();
     public static final byte[] MAGIC = "PtoP".getBytes();
 
     private byte[] data; // Inner packet including padding and magic prefix
@@ -78,7 +83,7 @@ public class OnionTunnelTransportParsedMessage extends OnionToOnionParsedMessage
      * Calling this method is only valid if this host is the receiver of the transport packet.
      * If the packet is not for this hop we will throw a IllegalStateException.
      *
-     * We throw a IllegalDataException if data (msg + padding) has an invalid size!
+     * We throw a IllegalDataException if data (msg + padding) does not match a cell size class!
      *
      * @return The packet contained in the ONION TUNNEL TRANSPORT payload.
      * @throws ParsingException If data (msg + padding) has an invalid size!
@@ -88,7 +93,7 @@ public class OnionTunnelTransportParsedMessage extends OnionToOnionParsedMessage
         if(!forMe())
             throw new IllegalStateException("This packet is not supposed for this peer." +
                     " Therefore, the inner packet is just garbage!");
-        if(this.data.length != MAX_INNER_SIZE) // Strip the MAGIC
+        if(CellSize.fromSize(this.data.length) == null) // Strip the MAGIC
             throw new ParsingException("Invalid data length!");
         ByteBuffer buffer = ByteBuffer.wrap(this.data);
         buffer.order(ByteOrder.BIG_ENDIAN);
@@ -106,6 +111,15 @@ public class OnionTunnelTransportParsedMessage extends OnionToOnionParsedMessage
         return buffer.array();
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void writeTo(ByteBuf buffer) {
+        writeBase(buffer);
+        buffer.writeBytes(this.data);
+    }
+
     /**
      * @inheritDoc
      */
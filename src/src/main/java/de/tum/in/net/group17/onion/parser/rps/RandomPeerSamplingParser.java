@@ -1,5 +1,6 @@
 package de.tum.in.net.group17.onion.parser.rps;
 
+import de.tum.in.net.group17.onion.parser.FrameParser;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.Parser;
 import de.tum.in.net.group17.onion.parser.ParsingException;
@@ -11,7 +12,7 @@ import de.tum.in.net.group17.onion.parser.ParsingException;
  * This interface provides methods to created outgoing messages to the RPS module and the check validity of incoming
  * messages.
  */
-public interface RandomPeerSamplingParser extends Parser {
+public interface RandomPeerSamplingParser extends Parser, FrameParser {
     /**
      * Build a RPS Query message.
      *
@@ -4,6 +4,8 @@ import de.tum.in.net.group17.onion.parser.MessageType;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
 import de.tum.in.net.group17.onion.parser.VoidphoneParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Primitive;
 
@@ -13,8 +15,6 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
  * Created by Marko Dorfhuber(PraMiD) on 24.05.17.
@@ -41,11 +41,24 @@ public class RandomPeerSamplingParserImpl extends VoidphoneParser implements Ran
     public ParsedMessage parseMsg(byte[] data) throws ParsingException {
         checkSize(data); // Throws an exception if an error occurs
 
-        switch(extractType(data)) {
+        return parseMsg(Unpooled.wrappedBuffer(data));
+    }
+
+    /**
+     * @inheritDoc
+     *
+     * The method throws a ParsingException on every parse error!
+     */
+    @Override
+    public ParsedMessage parseMsg(ByteBuf data) throws ParsingException {
+        checkSize(data); // Throws an exception if an error occurs
+
+        MessageType type = extractType(data);
+        switch(type) {
             case RPS_PEER:
                 return parseRpsPeerMsg(data);
             default:
-                throw new ParsingException("Not able to parse message. Type: " + extractType(data).getValue() + "!");
+                throw new ParsingException("Not able to parse message. Type: " + type.getValue() + "!");
         }
     }
 
@@ -53,45 +66,38 @@ public class RandomPeerSamplingParserImpl extends VoidphoneParser implements Ran
      * Parse an RPS PEER message.
      *
      *
-     * @param data Array containing the packet to parse.
+     * @param data Buffer containing the packet to parse starting at its reader index.
      *
      * @return RpsParsedObject of type RPS PEER.
      *
      * @throws ParsingException If the input does not contain a valid RPS PEER message.
      */
-    private ParsedMessage parseRpsPeerMsg(byte[] data) throws ParsingException {
+    private ParsedMessage parseRpsPeerMsg(ByteBuf data) throws ParsingException {
         InetAddress ipAddress;
         ASN1Primitive key;
-        ByteBuffer buffer;
+        int start = data.readerIndex();
         byte[] addr;
 
-        if (data.length < 13) // Contains header, port, res, IP address (IPv4 here!) and key (No length known)
+        if (data.readableBytes() < 13) // Contains header, port, res, IP address (IPv4 here!) and key (No length known)
             throw new ParsingException("Packet is too short to contain a header, an IP and a hostkey!");
-        checkType(data, MessageType.RPS_PEER); // Will throw a parsing exception on any error
-
-        buffer = ByteBuffer.wrap(data);
-        buffer.order(ByteOrder.BIG_ENDIAN);
 
-        short port= buffer.getShort(4);
+        short port = data.getShort(start + 4);
         try {
-            buffer.position(8);
-            if ((buffer.getShort(6) & (short)0x0001) == 0) {
+            if ((data.getShort(start + 6) & (short)0x0001) == 0) {
                 addr = new byte[4];
-                buffer.get(addr, 0, 4);
+                data.getBytes(start + 8, addr);
                 ipAddress = Inet4Address.getByAddress(addr);
             } else {
                 addr = new byte[16];
-                buffer.get(addr, 0, 16);
+                data.getBytes(start + 8, addr);
                 ipAddress = Inet6Address.getByAddress(addr);
             }
-        } catch(UnknownHostException e) {
-            //Can not happen, but throw exception to avoid compiler warnings
+        } catch(UnknownHostException | IndexOutOfBoundsException e) {
             throw new ParsingException("Invalid IP address!");
         }
 
-        byte[] keyRaw = new byte[data.length - 12];
-        buffer.position(12);
-        buffer.get(keyRaw);
+        byte[] keyRaw = new byte[data.readableBytes() - 12];
+        data.getBytes(start + 12, keyRaw);
 
         try {
             key = (new ASN1InputStream(new ByteArrayInputStream(keyRaw)).readObject()).toASN1Primitive();
@@ -0,0 +1,103 @@
+package de.tum.in.net.group17.onion.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Guards a remote module, e.g. the Onion Auth module, against requests it cannot serve right now.
+ * The breaker is closed while the module answers. After a number of consecutive requests that failed or were answered
+ * slower than a threshold it opens and rejects all requests, so callers fail immediately instead of waiting for their
+ * timeouts. Once the open time elapsed a single probe request is admitted (half-open), its outcome closes the breaker
+ * again or keeps it open for another period.
+ */
+public class CircuitBreaker {
+    /**
+     * The states of a circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int threshold;
+    private final long slowNanos;
+    private final long openNanos;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long openedAt;
+
+    /**
+     * Create a new closed breaker.
+     *
+     * @param threshold The number of consecutive failed or slow requests opening the breaker. Zero disables it.
+     * @param slow The latency from which on a successful request counts as failed.
+     * @param open The time the breaker rejects requests before it admits a probe.
+     */
+    public CircuitBreaker(int threshold, Duration slow, Duration open) {
+        this.threshold = threshold;
+        this.slowNanos = slow.toNanos();
+        this.openNanos = open.toNanos();
+    }
+
+    /**
+     * Check whether a new request may be sent. Every admitted request has to report its outcome with
+     * {@link #onSuccess(long)} or {@link #onFailure()}.
+     *
+     * @return True if the request may be sent, false if it has to be rejected.
+     */
+    public boolean tryAcquire() {
+        switch(this.state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                // admit exactly one probe once the open time elapsed
+                return System.nanoTime() - this.openedAt >= this.openNanos
+                        && this.state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Report a request that has been answered.
+     *
+     * @param latencyNanos The time the request took in nanoseconds.
+     */
+    public void onSuccess(long latencyNanos) {
+        if(latencyNanos > this.slowNanos) {
+            onFailure();
+            return;
+        }
+        this.failures.set(0);
+        this.state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+    }
+
+    /**
+     * Report a request that failed, e.g. because it timed out or could not be sent.
+     */
+    public void onFailure() {
+        if(this.threshold <= 0)
+            return;
+        if(this.failures.incrementAndGet() >= this.threshold || this.state.get() == State.HALF_OPEN) {
+            this.openedAt = System.nanoTime();
+            this.state.set(State.OPEN);
+        }
+    }
+
+    /**
+     * Get the current state of the breaker.
+     *
+     * @return The state.
+     */
+    public State getState() {
+        return this.state.get();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public String toString() {
+        return "Breaker: state=" + this.state.get() + ", failures=" + this.failures.get();
+    }
+}
@@ -0,0 +1,29 @@
+package de.tum.in.net.group17.onion.util;
+
+/**
+ * Policies deciding which tasks a bounded executor sheds once it is congested.
+ */
+public enum DropPolicy {
+    /**
+     * Drop every new task while the queue is full.
+     */
+    TAIL,
+
+    /**
+     * Limit each key to a fair share of the queue, so a single flooding tunnel cannot fill the queue on its own.
+     * Tasks are dropped if their key exceeds its share or if the queue is full.
+     */
+    FAIR;
+
+    /**
+     * Get the policy matching a configuration value.
+     *
+     * @param name The name of the policy, case insensitive.
+     *
+     * @return The matching policy.
+     * @throws IllegalArgumentException If there is no policy with the given name.
+     */
+    public static DropPolicy fromString(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
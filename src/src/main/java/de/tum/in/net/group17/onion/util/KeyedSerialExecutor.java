@@ -0,0 +1,291 @@
+package de.tum.in.net.group17.onion.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Executor running tasks with the same key one after another in submission order, while tasks with different keys
+ * run concurrently on a pool of workers.
+ * Keys are spread over a fixed number of single threaded processing stages by their hash code, therefore e.g. all
+ * cells of one tunnel are handled in arrival order without serializing the whole node.
+ * Optionally the number of queued tasks is bounded, shedding tasks according to a {@link DropPolicy} via
+ * {@link #trySubmit(Object, Runnable)}.
+ * Tasks waiting for a response, e.g. of the Onion Auth module, hand their continuation to
+ * {@link #whenComplete(Object, CompletableFuture, BiConsumer)} instead of blocking a worker.
+ */
+public class KeyedSerialExecutor {
+    private final String name;
+    private final ProcessingStage[] stages;
+
+    private final int capacity;
+    private final DropPolicy policy;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentHashMap<Object, AtomicInteger> queuedPerKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Object, CompletableFuture<Void>> pendingPerKey = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new executor without a bound on the number of queued tasks.
+     *
+     * @param name The name of the executor, used for its threads and statistics.
+     * @param workers The number of worker threads. Must be at least one.
+     */
+    public KeyedSerialExecutor(String name, int workers) {
+        this(name, workers, Integer.MAX_VALUE, DropPolicy.TAIL);
+    }
+
+    /**
+     * Create a new executor holding at most capacity tasks that have not finished yet.
+     *
+     * @param name The name of the executor, used for its threads and statistics.
+     * @param workers The number of worker threads. Must be at least one.
+     * @param capacity The maximal number of queued or running tasks accepted by {@link #trySubmit(Object, Runnable)}.
+     * @param policy The policy deciding which tasks are dropped if the executor is congested.
+     */
+    public KeyedSerialExecutor(String name, int workers, int capacity, DropPolicy policy) {
+        if(workers < 1)
+            throw new IllegalArgumentException("A keyed executor requires at least one worker.");
+        if(capacity < 1)
+            throw new IllegalArgumentException("A keyed executor requires a capacity of at least one.");
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.stages = new ProcessingStage[workers];
+        for(int i = 0; i < workers; i++) {
+            this.stages[i] = new ProcessingStage(name + "-" + i, 1);
+        }
+    }
+
+    /**
+     * Hand a task to this executor.
+     *
+     * @param key The key determining the order of the task, e.g. a LID or tunnel ID. Tasks with equal keys are run
+     *            in the order they have been submitted.
+     * @param task The task to execute.
+     */
+    public void submit(Object key, Runnable task) {
+        queued.incrementAndGet();
+        getStage(key).submit(() -> {
+            try {
+                task.run();
+            } finally {
+                queued.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Hand a task to this executor unless the executor is congested according to its drop policy.
+     *
+     * @param key The key determining the order of the task, e.g. a LID or tunnel ID. Must not be null.
+     * @param task The task to execute.
+     *
+     * @return True if the task has been queued, false if it has been dropped.
+     */
+    public boolean trySubmit(Object key, Runnable task) {
+        if(queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            return false;
+        }
+
+        if(policy == DropPolicy.FAIR) {
+            AtomicInteger count = queuedPerKey.compute(key, (k, v) -> {
+                AtomicInteger c = v == null ? new AtomicInteger() : v;
+                c.incrementAndGet();
+                return c;
+            });
+            // Leave room for at least one more key besides all keys currently queued
+            int share = Math.max(1, capacity / (queuedPerKey.size() + 1));
+            if(count.get() > share) {
+                releaseKey(key);
+                queued.decrementAndGet();
+                return false;
+            }
+        }
+
+        getStage(key).submit(() -> {
+            try {
+                task.run();
+            } finally {
+                if(policy == DropPolicy.FAIR)
+                    releaseKey(key);
+                queued.decrementAndGet();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Run an action with the outcome of a future once it completed. Actions of the same key run one after another in
+     * the order they have been registered, even if their futures complete in another order.
+     * The action runs on the calling thread if the future is done already and no earlier action of the key is
+     * pending, otherwise it is queued for the worker of the key once it is its turn.
+     *
+     * @param key The key determining the order of the action, e.g. a LID. Must not be null.
+     * @param future The future whose outcome is handed to the action.
+     * @param action The action, called with the result or the error the future failed with.
+     */
+    public <T> void whenComplete(Object key, CompletableFuture<T> future, BiConsumer<? super T, ? super Throwable> action) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = pendingPerKey.put(key, done);
+        Runnable run = () -> {
+            try {
+                T result = null;
+                Throwable error = null;
+                try {
+                    result = future.join();
+                } catch (CompletionException e) {
+                    error = e.getCause();
+                } catch (CancellationException e) {
+                    error = e;
+                }
+                action.accept(result, error);
+            } finally {
+                pendingPerKey.remove(key, done);
+                done.complete(null);
+            }
+        };
+
+        if((previous == null || previous.isDone()) && future.isDone()) {
+            run.run();
+            return;
+        }
+        CompletableFuture<?> ready = previous == null ? future : CompletableFuture.allOf(previous, future);
+        ready.whenComplete((result, error) -> submit(key, run));
+    }
+
+    /**
+     * Decrement the number of queued tasks of a key, forgetting the key once it has no tasks left.
+     *
+     * @param key The key of a finished or dropped task.
+     */
+    private void releaseKey(Object key) {
+        queuedPerKey.computeIfPresent(key, (k, v) -> v.decrementAndGet() == 0 ? null : v);
+    }
+
+    /**
+     * Get the stage responsible for all tasks of a key.
+     *
+     * @param key The key of a task.
+     *
+     * @return The stage running the tasks of the key.
+     */
+    private ProcessingStage getStage(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        // Spread the hash as consecutive tunnel IDs would otherwise map onto neighbouring workers only
+        hash ^= (hash >>> 16);
+        return this.stages[Math.floorMod(hash, this.stages.length)];
+    }
+
+    /**
+     * Get the number of workers of this executor.
+     *
+     * @return The number of workers.
+     */
+    public int getWorkerCount() {
+        return this.stages.length;
+    }
+
+    /**
+     * Get the number of tasks that have been handed to this executor, but did not finish yet.
+     *
+     * @return The current queue depth.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Get the number of tasks handed to this executor so far.
+     *
+     * @return The number of submitted tasks.
+     */
+    public long getSubmittedCount() {
+        long count = 0;
+        for(ProcessingStage stage : this.stages) {
+            count += stage.getSubmittedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of tasks this executor finished so far.
+     *
+     * @return The number of completed tasks.
+     */
+    public long getCompletedCount() {
+        long count = 0;
+        for(ProcessingStage stage : this.stages) {
+            count += stage.getCompletedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of keys with queued or running tasks tracked for the FAIR policy.
+     *
+     * @return The number of keys.
+     */
+    int getQueuedKeyCount() {
+        return queuedPerKey.size();
+    }
+
+    /**
+     * Get the number of keys with actions waiting for their futures or their turn.
+     *
+     * @return The number of keys.
+     */
+    int getPendingKeyCount() {
+        return pendingPerKey.size();
+    }
+
+    /**
+     * Get the largest latency (queueing and processing) of a task seen on any worker.
+     *
+     * @return The maximal latency in microseconds.
+     */
+    public long getMaxLatencyMicros() {
+        long max = 0;
+        for(ProcessingStage stage : this.stages) {
+            max = Math.max(max, stage.getMaxLatencyMicros());
+        }
+        return max;
+    }
+
+    /**
+     * Get the largest queue depth of a single worker, hinting at keys not being spread evenly.
+     *
+     * @return The largest queue depth of a worker.
+     */
+    public int getMaxWorkerQueueDepth() {
+        int max = 0;
+        for(ProcessingStage stage : this.stages) {
+            max = Math.max(max, stage.getQueueDepth());
+        }
+        return max;
+    }
+
+    /**
+     * Stop all workers of this executor. Queued tasks are still processed.
+     */
+    public void shutdown() {
+        for(ProcessingStage stage : this.stages) {
+            stage.shutdown();
+        }
+    }
+
+    /**
+     * Get a summary of the statistics of this executor.
+     *
+     * @return A human readable summary.
+     */
+    @Override
+    public String toString() {
+        return "Executor " + name + ": workers=" + getWorkerCount() + ", queued=" + getQueueDepth()
+                + ", maxWorkerQueue=" + getMaxWorkerQueueDepth() + ", submitted=" + getSubmittedCount()
+                + ", completed=" + getCompletedCount() + ", maxLatency=" + getMaxLatencyMicros() + "us";
+    }
+}
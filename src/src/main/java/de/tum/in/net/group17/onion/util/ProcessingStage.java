@@ -0,0 +1,149 @@
+package de.tum.in.net.group17.onion.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A processing stage owning its own worker threads and task queue.
+ * Work that may block (e.g. waiting for Onion Auth) is handed to a stage so the Netty I/O threads only decode and
+ * route messages. Every stage records its queue depth, the time tasks spend waiting in the queue and the time spent
+ * processing them.
+ */
+public class ProcessingStage {
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final Logger logger;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder queueTimeNanos = new LongAdder();
+    private final LongAdder serviceTimeNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Create a new stage.
+     *
+     * @param name The name of the stage, used for its threads and statistics.
+     * @param threads The number of worker threads. Use one thread if tasks have to be processed in order.
+     */
+    public ProcessingStage(String name, int threads) {
+        this.name = name;
+        this.logger = LogManager.getLogger(ProcessingStage.class);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Hand a task to this stage.
+     *
+     * @param task The task to execute on one of the stage's threads.
+     */
+    public void submit(Runnable task) {
+        final long enqueued = System.nanoTime();
+        submitted.increment();
+        executor.execute(() -> {
+            long started = System.nanoTime();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Unhandled error in stage " + name + ": " + e.getMessage());
+            } finally {
+                long finished = System.nanoTime();
+                queueTimeNanos.add(started - enqueued);
+                serviceTimeNanos.add(finished - started);
+                maxLatencyNanos.accumulateAndGet(finished - enqueued, Math::max);
+                completed.increment();
+            }
+        });
+    }
+
+    /**
+     * Get the number of tasks waiting to be processed.
+     *
+     * @return The current queue depth.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of tasks handed to this stage so far.
+     *
+     * @return The number of submitted tasks.
+     */
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /**
+     * Get the number of tasks this stage finished so far.
+     *
+     * @return The number of completed tasks.
+     */
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    /**
+     * Get the average time a task waited in the queue of this stage.
+     *
+     * @return The average queueing time in microseconds.
+     */
+    public long getAverageQueueTimeMicros() {
+        long count = completed.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(queueTimeNanos.sum() / count);
+    }
+
+    /**
+     * Get the average time a task of this stage needed to be processed.
+     *
+     * @return The average processing time in microseconds.
+     */
+    public long getAverageServiceTimeMicros() {
+        long count = completed.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(serviceTimeNanos.sum() / count);
+    }
+
+    /**
+     * Get the largest latency (queueing and processing) of a task seen in this stage.
+     *
+     * @return The maximal latency in microseconds.
+     */
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+    /**
+     * Stop the threads of this stage. Queued tasks are still processed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Get a summary of the statistics of this stage.
+     *
+     * @return A human readable summary.
+     */
+    @Override
+    public String toString() {
+        return "Stage " + name + ": queued=" + getQueueDepth() + ", submitted=" + getSubmittedCount()
+                + ", completed=" + getCompletedCount() + ", avgQueueTime=" + getAverageQueueTimeMicros()
+                + "us, avgServiceTime=" + getAverageServiceTimeMicros() + "us, maxLatency=" + getMaxLatencyMicros() + "us";
+    }
+}
@@ -0,0 +1,154 @@
+package de.tum.in.net.group17.onion.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Correlates responses with pending requests by request ID without locks, boxing or allocation.
+ * The table is a power-of-two slot array indexed by the lower bits of the request ID. Each slot remembers the full ID
+ * of its request, so a late response to a request that timed out is detected as stale even if a newer request with
+ * the same lower bits occupies the slot by now.
+ *
+ * A request ID is reserved before sending the request and the pending value is attached once it is known. Values
+ * must be distinct objects, e.g. a future per request.
+ *
+ * @param <T> The type of the value awaiting the response, e.g. a future.
+ */
+public class RequestTable<T> {
+    private final int mask;
+    private final AtomicIntegerArray ids;
+    private final AtomicReferenceArray<T> values;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Create a new table.
+     *
+     * @param capacity The minimal number of requests that can be pending at once, rounded up to a power of two.
+     */
+    public RequestTable(int capacity) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.ids = new AtomicIntegerArray(size);
+        this.values = new AtomicReferenceArray<>(size);
+        for(int i = 0; i < size; i++) {
+            this.ids.set(i, free(i));
+        }
+    }
+
+    /**
+     * Get a new request ID for a message that does not expect a response, hence is not registered.
+     *
+     * @return The request ID.
+     */
+    public int nextId() {
+        return this.counter.getAndIncrement();
+    }
+
+    /**
+     * Reserve a slot and get the ID of a new request. Slots still occupied by requests issued long ago are skipped.
+     * Every reserved ID has to be freed with {@link #release(int)} or {@link #remove(int)}.
+     *
+     * @return The request ID.
+     * @throws IllegalStateException If all slots are occupied.
+     */
+    public int reserve() {
+        for(int i = 0; i <= this.mask; i++) {
+            int requestId = this.counter.getAndIncrement();
+            int slot = requestId & this.mask;
+            if(this.ids.compareAndSet(slot, free(slot), requestId))
+                return requestId;
+        }
+        throw new IllegalStateException("All " + (this.mask + 1) + " request slots are occupied.");
+    }
+
+    /**
+     * Attach the value awaiting the response to a reserved request ID.
+     *
+     * @param requestId The reserved ID.
+     * @param value The value to return when the response arrives.
+     */
+    public void set(int requestId, T value) {
+        int slot = requestId & this.mask;
+        if(this.ids.get(slot) != requestId)
+            throw new IllegalStateException("Request ID " + requestId + " has not been reserved.");
+        this.values.set(slot, value);
+    }
+
+    /**
+     * Free a reserved request ID that has no value attached, e.g. because the request could not be built.
+     *
+     * @param requestId The reserved ID.
+     */
+    public void release(int requestId) {
+        int slot = requestId & this.mask;
+        if(this.values.get(slot) == null)
+            this.ids.compareAndSet(slot, requestId, free(slot));
+    }
+
+    /**
+     * Remove the pending value of a request, e.g. when its response arrived.
+     *
+     * @param requestId The ID of the request.
+     *
+     * @return The pending value or null if the request is unknown, i.e. the response is stale or late.
+     */
+    public T remove(int requestId) {
+        int slot = requestId & this.mask;
+        if(this.ids.get(slot) != requestId)
+            return null;
+        T value = this.values.get(slot);
+        // the ID is written before the value, so the value belongs to our request if the ID did not change meanwhile
+        if(value == null || this.ids.get(slot) != requestId)
+            return null;
+        return free(slot, value) ? value : null;
+    }
+
+    /**
+     * Remove the pending value of a request if it is still the given one, e.g. when the request timed out.
+     *
+     * @param requestId The ID of the request.
+     * @param value The expected pending value.
+     *
+     * @return True if the value has been removed, false if the request has been removed before.
+     */
+    public boolean remove(int requestId, T value) {
+        int slot = requestId & this.mask;
+        return this.ids.get(slot) == requestId && free(slot, value);
+    }
+
+    /**
+     * Get the number of slots of this table.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * Clear a slot if it still holds the given value. Only one of concurrent callers succeeds.
+     *
+     * @param slot The slot to clear.
+     * @param value The expected value.
+     *
+     * @return True if the slot has been cleared by this call.
+     */
+    private boolean free(int slot, T value) {
+        if(!this.values.compareAndSet(slot, value, null))
+            return false;
+        this.ids.set(slot, free(slot));
+        return true;
+    }
+
+    /**
+     * Get the marker of a free slot. It never maps to its own slot, hence never equals a request ID stored there.
+     *
+     * @param slot The slot.
+     *
+     * @return The marker.
+     */
+    private int free(int slot) {
+        return ~slot;
+    }
+}
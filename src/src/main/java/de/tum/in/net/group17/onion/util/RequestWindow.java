@@ -0,0 +1,86 @@
+package de.tum.in.net.group17.onion.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Limits the number of requests awaiting a response without blocking the issuer of a request.
+ * Requests exceeding the window are queued and admitted in arrival order as soon as responses free slots, so no
+ * issuer can starve the others.
+ */
+public class RequestWindow {
+    private final int size;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    /**
+     * Create a new window.
+     *
+     * @param size The maximal number of requests in flight. Must be at least one.
+     */
+    public RequestWindow(int size) {
+        if(size < 1)
+            throw new IllegalArgumentException("A request window requires a size of at least one.");
+        this.size = size;
+    }
+
+    /**
+     * Send a request once the window has a free slot.
+     * The request is sent on the calling thread if the window is not full, otherwise by the thread calling
+     * {@link #release()} for an earlier request. Every admitted request has to call {@link #release()} exactly once
+     * when its response arrived or it failed.
+     *
+     * @param send The task sending the request.
+     */
+    public void submit(Runnable send) {
+        synchronized (this) {
+            if(this.inFlight >= this.size) {
+                this.waiting.add(send);
+                return;
+            }
+            this.inFlight++;
+        }
+        send.run();
+    }
+
+    /**
+     * Free the slot of a completed request, sending the next waiting request if there is one.
+     */
+    public void release() {
+        Runnable next;
+        synchronized (this) {
+            next = this.waiting.poll();
+            if(next == null) {
+                this.inFlight--;
+                return;
+            }
+        }
+        next.run();
+    }
+
+    /**
+     * Get the number of requests currently in flight.
+     *
+     * @return The number of admitted requests that have not been released.
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * Get the number of requests waiting for a free slot.
+     *
+     * @return The number of queued requests.
+     */
+    public synchronized int getWaiting() {
+        return this.waiting.size();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public synchronized String toString() {
+        return "Window: size=" + this.size + ", inFlight=" + this.inFlight + ", waiting=" + this.waiting.size();
+    }
+}
@@ -0,0 +1,75 @@
+package de.tum.in.net.group17.onion.util;
+
+import com.google.inject.Singleton;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Deadlines of all pending requests of the Onion module, e.g. to the auth and RPS module or for tunnel accepts.
+ * All deadlines share a single hashed timing wheel and its thread, so pending requests do not need a waiting thread
+ * each and scheduling as well as cancelling a deadline is constant in time. Deadlines are accurate to one tick.
+ */
+@Singleton
+public class TimeoutService {
+    /**
+     * Duration of one tick of the wheel in milliseconds, the accuracy of all deadlines.
+     */
+    private static final long TICK_MILLIS = 10;
+
+    /**
+     * Number of buckets of the wheel, covering about five seconds per round with the tick duration above.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private final HashedWheelTimer timer;
+
+    /**
+     * Create a new timeout service. Its thread is a daemon started with the first deadline.
+     */
+    public TimeoutService() {
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("timeouts", true),
+                TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+
+    /**
+     * Run a task after a delay on the thread of the wheel. The task has to be short, it delays all other deadlines.
+     *
+     * @param task The task to run.
+     * @param delay The delay.
+     *
+     * @return The handle to cancel the task.
+     */
+    public Timeout schedule(Runnable task, Duration delay) {
+        return this.timer.newTimeout(timeout -> task.run(), delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fail a future if it is not completed before its deadline. The deadline is cancelled once the future completes.
+     *
+     * @param future The future, e.g. of a pending request.
+     * @param deadline The time until the future has to be completed.
+     * @param error Creates the error the future fails with on expiry.
+     *
+     * @return The given future.
+     */
+    public <T> CompletableFuture<T> expire(CompletableFuture<T> future, Duration deadline, Supplier<Throwable> error) {
+        Timeout timeout = schedule(() -> future.completeExceptionally(error.get()), deadline);
+        future.whenComplete((res, err) -> timeout.cancel());
+        return future;
+    }
+
+    /**
+     * Get the number of deadlines that neither expired nor have been cancelled yet.
+     *
+     * @return The number of pending deadlines.
+     */
+    public long getPending() {
+        return this.timer.pendingTimeouts();
+    }
+}
@@ -1,7 +1,13 @@
 package de.tum.in.net.group17.onion.config;
 
+import de.tum.in.net.group17.onion.interfaces.NettyTransport;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthEngine;
+import de.tum.in.net.group17.onion.parser.onion2onion.CellSize;
+import de.tum.in.net.group17.onion.util.DropPolicy;
+
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.PrivateKey;
 import java.time.Duration;
 
 /**
@@ -145,4 +151,164 @@ public class ConfigurationProviderMock implements ConfigurationProvider {
     public int getRpsApiPort() {
         return rpsModulePort;
     }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public NettyTransport getTransport() {
+        return NettyTransport.NIO;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getP2PSocketCount() {
+        return 1;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getIngressQueueSize() {
+        return 4096;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public DropPolicy getIngressDropPolicy() {
+        return DropPolicy.TAIL;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getBundleMtu() {
+        return 1472;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public short getCellSizes() {
+        return (short)(CellSize.SMALL.getBit() | CellSize.MEDIUM.getBit() | CellSize.LARGE.getBit());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getUdpReceiveBufferMin() {
+        return 65536;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getUdpReceiveBufferMax() {
+        return 65536;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getAuthWindow() {
+        return 128;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getAuthConnections() {
+        return 1;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public AuthEngine getAuthEngine() {
+        return AuthEngine.EXTERNAL;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public PrivateKey getHostPrivateKey() {
+        return null;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getAuthTimeout() {
+        return Duration.ofSeconds(5);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getAcceptTimeout() {
+        return Duration.ofSeconds(5);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getRpsTimeout() {
+        return Duration.ofSeconds(5);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getHandshakePoolSize() {
+        return 16;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getAuthBreakerThreshold() {
+        return 5;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Duration getAuthBreakerLatency() {
+        return Duration.ofSeconds(1);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getIoThreads() {
+        return 0;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getHandlerThreads() {
+        return 4;
+    }
 }
@@ -0,0 +1,90 @@
+package de.tum.in.net.group17.onion.interfaces;
+
+import de.tum.in.net.group17.onion.config.ConfigurationProviderMock;
+import de.tum.in.net.group17.onion.util.KeyedSerialExecutor;
+import io.netty.channel.EventLoopGroup;
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the event loops shared by all network interfaces.
+ */
+public class EventLoopResourcesTest {
+    /**
+     * Check that all users get the same groups and that shutdown terminates them and prevents new ones.
+     */
+    @Test
+    public void sharedAndShutDown() {
+        EventLoopResources resources = new EventLoopResources(NettyTransport.NIO, 2, 1);
+        EventLoopGroup io = resources.getIoGroup();
+        EventLoopGroup accept = resources.getAcceptGroup();
+        assertSame(io, resources.getIoGroup());
+        assertNotSame(io, accept);
+
+        resources.shutdown();
+        assertTrue(io.isTerminated());
+        assertTrue(accept.isTerminated());
+        try {
+            resources.getIoGroup();
+            fail("Event loops must not be handed out after shutdown.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Check that every P2P socket gets an event loop of its own regardless of the configured number of event loops.
+     */
+    @Test
+    public void ioThreadsPerSocket() throws Exception {
+        assertEquals(3, new EventLoopResources(config(1, 3)).getIoThreads());
+        assertEquals(4, new EventLoopResources(config(4, 3)).getIoThreads());
+        assertEquals(Math.max(2 * Runtime.getRuntime().availableProcessors(), 64),
+                new EventLoopResources(config(0, 64)).getIoThreads());
+    }
+
+    /**
+     * Check that registered executors are shut down with the event loops and executors registered afterwards right
+     * away.
+     */
+    @Test
+    public void registeredExecutorsShutDown() {
+        EventLoopResources resources = new EventLoopResources(NettyTransport.NIO, 1, 1);
+        KeyedSerialExecutor before = new KeyedSerialExecutor("before", 1);
+        resources.register(before);
+        before.submit(1, () -> { });
+
+        resources.shutdown();
+        assertRejected(before);
+        KeyedSerialExecutor after = new KeyedSerialExecutor("after", 1);
+        resources.register(after);
+        assertRejected(after);
+    }
+
+    private static void assertRejected(KeyedSerialExecutor executor) {
+        try {
+            executor.submit(1, () -> { });
+            fail("Executor must be shut down.");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    private static ConfigurationProviderMock config(int ioThreads, int sockets) throws Exception {
+        return new ConfigurationProviderMock(5000, 6000, 7000, 9000, 1, "localhost", "localhost", "localhost",
+                "localhost", 60) {
+            @Override
+            public int getIoThreads() {
+                return ioThreads;
+            }
+
+            @Override
+            public int getP2PSocketCount() {
+                return sockets;
+            }
+        };
+    }
+}
@@ -3,17 +3,50 @@ package de.tum.in.net.group17.onion.interfaces.authentication;
 import de.tum.in.net.group17.onion.config.ConfigurationProvider;
 import de.tum.in.net.group17.onion.config.ConfigurationProviderImpl;
 import de.tum.in.net.group17.onion.config.ConfigurationProviderMock;
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
+import de.tum.in.net.group17.onion.model.Direction;
+import de.tum.in.net.group17.onion.model.LidImpl;
+import de.tum.in.net.group17.onion.model.TunnelSegment;
 import de.tum.in.net.group17.onion.model.results.RequestResult;
 import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.parser.MessageType;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
 import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs1ParsedMessage;
 import de.tum.in.net.group17.onion.parser.authentication.AuthenticationParser;
 import de.tum.in.net.group17.onion.parser.authentication.AuthenticationParserImpl;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParser;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParserImpl;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+import de.tum.in.net.group17.onion.util.TimeoutService;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
 
 /**
  * Created by Christoph Rudolf on 27.05.17.
@@ -89,4 +122,385 @@ public class AuthenticationInterfaceImplTest {
             System.out.println("Received response");
     }
 
-}
\ No newline at end of file
+    /**
+     * Test that several requests can be in flight at once and are matched to their responses by the request ID even
+     * if the auth module answers them out of order.
+     *
+     * @throws Exception If the fake auth module fails or a request is not answered in time.
+     * @throws AuthException If the auth module returns an error.
+     */
+    @Test
+    public void pipelinedSessionStarts() throws Exception, AuthException {
+        final int requests = 3;
+        try (ServerSocket authModule = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread authThread = new Thread(() -> {
+                try (Socket socket = authModule.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    List<Integer> requestIds = new ArrayList<>();
+                    for (int i = 0; i <= requests; i++) {
+                        byte[] request = new byte[in.readUnsignedShort()];
+                        in.readFully(request, 2, request.length - 2);
+                        requestIds.add(ByteBuffer.wrap(request).getInt(8));
+                        if (i < requests - 1)
+                            continue;
+                        // Answer all pending requests in reverse order, using the request ID as session ID
+                        Collections.reverse(requestIds);
+                        for (int requestId : requestIds) {
+                            out.writeShort(12);
+                            out.writeShort(MessageType.AUTH_SESSION_HS1.getValue());
+                            out.writeShort(0);
+                            out.writeShort(requestId);
+                            out.writeInt(requestId);
+                        }
+                        out.flush();
+                        requestIds.clear();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Fake auth module failed: " + e.getMessage());
+                }
+            });
+            authThread.start();
+
+            ConfigurationProvider config = new ConfigurationProviderMock(5000,
+                    6000,
+                    authModule.getLocalPort(),
+                    9000,
+                    1,
+                    "localhost",
+                    InetAddress.getLoopbackAddress().getHostAddress(),
+                    "localhost",
+                    "localhost",
+                    60);
+            AuthenticationInterfaceImpl intf = new AuthenticationInterfaceImpl(config, new AuthenticationParserImpl(), new TimeoutService(),
+                    new EventLoopResources(config));
+
+            Peer peer = new Peer(derKey);
+            List<CompletableFuture<AuthSessionHs1ParsedMessage>> futures = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                futures.add(intf.startSessionAsync(peer));
+            }
+            for (int i = 0; i < requests; i++) {
+                AuthSessionHs1ParsedMessage hs1 = futures.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals(i, hs1.getRequestId());
+                assertEquals(i, hs1.getSessionId());
+            }
+
+            // The blocking method is answered as well
+            AuthSessionHs1ParsedMessage hs1 = intf.startSession(peer);
+            assertEquals(requests, hs1.getSessionId());
+            authThread.join(5000);
+        }
+    }
+
+    /**
+     * Test that requests to an unreachable auth module fail right away instead of waiting for their timeout, both
+     * while the connection is being established and while it is retried.
+     *
+     * @throws Exception If the request does not fail in time.
+     */
+    @Test
+    public void unreachableFailsFast() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = closed.getLocalPort();
+        }
+        ConfigurationProvider config = new ConfigurationProviderMock(5000,
+                6000,
+                port,
+                9000,
+                1,
+                "localhost",
+                InetAddress.getLoopbackAddress().getHostAddress(),
+                "localhost",
+                "localhost",
+                60);
+        EventLoopResources resources = new EventLoopResources(config);
+        try {
+            AuthenticationInterfaceImpl intf = new AuthenticationInterfaceImpl(config, new AuthenticationParserImpl(),
+                    new TimeoutService(), resources);
+            Peer peer = new Peer(derKey);
+            for (int i = 0; i < 2; i++) {
+                CompletableFuture<AuthSessionHs1ParsedMessage> res = intf.startSessionAsync(peer);
+                try {
+                    res.get(1, TimeUnit.SECONDS); // well below the auth timeout of five seconds
+                    fail("Session start to an unreachable auth module succeeded.");
+                } catch (ExecutionException e) {
+                    // expected
+                }
+            }
+        } finally {
+            resources.shutdown();
+        }
+    }
+
+    /**
+     * Test that a request timing out frees its slot in the request window, so the request waiting behind it is sent
+     * and fails on its own timeout instead of waiting forever.
+     *
+     * @throws Exception If the fake auth module fails or the requests do not fail in time.
+     */
+    @Test
+    public void windowReleasedOnTimeout() throws Exception {
+        try (ServerSocket authModule = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            List<Integer> requestIds = Collections.synchronizedList(new ArrayList<>());
+            Thread authThread = new Thread(() -> {
+                // never answers
+                try (Socket socket = authModule.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    for (int i = 0; i < 2; i++) {
+                        byte[] request = new byte[in.readUnsignedShort()];
+                        in.readFully(request, 2, request.length - 2);
+                        requestIds.add(ByteBuffer.wrap(request).getInt(8));
+                    }
+                    in.read(); // wait for the client to go away
+                } catch (IOException e) {
+                    System.out.println("Fake auth module failed: " + e.getMessage());
+                }
+            });
+            authThread.start();
+
+            ConfigurationProvider config = new TestConfiguration(authModule.getLocalPort(), 1, 1, Duration.ofMillis(200));
+            EventLoopResources resources = new EventLoopResources(config);
+            try {
+                AuthenticationInterfaceImpl intf = new AuthenticationInterfaceImpl(config, new AuthenticationParserImpl(),
+                        new TimeoutService(), resources);
+                Peer peer = new Peer(derKey);
+                CompletableFuture<AuthSessionHs1ParsedMessage> first = intf.startSessionAsync(peer);
+                CompletableFuture<AuthSessionHs1ParsedMessage> second = intf.startSessionAsync(peer);
+                for (CompletableFuture<AuthSessionHs1ParsedMessage> res : Arrays.asList(first, second)) {
+                    try {
+                        res.get(2, TimeUnit.SECONDS);
+                        fail("Unanswered session start succeeded.");
+                    } catch (ExecutionException e) {
+                        // expected
+                    }
+                }
+                assertEquals(2, requestIds.size());
+            } finally {
+                resources.shutdown();
+            }
+            authThread.join(5000);
+        }
+    }
+
+    /**
+     * Test that all requests of a session use the same one of several connections, so they stay in order, while
+     * different sessions are spread over the connections.
+     *
+     * @throws Exception If the fake auth module fails or does not receive the requests in time.
+     */
+    @Test
+    public void sessionStaysOnConnection() throws Exception {
+        final int connections = 2;
+        final int sessions = 8;
+        try (ServerSocket authModule = new ServerSocket(0, connections, InetAddress.getLoopbackAddress())) {
+            // session IDs of the AUTH SESSION CLOSE messages received per connection
+            List<List<Short>> received = new ArrayList<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                List<Short> sessionIds = Collections.synchronizedList(new ArrayList<>());
+                received.add(sessionIds);
+                Thread reader = new Thread(() -> {
+                    try (Socket socket = authModule.accept()) {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        for (int j = 0; j < 2 * sessions; j++) {
+                            byte[] request = new byte[in.readUnsignedShort()];
+                            in.readFully(request, 2, request.length - 2);
+                            sessionIds.add(ByteBuffer.wrap(request).getShort(6));
+                            if (received.stream().mapToInt(List::size).sum() == 2 * sessions)
+                                break;
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Fake auth module connection closed: " + e.getMessage());
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+
+            ConfigurationProvider config = new TestConfiguration(authModule.getLocalPort(), 128, connections, Duration.ofSeconds(5));
+            EventLoopResources resources = new EventLoopResources(config);
+            try {
+                AuthenticationInterfaceImpl intf = new AuthenticationInterfaceImpl(config, new AuthenticationParserImpl(),
+                        new TimeoutService(), resources);
+                for (int round = 0; round < 2; round++) {
+                    for (short sessionId = 0; sessionId < sessions; sessionId++) {
+                        intf.closeSession(sessionId);
+                    }
+                }
+
+                long deadline = System.currentTimeMillis() + 5000;
+                while (received.stream().mapToInt(List::size).sum() < 2 * sessions && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            } finally {
+                resources.shutdown();
+            }
+            for (Thread reader : readers) {
+                reader.join(5000);
+            }
+
+            assertEquals(2 * sessions, received.stream().mapToInt(List::size).sum());
+            for (short sessionId = 0; sessionId < sessions; sessionId++) {
+                int used = 0;
+                for (List<Short> sessionIds : received) {
+                    if (sessionIds.contains(sessionId)) {
+                        assertEquals(2, Collections.frequency(sessionIds, sessionId));
+                        used++;
+                    }
+                }
+                assertEquals("Session " + sessionId + " used several connections.", 1, used);
+            }
+            for (List<Short> sessionIds : received) {
+                assertFalse(sessionIds.isEmpty());
+            }
+        }
+    }
+
+    /**
+     * Test that a session is used on the connection it has been created on, even if its session ID would select another
+     * one, and that a layered request for sessions on different connections is split into one request per connection.
+     *
+     * @throws Exception If the fake auth module fails or does not answer in time.
+     * @throws AuthException If the auth module returns an error.
+     */
+    @Test
+    public void sessionPinnedToConnection() throws Exception, AuthException {
+        final int connections = 2;
+        try (ServerSocket authModule = new ServerSocket(0, connections, InetAddress.getLoopbackAddress())) {
+            // the connection of the fake auth module each session has been created on and the layered requests
+            Map<Short, Integer> created = new ConcurrentHashMap<>();
+            List<Map.Entry<Integer, List<Short>>> layered = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> handlers = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                final int index = i;
+                Thread handler = new Thread(() -> {
+                    try (Socket socket = authModule.accept()) {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                        while (true) {
+                            byte[] request = new byte[in.readUnsignedShort()];
+                            in.readFully(request, 2, request.length - 2);
+                            ByteBuffer buffer = ByteBuffer.wrap(request);
+                            int requestId = buffer.getInt(8);
+                            if (buffer.getShort(2) == MessageType.AUTH_SESSION_START.getValue()) {
+                                // the session ID selects the other connection
+                                short sessionId = (short) (requestId + 1);
+                                created.put(sessionId, index);
+                                out.writeShort(12);
+                                out.writeShort(MessageType.AUTH_SESSION_HS1.getValue());
+                                out.writeShort(0);
+                                out.writeShort(sessionId);
+                                out.writeInt(requestId);
+                            } else {
+                                List<Short> sessionIds = new ArrayList<>();
+                                for (int j = 0; j < (request[6] & 0xFF); j++) {
+                                    sessionIds.add(buffer.getShort(12 + 2 * j));
+                                }
+                                layered.add(new AbstractMap.SimpleEntry<>(index, sessionIds));
+                                int offset = 12 + 2 * sessionIds.size();
+                                out.writeShort(12 + request.length - offset);
+                                out.writeShort(MessageType.AUTH_LAYER_ENCRYPT_RESP.getValue());
+                                out.writeInt(0);
+                                out.writeInt(requestId);
+                                out.write(request, offset, request.length - offset);
+                            }
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Fake auth module connection closed: " + e.getMessage());
+                    }
+                });
+                handler.start();
+                handlers.add(handler);
+            }
+
+            ConfigurationProvider config = new TestConfiguration(authModule.getLocalPort(), 128, connections, Duration.ofSeconds(5));
+            EventLoopResources resources = new EventLoopResources(config);
+            try {
+                AuthenticationInterfaceImpl intf = new AuthenticationInterfaceImpl(config, new AuthenticationParserImpl(),
+                        new TimeoutService(), resources);
+                Peer peer = new Peer(derKey);
+                List<TunnelSegment> segments = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    TunnelSegment segment = new TunnelSegment(LidImpl.createRandomLid(), InetAddress.getLoopbackAddress(),
+                            (short) 6000, Direction.FORWARD);
+                    segment.setSessionId(intf.startSession(peer).getSessionId());
+                    segments.add(segment);
+                }
+                // requests 0 and 2 are sent over the same connection, request 1 over the other one
+                assertEquals(created.get(segments.get(0).getSessionId()), created.get(segments.get(2).getSessionId()));
+                assertNotEquals(created.get(segments.get(0).getSessionId()), created.get(segments.get(1).getSessionId()));
+
+                for (TunnelSegment segment : segments) {
+                    intf.encrypt(transport(), Collections.singletonList(segment));
+                }
+                intf.encrypt(transport(), Arrays.asList(segments.get(0), segments.get(2)));
+                OnionTunnelTransportParsedMessage message = transport();
+                byte[] payload = message.getData().clone();
+                assertArrayEquals(payload, intf.encrypt(message, segments.subList(0, 2)).getData());
+
+                assertEquals(6, layered.size());
+                for (Map.Entry<Integer, List<Short>> request : layered) {
+                    for (short sessionId : request.getValue()) {
+                        assertEquals("Session " + sessionId + " used on another connection.", created.get(sessionId), request.getKey());
+                    }
+                }
+                assertEquals(Arrays.asList(segments.get(2).getSessionId(), segments.get(0).getSessionId()), layered.get(3).getValue());
+                // the layer of the last hop is applied first
+                assertEquals(Collections.singletonList(segments.get(1).getSessionId()), layered.get(4).getValue());
+                assertEquals(Collections.singletonList(segments.get(0).getSessionId()), layered.get(5).getValue());
+            } finally {
+                resources.shutdown();
+            }
+            for (Thread handler : handlers) {
+                handler.join(5000);
+            }
+        }
+    }
+
+    /**
+     * Build a transport message to en- or decrypt.
+     *
+     * @return The message.
+     */
+    private static OnionTunnelTransportParsedMessage transport() throws ParsingException {
+        OnionToOnionParser parser = new OnionToOnionParserImpl();
+        byte[] lid = LidImpl.createRandomLid().serialize();
+        return (OnionTunnelTransportParsedMessage) parser.buildOnionTunnelTransferMsgPlain(lid,
+                parser.buildOnionTunnelVoiceMsg(lid, new byte[] { 1, 2, 3 }));
+    }
+
+    /**
+     * Configuration of a local auth module with a custom request window, number of connections and timeout.
+     */
+    private static class TestConfiguration extends ConfigurationProviderMock {
+        private final int window;
+        private final int connections;
+        private final Duration timeout;
+
+        private TestConfiguration(int authPort, int window, int connections, Duration timeout) throws UnknownHostException {
+            super(5000, 6000, authPort, 9000, 1, "localhost", InetAddress.getLoopbackAddress().getHostAddress(),
+                    "localhost", "localhost", 60);
+            this.window = window;
+            this.connections = connections;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getAuthWindow() {
+            return this.window;
+        }
+
+        @Override
+        public int getAuthConnections() {
+            return this.connections;
+        }
+
+        @Override
+        public Duration getAuthTimeout() {
+            return this.timeout;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package de.tum.in.net.group17.onion.interfaces.authentication;
+
+import de.tum.in.net.group17.onion.model.Direction;
+import de.tum.in.net.group17.onion.model.LidImpl;
+import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.model.TunnelSegment;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs1ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs2ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthenticationParser;
+import de.tum.in.net.group17.onion.parser.authentication.AuthenticationParserImpl;
+import de.tum.in.net.group17.onion.parser.onion2onion.CellSize;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParser;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParserImpl;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the in-JVM authentication engine: handshakes and layered crypto between engines of different peers.
+ */
+public class JvmAuthenticationInterfaceImplTest {
+    private static AuthenticationParser authParser;
+    private static OnionToOnionParser onionParser;
+    private static KeyPair[] hostkeys;
+
+    /**
+     * Set-up test environment: Create the parsers and a hostkey for each of three peers.
+     *
+     * @throws Exception If RSA keys cannot be generated.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        authParser = new AuthenticationParserImpl();
+        onionParser = new OnionToOnionParserImpl();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        hostkeys = new KeyPair[3];
+        for(int i = 0; i < hostkeys.length; i++) {
+            hostkeys[i] = generator.generateKeyPair();
+        }
+    }
+
+    /**
+     * Build a tunnel from peer 0 over peer 1 to peer 2 and check that data encrypted with all layers by the initiator
+     * arrives at the hops as expected and that the tunnel end can answer.
+     *
+     * @throws Exception If the crypto fails.
+     * @throws AuthException If the engine reports an error.
+     */
+    @Test
+    public void layeredRoundTrip() throws Exception, AuthException {
+        JvmAuthenticationInterfaceImpl initiator = createEngine(0);
+        JvmAuthenticationInterfaceImpl hop = createEngine(1);
+        JvmAuthenticationInterfaceImpl end = createEngine(2);
+
+        TunnelSegment[] initiatorSide = new TunnelSegment[2];
+        TunnelSegment[] peerSide = new TunnelSegment[2];
+        JvmAuthenticationInterfaceImpl[] peers = { hop, end };
+        for(int i = 0; i < 2; i++) {
+            AuthSessionHs1ParsedMessage hs1 = initiator.startSession(new Peer(hostkeys[i + 1].getPublic().getEncoded()));
+            AuthSessionHs2ParsedMessage hs2 = peers[i].forwardIncomingHandshake1(hs1.getPayload());
+            initiator.forwardIncomingHandshake2(hs1.getSessionId(), hs2.getPayload());
+            initiatorSide[i] = createSegment(hs1.getSessionId());
+            peerSide[i] = createSegment(hs2.getSessionId());
+        }
+
+        OnionTunnelTransportParsedMessage message = createMessage();
+        byte[] plain = message.getData();
+
+        // forward direction: the hop removes its layer and relays, the end finds the magic
+        initiator.encrypt(message, Arrays.asList(initiatorSide));
+        // every hop sees a cell of the negotiated size
+        assertEquals(plain.length, message.getData().length);
+        assertNotNull(CellSize.fromSize(message.getData().length));
+        hop.decrypt(message, peerSide[0]);
+        assertFalse(message.forMe());
+        assertEquals(plain.length, message.getData().length);
+        end.decrypt(message, peerSide[1]);
+        assertTrue(message.forMe());
+        assertArrayEquals(plain, message.getData());
+
+        // backward direction: every peer adds a layer, the initiator removes all of them
+        end.encrypt(message, peerSide[1], false);
+        hop.encrypt(message, peerSide[0], true);
+        assertEquals(plain.length, message.getData().length);
+        List<TunnelSegment> segments = Arrays.asList(initiatorSide);
+        initiator.decrypt(message, segments);
+        assertArrayEquals(plain, message.getData());
+    }
+
+    /**
+     * Check that a handshake answered by a peer without the expected hostkey is rejected.
+     *
+     * @throws Exception If the crypto fails.
+     * @throws AuthException If the engine reports an error.
+     */
+    @Test(expected = ParsingException.class)
+    public void rejectForeignHostkey() throws Exception, AuthException {
+        JvmAuthenticationInterfaceImpl initiator = createEngine(0);
+        JvmAuthenticationInterfaceImpl impostor = createEngine(2);
+
+        AuthSessionHs1ParsedMessage hs1 = initiator.startSession(new Peer(hostkeys[1].getPublic().getEncoded()));
+        AuthSessionHs2ParsedMessage hs2 = impostor.forwardIncomingHandshake1(hs1.getPayload());
+        initiator.forwardIncomingHandshake2(hs1.getSessionId(), hs2.getPayload());
+    }
+
+    /**
+     * Check that a closed session cannot be used anymore.
+     *
+     * @throws Exception If the crypto fails.
+     * @throws AuthException Expected, as the session is unknown after closing it.
+     */
+    @Test(expected = AuthException.class)
+    public void closedSession() throws Exception, AuthException {
+        JvmAuthenticationInterfaceImpl initiator = createEngine(0);
+        JvmAuthenticationInterfaceImpl responder = createEngine(1);
+
+        AuthSessionHs1ParsedMessage hs1 = initiator.startSession(new Peer(hostkeys[1].getPublic().getEncoded()));
+        AuthSessionHs2ParsedMessage hs2 = responder.forwardIncomingHandshake1(hs1.getPayload());
+        initiator.forwardIncomingHandshake2(hs1.getSessionId(), hs2.getPayload());
+        initiator.closeSession(hs1.getSessionId());
+
+        initiator.encrypt(createMessage(), createSegment(hs1.getSessionId()), false);
+    }
+
+    private static JvmAuthenticationInterfaceImpl createEngine(int peer) {
+        return new JvmAuthenticationInterfaceImpl(hostkeys[peer].getPrivate(), authParser);
+    }
+
+    private static TunnelSegment createSegment(short sessionId) throws Exception {
+        TunnelSegment segment = new TunnelSegment(LidImpl.createRandomLid(), InetAddress.getLoopbackAddress(),
+                (short)4500, Direction.FORWARD);
+        segment.setSessionId(sessionId);
+        return segment;
+    }
+
+    private static OnionTunnelTransportParsedMessage createMessage() throws ParsingException {
+        return (OnionTunnelTransportParsedMessage)onionParser.buildOnionTunnelTransferMsgPlain(
+                LidImpl.createRandomLid().serialize(), authParser.buildSessionClose((short)7));
+    }
+}
@@ -0,0 +1,206 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
+import de.tum.in.net.group17.onion.interfaces.NettyTransport;
+import de.tum.in.net.group17.onion.interfaces.UdpServer;
+import de.tum.in.net.group17.onion.model.LidImpl;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParser;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParserImpl;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelBundleParsedMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the negotiation of cell bundles between two bundlers talking over UDP on the loopback interface.
+ */
+public class CellBundlerTest {
+    private static final Duration PROBE_INTERVAL = Duration.ofMillis(50);
+    private static final Duration TTL = Duration.ofMillis(300);
+    private static final int MTU = 1472;
+
+    private final OnionToOnionParser parser = new OnionToOnionParserImpl();
+    private final List<Neighbor> neighbors = new ArrayList<>();
+
+    /**
+     * Release the event loops of all neighbors.
+     */
+    @After
+    public void tearDown() {
+        this.neighbors.parallelStream().forEach(neighbor -> neighbor.resources.shutdown());
+    }
+
+    /**
+     * Check that the first cell probes the neighbor, both sides bundle after the acknowledgement and cells sent
+     * together arrive in a single bundle. Two padded cells fit into the MTU. The neighbor is forgotten by the bundler
+     * once its cells have been sent.
+     */
+    @Test
+    public void probeAndAck() throws Exception {
+        Neighbor a = new Neighbor(MTU, 0);
+        Neighbor b = new Neighbor(MTU, 0);
+
+        a.bundler.send(b.address, cell());
+        await(() -> a.bundler.isBundling(b.address));
+        assertTrue(b.bundler.isBundling(a.address));
+        assertEquals(1, b.probes.get());
+        await(() -> b.plain.get() == 1);
+
+        a.server.execute(b.address, () -> {
+            try {
+                for(int i = 0; i < 2; i++) {
+                    a.bundler.send(b.address, cell());
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        await(() -> b.bundledCells.get() == 2);
+        assertEquals(1, b.bundles.get());
+        assertEquals(1, b.plain.get());
+        await(() -> a.bundler.getPendingCount() == 0);
+
+        // a neighbor is queued for again after it was forgotten
+        a.bundler.send(b.address, cell());
+        await(() -> b.plain.get() == 2);
+        await(() -> a.bundler.getPendingCount() == 0);
+    }
+
+    /**
+     * Check that a lost probe is repeated by the timer until the neighbor acknowledges it.
+     */
+    @Test
+    public void lostProbeRepeated() throws Exception {
+        Neighbor a = new Neighbor(MTU, 0);
+        Neighbor b = new Neighbor(MTU, 1);
+
+        a.bundler.send(b.address, cell());
+        await(() -> a.bundler.isBundling(b.address));
+        assertEquals(2, b.probes.get());
+    }
+
+    /**
+     * Check that a neighbor not acknowledging probes is given up on after a few probes, is sent plain cells and is
+     * forgotten after the TTL, so the next cell probes it again.
+     */
+    @Test
+    public void unansweredProbesEvicted() throws Exception {
+        Neighbor a = new Neighbor(MTU, 0);
+        Neighbor b = new Neighbor(0, 0);
+
+        a.bundler.send(b.address, cell());
+        await(() -> b.probes.get() == 3);
+        a.bundler.send(b.address, cell());
+        assertFalse(a.bundler.isBundling(b.address));
+        assertEquals(1, a.bundler.getNegotiationCount());
+
+        await(() -> a.bundler.getNegotiationCount() == 0);
+        assertEquals(3, b.probes.get());
+        assertEquals(2, b.plain.get());
+
+        a.bundler.send(b.address, cell());
+        await(() -> b.probes.get() == 4);
+    }
+
+    /**
+     * Check that the outcome of a negotiation expires and is negotiated again with the next cell.
+     */
+    @Test
+    public void negotiationExpires() throws Exception {
+        Neighbor a = new Neighbor(MTU, 0);
+        Neighbor b = new Neighbor(MTU, 0);
+
+        a.bundler.send(b.address, cell());
+        await(() -> a.bundler.isBundling(b.address));
+        await(() -> a.bundler.getNegotiationCount() == 0);
+        assertFalse(a.bundler.isBundling(b.address));
+
+        a.bundler.send(b.address, cell());
+        await(() -> a.bundler.isBundling(b.address));
+        assertEquals(2, b.probes.get());
+        assertEquals(2, b.plain.get());
+    }
+
+    /**
+     * Build a transport cell.
+     *
+     * @return The cell.
+     */
+    private ParsedMessage cell() throws ParsingException {
+        byte[] lid = LidImpl.createRandomLid().serialize();
+        return this.parser.buildOnionTunnelTransferMsgPlain(lid, this.parser.buildOnionTunnelVoiceMsg(lid, new byte[] { 1, 2, 3 }));
+    }
+
+    /**
+     * Wait until a condition holds.
+     *
+     * @param condition The condition.
+     */
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * A peer listening on the loopback interface and counting what it receives.
+     */
+    private class Neighbor {
+        private final EventLoopResources resources = new EventLoopResources(NettyTransport.NIO, 1, 1);
+        private final UdpServer server = new UdpServer(this.resources, 1, 65536, 65536);
+        private final CellBundler bundler;
+        private final InetSocketAddress address;
+        private final AtomicInteger probes = new AtomicInteger();
+        private final AtomicInteger plain = new AtomicInteger();
+        private final AtomicInteger bundles = new AtomicInteger();
+        private final AtomicInteger bundledCells = new AtomicInteger();
+
+        /**
+         * Create a neighbor and start listening.
+         *
+         * @param mtu The bundle MTU of the neighbor, 0 disables bundling.
+         * @param dropProbes The number of received probes to drop as if they were lost.
+         */
+        private Neighbor(int mtu, int dropProbes) throws Exception {
+            neighbors.add(this);
+            this.bundler = new CellBundler(this.server, parser, mtu, PROBE_INTERVAL, TTL);
+            int port;
+            try(DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                port = socket.getLocalPort();
+            }
+            this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            AtomicInteger dropped = new AtomicInteger();
+            this.server.listen(InetAddress.getLoopbackAddress(), port, (ctx, packet) -> {
+                try {
+                    OnionTunnelBundleParsedMessage bundle = parser.parseBundle(packet.content());
+                    if(bundle == null) {
+                        this.plain.incrementAndGet();
+                    } else if(bundle.getCells().isEmpty()) {
+                        if(bundle.isProbe() && this.probes.incrementAndGet() > 0 && dropped.getAndIncrement() < dropProbes)
+                            return;
+                        this.bundler.handleNegotiation(bundle, packet.sender());
+                    } else {
+                        this.bundles.incrementAndGet();
+                        this.bundledCells.addAndGet(bundle.getCells().size());
+                    }
+                } catch (ParsingException e) {
+                        throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+}
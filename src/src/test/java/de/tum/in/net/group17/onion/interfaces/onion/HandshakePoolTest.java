@@ -0,0 +1,185 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.interfaces.authentication.AsyncAuthenticationInterface;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthException;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterfaceMock;
+import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.model.TunnelSegment;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs1ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthSessionHs2ParsedMessage;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+import de.tum.in.net.group17.onion.util.TimeoutService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the session handshakes prepared ahead of tunnel extensions.
+ */
+public class HandshakePoolTest {
+    private static final Duration TTL = Duration.ofMillis(100);
+
+    private ControlledAuth auth;
+    private HandshakePool pool;
+    private Peer peer;
+
+    /**
+     * Create a pool whose session starts are completed by the tests.
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.auth = new ControlledAuth();
+        this.pool = new HandshakePool(this.auth, new TimeoutService(), 4, TTL);
+        this.peer = new Peer(new byte[] { 1, 2, 3 }, InetAddress.getLoopbackAddress(), (short) 7000);
+    }
+
+    /**
+     * Check that a completed handshake is handed out once and its session is not closed afterwards.
+     */
+    @Test
+    public void takeAfterCompletion() throws Exception, AuthException {
+        this.pool.prepare(this.peer);
+        assertEquals(1, this.pool.getPrepared());
+        AuthSessionHs1ParsedMessage hs1 = this.auth.complete(0);
+
+        assertSame(hs1, this.pool.take(this.peer));
+        assertEquals(0, this.pool.getPrepared());
+        assertNull(this.pool.take(this.peer));
+
+        Thread.sleep(3 * TTL.toMillis());
+        assertTrue(this.auth.closed.isEmpty());
+    }
+
+    /**
+     * Check that taking a handshake still in flight waits for it.
+     */
+    @Test
+    public void takeWhileInFlight() throws Exception, AuthException {
+        this.pool.prepare(this.peer);
+        CompletableFuture<AuthSessionHs1ParsedMessage> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.pool.take(this.peer);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(taken.isDone());
+
+        AuthSessionHs1ParsedMessage hs1 = this.auth.complete(0);
+        assertSame(hs1, taken.get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Check that a failed session start is not handed out, so the extension starts a session itself.
+     */
+    @Test
+    public void failedStart() throws Exception {
+        this.pool.prepare(this.peer);
+        this.auth.starts.get(0).completeExceptionally(new AuthException("Auth module down."));
+
+        assertNull(this.pool.take(this.peer));
+        assertEquals(0, this.pool.getPrepared());
+    }
+
+    /**
+     * Check that a handshake not taken in time is closed exactly once and not handed out anymore.
+     */
+    @Test
+    public void expiryClosesOnce() throws Exception, AuthException {
+        this.pool.prepare(this.peer);
+        AuthSessionHs1ParsedMessage hs1 = this.auth.complete(0);
+
+        Thread.sleep(3 * TTL.toMillis());
+        assertEquals(Collections.singletonList(hs1.getSessionId()), this.auth.closed);
+        assertNull(this.pool.take(this.peer));
+
+        Thread.sleep(3 * TTL.toMillis());
+        assertEquals(1, this.auth.closed.size());
+    }
+
+    /**
+     * Check that a discarded handshake is closed once, also if its start completes only afterwards.
+     */
+    @Test
+    public void discardClosesOnce() throws Exception, AuthException {
+        this.pool.prepare(this.peer);
+        this.pool.discard(this.peer);
+        assertTrue(this.auth.closed.isEmpty());
+
+        AuthSessionHs1ParsedMessage hs1 = this.auth.complete(0);
+        assertEquals(Collections.singletonList(hs1.getSessionId()), this.auth.closed);
+        assertNull(this.pool.take(this.peer));
+
+        Thread.sleep(3 * TTL.toMillis());
+        assertEquals(1, this.auth.closed.size());
+    }
+
+    /**
+     * Auth interface whose session starts complete once the test completes them and that records closed sessions.
+     */
+    private static class ControlledAuth extends AuthenticationInterfaceMock implements AsyncAuthenticationInterface {
+        private final List<CompletableFuture<AuthSessionHs1ParsedMessage>> starts = Collections.synchronizedList(new ArrayList<>());
+        private final List<Short> closed = Collections.synchronizedList(new ArrayList<>());
+
+        /**
+         * Complete a session start with a new session.
+         *
+         * @param index The index of the session start.
+         *
+         * @return The first handshake message of the session.
+         */
+        private AuthSessionHs1ParsedMessage complete(int index) throws ParsingException, InterruptedException {
+            AuthSessionHs1ParsedMessage hs1 = startSession(null);
+            this.starts.get(index).complete(hs1);
+            return hs1;
+        }
+
+        @Override
+        public CompletableFuture<AuthSessionHs1ParsedMessage> startSessionAsync(Peer peer) {
+            CompletableFuture<AuthSessionHs1ParsedMessage> start = new CompletableFuture<>();
+            this.starts.add(start);
+            return start;
+        }
+
+        @Override
+        public void closeSession(short sessionId) {
+            this.closed.add(sessionId);
+        }
+
+        @Override
+        public CompletableFuture<AuthSessionHs2ParsedMessage> forwardIncomingHandshake1Async(byte[] payload) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment, boolean isCipher) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<OnionTunnelTransportParsedMessage> encryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, TunnelSegment segment) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<OnionTunnelTransportParsedMessage> decryptAsync(OnionTunnelTransportParsedMessage message, List<TunnelSegment> segments) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.config.ConfigurationProviderMock;
+import de.tum.in.net.group17.onion.interfaces.EventLoopResources;
+import de.tum.in.net.group17.onion.interfaces.NettyTransport;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterfaceImpl;
+import de.tum.in.net.group17.onion.interfaces.authentication.AuthenticationInterfaceMock;
+import de.tum.in.net.group17.onion.interfaces.authentication.JvmAuthenticationInterfaceImpl;
+import de.tum.in.net.group17.onion.model.Direction;
+import de.tum.in.net.group17.onion.model.LidImpl;
+import de.tum.in.net.group17.onion.model.Peer;
+import de.tum.in.net.group17.onion.model.Tunnel;
+import de.tum.in.net.group17.onion.model.TunnelSegment;
+import de.tum.in.net.group17.onion.parser.MessageType;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import de.tum.in.net.group17.onion.parser.authentication.AuthenticationParserImpl;
+import de.tum.in.net.group17.onion.parser.onionapi.OnionTunnelDataParsedMessage;
+import de.tum.in.net.group17.onion.parser.onion2onion.CellSize;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParser;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionToOnionParserImpl;
+import de.tum.in.net.group17.onion.parser.onion2onion.OnionTunnelTransportParsedMessage;
+import de.tum.in.net.group17.onion.util.TimeoutService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the handling of received onion messages.
+ */
+public class OnionInterfaceImplTest {
+    private static final int TUNNEL_ID = 42;
+
+    private EventLoopResources resources;
+    private OnionToOnionParser parser;
+    private AuthenticationInterfaceMock auth;
+    private OnionInterfaceImpl onion;
+    private List<byte[]> received;
+
+    /**
+     * Create an onion interface that is not listening, so messages sent by it are dropped.
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.resources = new EventLoopResources(NettyTransport.NIO, 1, 1);
+        this.parser = new OnionToOnionParserImpl();
+        this.auth = new AuthenticationInterfaceMock();
+        this.onion = new OnionInterfaceImpl(new ConfigurationProviderMock(5000, 6000, 7000, 9000, 1, "localhost",
+                "localhost", "localhost", "localhost", 60), this.parser, this.auth, new TimeoutService(), this.resources);
+        this.received = Collections.synchronizedList(new ArrayList<>());
+        field("orchestratorCallback").set(this.onion, new OnionCallback() {
+            @Override
+            public void error(int tunnelId, MessageType type) { }
+
+            @Override
+            public void tunnelData(int tunnelId, byte[] data) {
+                received.add(data);
+            }
+
+            @Override
+            public void tunnelIncoming(TunnelSegment segment) { }
+
+            @Override
+            public void tunnelDestroyed(int tunnelId) { }
+        });
+    }
+
+    /**
+     * Release the event loops of the interface.
+     */
+    @After
+    public void tearDown() {
+        this.resources.shutdown();
+    }
+
+    /**
+     * Check that a refreshed tunnel's predecessor is kept while control messages of the new tunnel arrive and torn
+     * down with the first data on the new tunnel.
+     * The accept relayed while building the new tunnel may be handled after the refresh registered the old tunnel for
+     * teardown. Tearing it down then would drop data the receiver still sends on it.
+     */
+    @Test
+    public void refreshKeepsOldTunnelUntilData() throws Exception {
+        Tunnel oldTunnel = tunnel();
+        Tunnel newTunnel = tunnel();
+        Map<Integer, Tunnel> started = new ConcurrentHashMap<>();
+        started.put(TUNNEL_ID, newTunnel);
+        this.onion.setTunnels(started, new ConcurrentHashMap<>());
+        toBeDestroyed().put(oldTunnel.getSegments().get(0).getLid(), oldTunnel);
+        byte[] newLid = newTunnel.getSegments().get(0).getLid().serialize();
+
+        // the accept of the last hop arrives late on the new tunnel
+        receive(newTunnel, this.parser.buildOnionTunnelAcceptMsg(newLid, (short) 0, "Diffie-Hellman".getBytes()));
+        assertEquals(1, oldTunnel.getSegments().size());
+        assertTrue(toBeDestroyed().containsValue(oldTunnel));
+
+        // data on the new tunnel shows the receiver switched
+        receive(newTunnel, this.parser.buildOnionTunnelVoiceMsg(newLid, new byte[] { 1, 2, 3 }));
+        assertEquals(1, this.received.size());
+        assertTrue(oldTunnel.getSegments().isEmpty());
+        assertTrue(toBeDestroyed().isEmpty());
+    }
+
+    /**
+     * Build a tunnel over an intermediate hop between peers listening on the loopback interface that use the in-JVM
+     * auth engine with 4096 bit hostkeys, and send data through it in both directions.
+     * The hop relays the accept of the destination, whose handshake carries a signature made with such a hostkey.
+     */
+    @Test
+    public void multiHopTunnelWithJvmEngine() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(4096);
+        Node initiator = new Node(generator.generateKeyPair());
+        Node hop = new Node(generator.generateKeyPair());
+        Node destination = new Node(generator.generateKeyPair());
+
+        try {
+            Tunnel tunnel = new Tunnel(TUNNEL_ID);
+            initiator.started.put(TUNNEL_ID, tunnel);
+            initiator.onion.extendTunnel(tunnel, hop.peer);
+            initiator.onion.extendTunnel(tunnel, destination.peer);
+            assertEquals(2, tunnel.getSegments().size());
+
+            initiator.onion.sendEstablished(tunnel);
+            int incomingId = destination.incoming.get(5, TimeUnit.SECONDS);
+
+            byte[] forward = "towards the destination".getBytes();
+            initiator.onion.sendVoiceData(new OnionTunnelDataParsedMessage(TUNNEL_ID, forward));
+            assertArrayEquals(forward, destination.data.get(5, TimeUnit.SECONDS));
+
+            byte[] backward = "towards the initiator".getBytes();
+            destination.onion.sendVoiceData(new OnionTunnelDataParsedMessage(incomingId, backward));
+            assertArrayEquals(backward, initiator.data.get(5, TimeUnit.SECONDS));
+        } finally {
+            for(Node node : Arrays.asList(initiator, hop, destination)) {
+                node.resources.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Check that the fragments of a voice message are encrypted at once, so their requests to the Onion Auth module
+     * are outstanding together instead of one after another.
+     */
+    @Test
+    public void voiceFragmentsEncryptedTogether() throws Exception {
+        byte[] data = new byte[4000];
+        Tunnel tunnel = new Tunnel(TUNNEL_ID);
+        tunnel.setCellSizes(CellSize.DEFAULT_MASK);
+        TunnelSegment segment = new TunnelSegment(LidImpl.createRandomLid(), InetAddress.getLoopbackAddress(),
+                (short) 6001, Direction.FORWARD);
+        segment.setSessionId((short) 1);
+        tunnel.addSegment(segment);
+        int fragments = this.parser.buildOnionTunnelVoiceMsgs(segment.getLid().serialize(), data, tunnel.getCellSize()).size();
+        assertTrue(fragments > 1);
+
+        try (ServerSocket authModule = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            // the number of requests received before the first one is answered
+            AtomicInteger outstanding = new AtomicInteger();
+            Thread authThread = new Thread(() -> {
+                try (Socket socket = authModule.accept()) {
+                    socket.setSoTimeout(1000);
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    List<byte[]> requests = new ArrayList<>();
+                    try {
+                        while (requests.size() < fragments) {
+                            byte[] request = new byte[in.readUnsignedShort()];
+                            in.readFully(request, 2, request.length - 2);
+                            requests.add(request);
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // requests are sent one after another
+                    }
+                    outstanding.set(requests.size());
+                    for (byte[] request : requests) {
+                        int offset = 12 + 2 * (request[6] & 0xFF);
+                        out.writeShort(12 + request.length - offset);
+                        out.writeShort(MessageType.AUTH_LAYER_ENCRYPT_RESP.getValue());
+                        out.writeInt(0);
+                        out.writeInt(ByteBuffer.wrap(request).getInt(8));
+                        out.write(request, offset, request.length - offset);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    System.out.println("Fake auth module failed: " + e.getMessage());
+                }
+            });
+            authThread.start();
+
+            ConfigurationProviderMock config = new ConfigurationProviderMock(5000, 6000, authModule.getLocalPort(), 9000, 1,
+                    "localhost", InetAddress.getLoopbackAddress().getHostAddress(), "localhost", "localhost", 60);
+            OnionInterfaceImpl onion = new OnionInterfaceImpl(config, this.parser,
+                    new AuthenticationInterfaceImpl(config, new AuthenticationParserImpl(), new TimeoutService(), this.resources),
+                    new TimeoutService(), this.resources);
+            Map<Integer, Tunnel> started = new ConcurrentHashMap<>();
+            started.put(TUNNEL_ID, tunnel);
+            onion.setTunnels(started, new ConcurrentHashMap<>());
+
+            onion.sendVoiceData(new OnionTunnelDataParsedMessage(TUNNEL_ID, data));
+            authThread.join(5000);
+            assertEquals(fragments, outstanding.get());
+        }
+    }
+
+    /**
+     * Create a tunnel with a single hop.
+     *
+     * @return The tunnel.
+     */
+    private Tunnel tunnel() throws Exception {
+        Tunnel tunnel = new Tunnel(TUNNEL_ID);
+        TunnelSegment segment = new TunnelSegment(LidImpl.createRandomLid(), InetAddress.getLoopbackAddress(),
+                (short) 6001, Direction.FORWARD);
+        segment.setSessionId(this.auth.startSession(null).getSessionId());
+        tunnel.addSegment(segment);
+        return tunnel;
+    }
+
+    /**
+     * Hand a message to the interface as if the first hop of a tunnel we started sent it to us.
+     *
+     * @param tunnel The tunnel the message is sent on.
+     * @param inner The message wrapped in the transport message.
+     */
+    private void receive(Tunnel tunnel, ParsedMessage inner) throws Exception {
+        ParsedMessage transport = this.parser.buildOnionTunnelTransferMsgPlain(tunnel.getSegments().get(0).getLid().serialize(), inner);
+        transport = this.auth.encrypt((OnionTunnelTransportParsedMessage) transport, tunnel.getSegments());
+        Method handle = OnionInterfaceImpl.class.getDeclaredMethod("handleReceiving", ParsedMessage.class, InetAddress.class, short.class);
+        handle.setAccessible(true);
+        handle.invoke(this.onion, this.parser.parseMsg(transport.serialize()), InetAddress.getLoopbackAddress(), (short) 6001);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, Tunnel> toBeDestroyed() throws Exception {
+        return (Map<Object, Tunnel>) field("toBeDestroyed").get(this.onion);
+    }
+
+    private static Field field(String name) throws NoSuchFieldException {
+        Field field = OnionInterfaceImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    /**
+     * A peer running an onion interface with the in-JVM auth engine on the loopback interface.
+     */
+    private static class Node {
+        private final EventLoopResources resources = new EventLoopResources(NettyTransport.NIO, 1, 1);
+        private final Map<Integer, Tunnel> started = new ConcurrentHashMap<>();
+        private final Map<Integer, Tunnel> incomingTunnels = new ConcurrentHashMap<>();
+        private final CompletableFuture<Integer> incoming = new CompletableFuture<>();
+        private final CompletableFuture<byte[]> data = new CompletableFuture<>();
+        private final OnionInterfaceImpl onion;
+        private final Peer peer;
+
+        /**
+         * Create a peer and start listening.
+         *
+         * @param hostkey The hostkey of the peer.
+         */
+        private Node(KeyPair hostkey) throws Exception {
+            int port;
+            try(DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                port = socket.getLocalPort();
+            }
+            this.peer = new Peer(hostkey.getPublic().getEncoded(), InetAddress.getLoopbackAddress(), (short) port);
+            this.onion = new OnionInterfaceImpl(new ConfigurationProviderMock(5000, port, 7000, 9000, 1, "localhost",
+                    "localhost", "localhost", "127.0.0.1", 60), new OnionToOnionParserImpl(),
+                    new JvmAuthenticationInterfaceImpl(hostkey.getPrivate(), new AuthenticationParserImpl()),
+                    new TimeoutService(), this.resources);
+            this.onion.setTunnels(this.started, this.incomingTunnels);
+            this.onion.setSegments(new ConcurrentHashMap<>());
+            this.onion.listen(new OnionCallback() {
+                @Override
+                public void error(int tunnelId, MessageType type) { }
+
+                @Override
+                public void tunnelData(int tunnelId, byte[] payload) {
+                    data.complete(payload);
+                }
+
+                @Override
+                public void tunnelIncoming(TunnelSegment segment) {
+                    Tunnel tunnel = new Tunnel(TUNNEL_ID + 1);
+                    tunnel.addSegment(segment);
+                    incomingTunnels.put(tunnel.getId(), tunnel);
+                    incoming.complete(tunnel.getId());
+                }
+
+                @Override
+                public void tunnelDestroyed(int tunnelId) { }
+            });
+        }
+    }
+}
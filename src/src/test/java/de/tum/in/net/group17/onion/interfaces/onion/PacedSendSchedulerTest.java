@@ -0,0 +1,183 @@
+package de.tum.in.net.group17.onion.interfaces.onion;
+
+import de.tum.in.net.group17.onion.interfaces.UdpServer;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.rps.RandomPeerSamplingParserImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the scheduler spacing messages sent to neighbors.
+ */
+public class PacedSendSchedulerTest {
+    private static final long SPACING = 50;
+
+    private RecordingServer server;
+    private PacedSendScheduler pacer;
+    private InetSocketAddress neighbor;
+
+    /**
+     * Create a scheduler sending to a server that records the messages.
+     */
+    @Before
+    public void setUp() {
+        this.server = new RecordingServer();
+        this.pacer = new PacedSendScheduler(this.server);
+        this.neighbor = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7000);
+    }
+
+    /**
+     * Stop the timer of the recording server.
+     */
+    @After
+    public void tearDown() {
+        this.server.timer.shutdownNow();
+    }
+
+    /**
+     * Check that spaced messages leave in order with at least the spacing between them and that unspaced messages
+     * queued behind them wait for them.
+     */
+    @Test
+    public void spacingAndOrder() throws Exception {
+        List<ParsedMessage> spaced = messages(3);
+        List<ParsedMessage> unspaced = messages(2);
+        this.pacer.send(this.neighbor, spaced, SPACING);
+        this.pacer.send(this.neighbor, unspaced, 0);
+        assertEquals(Collections.singletonList(spaced.get(0)), this.server.sent());
+        assertEquals(4, this.pacer.getQueuedCount());
+
+        awaitSent(5);
+        List<ParsedMessage> expected = new ArrayList<>(spaced);
+        expected.addAll(unspaced);
+        assertEquals(expected, this.server.sent());
+        List<Long> times = this.server.times();
+        for(int i = 1; i < 3; i++) {
+            assertTrue(times.get(i) - times.get(i - 1) >= TimeUnit.MILLISECONDS.toNanos(SPACING));
+        }
+        assertTrue(times.get(3) - times.get(2) >= TimeUnit.MILLISECONDS.toNanos(SPACING));
+    }
+
+    /**
+     * Check that a neighbor is forgotten once its queue drained and its spacing elapsed, and that it is paced again
+     * afterwards.
+     */
+    @Test
+    public void timerRelease() throws Exception {
+        this.pacer.send(this.neighbor, messages(2), 0);
+        assertEquals(2, this.server.sent().size());
+        assertEquals(0, this.pacer.getNeighborCount());
+
+        this.pacer.send(this.neighbor, messages(2), SPACING);
+        assertEquals(1, this.pacer.getNeighborCount());
+        awaitSent(4);
+        // the neighbor is kept until the spacing of the last message elapsed
+        this.pacer.send(this.neighbor, messages(1), 0);
+        assertEquals(4, this.server.sent().size());
+        awaitSent(5);
+
+        Thread.sleep(3 * SPACING);
+        assertEquals(0, this.pacer.getNeighborCount());
+        assertEquals(0, this.pacer.getQueuedCount());
+    }
+
+    /**
+     * Check that a neighbor whose messages cannot be sent is forgotten.
+     */
+    @Test
+    public void failedSendReleasesNeighbor() throws Exception {
+        this.server.failing = true;
+        try {
+            this.pacer.send(this.neighbor, messages(1), SPACING);
+            fail("Expected the send to fail.");
+        } catch (IOException e) {
+            assertEquals(0, this.pacer.getNeighborCount());
+            assertEquals(0, this.pacer.getQueuedCount());
+        }
+    }
+
+    /**
+     * Create distinct messages.
+     *
+     * @param count The number of messages.
+     *
+     * @return The messages.
+     */
+    private static List<ParsedMessage> messages(int count) throws ParsingException {
+        RandomPeerSamplingParserImpl parser = new RandomPeerSamplingParserImpl();
+        ParsedMessage[] messages = new ParsedMessage[count];
+        for(int i = 0; i < count; i++) {
+            messages[i] = parser.buildRpsQueryMsg();
+        }
+        return Arrays.asList(messages);
+    }
+
+    /**
+     * Wait until the server sent the given number of messages.
+     *
+     * @param count The number of messages.
+     */
+    private void awaitSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(this.server.sent().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, this.server.sent().size());
+    }
+
+    /**
+     * Server recording flushed messages and the time they were flushed at instead of sending them.
+     */
+    private static class RecordingServer extends UdpServer {
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        private final List<ParsedMessage> written = new ArrayList<>();
+        private final List<ParsedMessage> sent = new ArrayList<>();
+        private final List<Long> times = new ArrayList<>();
+        private volatile boolean failing;
+
+        @Override
+        public synchronized void write(InetSocketAddress target, ParsedMessage msg) throws IOException {
+            if(this.failing)
+                throw new IOException("Not listening.");
+            this.written.add(msg);
+        }
+
+        @Override
+        public synchronized void flush(InetSocketAddress target) {
+            long now = System.nanoTime();
+            for(ParsedMessage message : this.written) {
+                this.sent.add(message);
+                this.times.add(now);
+            }
+            this.written.clear();
+        }
+
+        @Override
+        public void schedule(InetSocketAddress target, Runnable task, long delayMillis) {
+            this.timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized List<ParsedMessage> sent() {
+            return new ArrayList<>(this.sent);
+        }
+
+        private synchronized List<Long> times() {
+            return new ArrayList<>(this.times);
+        }
+    }
+}
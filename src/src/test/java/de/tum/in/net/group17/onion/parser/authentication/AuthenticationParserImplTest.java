@@ -1,6 +1,11 @@
 package de.tum.in.net.group17.onion.parser.authentication;
 
 import de.tum.in.net.group17.onion.parser.ParsingException;
+import de.tum.in.net.group17.onion.parser.ParsedMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -30,4 +35,72 @@ public class AuthenticationParserImplTest {
         parser.buildSessionClose((short)15);
     }
 
-}
\ No newline at end of file
+    /**
+     * Test that AUTH SESSION HS1 and HS2 messages built by the parser can be parsed again.
+     *
+     * @throws ParsingException If the parser could not build or parse the messages.
+     */
+    @Test
+    public void buildSessionHandshakes() throws ParsingException {
+        byte[] payload = {0x01, 0x02, 0x03};
+
+        AuthSessionHs1ParsedMessage hs1 = (AuthSessionHs1ParsedMessage)parser.parseMsg(
+                parser.buildSessionHs1((short)15, 42, payload).serialize());
+        assertEquals(15, hs1.getSessionId());
+        assertEquals(42, hs1.getRequestId());
+        assertArrayEquals(payload, hs1.getPayload());
+
+        AuthSessionHs2ParsedMessage hs2 = (AuthSessionHs2ParsedMessage)parser.parseMsg(
+                parser.buildSessionHs2((short)16, 43, payload).serialize());
+        assertEquals(16, hs2.getSessionId());
+        assertEquals(43, hs2.getRequestId());
+        assertArrayEquals(payload, hs2.getPayload());
+    }
+
+    /**
+     * Test parsing a message directly from a receive buffer that contains other data before the message.
+     *
+     * @throws ParsingException If the parser could not build or parse the message.
+     */
+    @Test
+    public void parseFromBuffer() throws ParsingException {
+        byte[] payload = {0x04, 0x05, 0x06, 0x07};
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeBytes(new byte[] {0x7F, 0x7F});
+        buffer.writeBytes(parser.buildSessionHs2((short)17, 44, payload).serialize());
+        buffer.skipBytes(2);
+
+        AuthSessionHs2ParsedMessage hs2 = (AuthSessionHs2ParsedMessage)parser.parseMsg(buffer);
+        assertEquals(17, hs2.getSessionId());
+        assertEquals(44, hs2.getRequestId());
+        assertArrayEquals(payload, hs2.getPayload());
+        assertEquals(2, buffer.readerIndex());
+        assertEquals(1, buffer.refCnt());
+    }
+
+    /**
+     * Test that crypt requests encoded into a buffer without copying their payload match their serialization.
+     *
+     * @throws ParsingException If the parser could not build the messages.
+     */
+    @Test
+    public void encodeCryptRequests() throws ParsingException {
+        byte[] payload = new byte[512];
+        payload[0] = 0x42;
+        ParsedMessage[] messages = {
+                parser.buildLayerEncrypt(1, new short[] {3, 4}, payload),
+                parser.buildLayerDecrypt(2, new short[] {5}, payload),
+                parser.buildCipherEncrypt(true, 3, (short)6, payload),
+                parser.buildCipherDecrypt(4, (short)7, payload)
+        };
+
+        for(ParsedMessage message : messages) {
+            ByteBuf encoded = message.encode(ByteBufAllocator.DEFAULT);
+            try {
+                assertArrayEquals(message.serialize(), ByteBufUtil.getBytes(encoded));
+            } finally {
+                encoded.release();
+            }
+        }
+    }
+}
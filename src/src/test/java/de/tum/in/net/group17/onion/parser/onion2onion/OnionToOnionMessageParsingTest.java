@@ -4,9 +4,12 @@ import com.google.inject.Guice;
 import com.google.inject.Injector;
 import de.tum.in.net.group17.onion.ParserUnitTestInjector;
 import de.tum.in.net.group17.onion.model.Lid;
+import de.tum.in.net.group17.onion.model.LidImpl;
 import de.tum.in.net.group17.onion.parser.MessageType;
 import de.tum.in.net.group17.onion.parser.ParsedMessage;
 import de.tum.in.net.group17.onion.parser.ParsingException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.bouncycastle.util.Arrays;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -46,76 +49,90 @@ public class OnionToOnionMessageParsingTest {
     public void testUnionTunnelInitParsing() throws ParsingException
     {
         byte[] header = {
-                0x00, 0x18, 0x02, 0x53, // Header
+                0x00, 0x1C, 0x02, 0x53, // Header
+        };
+        byte[] cellSizes = {
+                0x00, 0x03, 0x00, 0x00  // Cell sizes, reserved
         };
         byte[] payload = {
                 0x02, 0x03, 0x04, 0x05  // Payload
         };
 
-        ParsedMessage m = prs.parseMsg(Arrays.concatenate(header, lid.serialize(), payload));
+        ParsedMessage m = prs.parseMsg(Arrays.concatenate(header, lid.serialize(), cellSizes, payload));
         assertTrue("Wrong message type for ONION TUNNEL INIT message parsing!",
                 m.getClass() == OnionTunnelInitParsedMessage.class);
 
         OnionTunnelInitParsedMessage msg = (OnionTunnelInitParsedMessage)m;
-        assertTrue("Wrong message size of ONION TUNNEL INIT message!", msg.getSize() == 0x18);
+        assertTrue("Wrong message size of ONION TUNNEL INIT message!", msg.getSize() == 0x1C);
         assertTrue("Wrong message type for ONION TUNNEL INIT message!",
                 msg.getType() == MessageType.ONION_TUNNEL_INIT);
         assertEquals("Wrong LID in ONION TUNNEL INIT message!", lid, msg.getLid());
         assertArrayEquals("Wrong payload in ONION TUNNEL INIT message!", payload, msg.getAuthPayload());
+        assertEquals("Wrong cell sizes in ONION TUNNEL INIT message!", 0x03, msg.getCellSizes());
     }
 
     @Test
     public void testOnionTunnelInitSerialization() throws ParsingException
     {
         byte[] header = {
-                0x00, 0x18, 0x02, 0x53, // Header
+                0x00, 0x1C, 0x02, 0x53, // Header
+        };
+        byte[] cellSizes = {
+                0x00, 0x03, 0x00, 0x00  // Cell sizes, reserved
         };
         byte[] payload = {
                 0x02, 0x03, 0x04, 0x05  // Payload
         };
 
-        byte[] testData = (new OnionTunnelInitParsedMessage(lid, payload)).serialize();
+        byte[] testData = (new OnionTunnelInitParsedMessage(lid, (short)0x03, payload)).serialize();
 
         assertArrayEquals("Faulty serialization of ONION TUNNEL INIT messages!",
-                Arrays.concatenate(header, lid.serialize(), payload), testData);
+                Arrays.concatenate(header, lid.serialize(), cellSizes, payload), testData);
     }
 
     @Test
     public void testOnionTunnelAcceptParsing() throws ParsingException
     {
         byte[] header = {
-                0x00, 0x18, 0x02, 0x54, // Header
+                0x00, 0x1C, 0x02, 0x54, // Header
+        };
+        byte[] cellSizes = {
+                0x00, 0x03, 0x00, 0x00  // Cell sizes, reserved
         };
         byte[] payload = {
                 0x02, 0x03, 0x04, 0x05  // Payload
         };
 
-        ParsedMessage m = prs.parseMsg(Arrays.concatenate(header, lid.serialize(), payload));
+        ParsedMessage m = prs.parseMsg(Arrays.concatenate(header, lid.serialize(), cellSizes, payload));
         assertTrue("Wrong message type for ONION TUNNEL ACCEPT message parsing!",
                 m.getClass() == OnionTunnelAcceptParsedMessage.class);
 
         OnionTunnelAcceptParsedMessage msg = (OnionTunnelAcceptParsedMessage)m;
-        assertTrue("Wrong message size of ONION TUNNEL ACCEPT message!", msg.getSize() == 0x18);
+        assertTrue("Wrong message size of ONION TUNNEL ACCEPT message!", msg.getSize() == 0x1C);
         assertTrue("Wrong message type for ONION TUNNEL ACCEPT message!",
                 msg.getType() == MessageType.ONION_TUNNEL_ACCEPT);
         assertEquals("Wrong LID in ONION TUNNEL ACCEPT message!", lid, msg.getLid());
         assertArrayEquals("Wrong payload in ONION TUNNEL ACCEPT message!", payload, msg.getAuthPayload());
+        assertEquals("Wrong cell sizes in ONION TUNNEL ACCEPT message!", 0x03, msg.getCellSizes());
     }
 
     @Test
     public void testOnionTunnelAcceptSerialization() throws ParsingException
     {
         byte[] header = {
-                0x00, 0x18, 0x02, 0x54, // Header
+                0x00, 0x1C, 0x02, 0x54, // Header
+        };
+        byte[] cellSizes = {
+                0x00, 0x03, 0x00, 0x00  // Cell sizes, reserved
         };
         byte[] payload = {
                 0x02, 0x03, 0x04, 0x05  // Payload
         };
 
-        byte[] testData = (new OnionTunnelAcceptParsedMessage(lid, payload)).serialize();
+        byte[] testData = (new OnionTunnelAcceptParsedMessage(lid, (short)0x03, payload)).serialize();
 
         assertArrayEquals("Faulty serialization of ONION TUNNEL ACCEPT messages!",
-                Arrays.concatenate(header, lid.serialize(), payload), testData);
+                Arrays.concatenate(header, lid.serialize(), cellSizes, payload), testData);
     }
 
     @Test
@@ -352,4 +369,184 @@ public class OnionToOnionMessageParsingTest {
                 testData);
 
     }
-}
\ No newline at end of file
+
+    /**
+     * This test targets the in place parsing and rewriting of ONION TUNNEL TRANSPORT cells.
+     */
+    @Test
+    public void testOnionTransportCellRewrite() throws ParsingException
+    {
+        byte[] header = {
+                0x02, 0x14, 0x02, 0x56
+        };
+        byte[] payload = new byte[OnionTunnelTransportParsedMessage.MAX_INNER_SIZE];
+        payload[0] = 0x01;
+        ByteBuf buf = Unpooled.wrappedBuffer(Arrays.concatenate(header, lid.serialize(), payload));
+
+        OnionTransportCell cell = prs.parseTransportCell(buf);
+        assertNotNull("ONION TUNNEL TRANSPORT message not recognized!", cell);
+        assertEquals("Wrong LID in ONION TUNNEL TRANSPORT cell!", lid, cell.getLid());
+        assertArrayEquals("Wrong payload in ONION TUNNEL TRANSPORT cell!", payload, cell.toParsedMessage().getData());
+
+        // Same size => Rewritten in place
+        Lid newLid = LidImpl.createRandomLid();
+        byte[] newPayload = new byte[OnionTunnelTransportParsedMessage.MAX_INNER_SIZE];
+        newPayload[0] = 0x02;
+        ByteBuf out = cell.rewrite(newLid, newPayload);
+        byte[] outData = new byte[out.readableBytes()];
+        out.getBytes(out.readerIndex(), outData);
+        assertArrayEquals("Faulty in place rewrite of ONION TUNNEL TRANSPORT cell!",
+                Arrays.concatenate(header, newLid.serialize(), newPayload), outData);
+        out.release();
+
+        // Larger payload => Size field has to be updated
+        buf = Unpooled.wrappedBuffer(Arrays.concatenate(header, lid.serialize(), payload));
+        newPayload = new byte[OnionTunnelTransportParsedMessage.MAX_INNER_SIZE + 32];
+        out = prs.parseTransportCell(buf).rewrite(newLid, newPayload);
+        assertEquals("Wrong size of rewritten ONION TUNNEL TRANSPORT cell!", 0x0234, out.getUnsignedShort(out.readerIndex()));
+        assertEquals("Wrong length of rewritten ONION TUNNEL TRANSPORT cell!", 0x0234, out.readableBytes());
+        out.release();
+    }
+
+    /**
+     * The in place parsing must skip other messages and reject invalid ONION TUNNEL TRANSPORT messages.
+     */
+    @Test
+    public void testOnionTransportCellInvalid() throws ParsingException
+    {
+        byte[] teardown = {
+                0x00, 0x14, 0x02, 0x57
+        };
+        assertNull("Parsed ONION TUNNEL TEARDOWN message as transport cell!",
+                prs.parseTransportCell(Unpooled.wrappedBuffer(Arrays.concatenate(teardown, lid.serialize()))));
+
+        byte[] shortTransport = {
+                0x00, 0x18, 0x02, 0x56
+        };
+        try {
+            prs.parseTransportCell(Unpooled.wrappedBuffer(Arrays.concatenate(shortTransport, lid.serialize(), new byte[4])));
+            fail("Accepted ONION TUNNEL TRANSPORT message without full payload!");
+        } catch (ParsingException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Writing a ONION TUNNEL TRANSPORT message to a buffer must result in the same bytes as its serialization.
+     */
+    @Test
+    public void testOnionTunnelTransportWriteTo() throws ParsingException
+    {
+        byte[] data = new byte[OnionTunnelTransportParsedMessage.MAX_INNER_SIZE];
+        data[0] = 0x01;
+        data[data.length - 1] = 0x02;
+        OnionTunnelTransportParsedMessage msg = new OnionTunnelTransportParsedMessage(lid, data);
+
+        ByteBuf buf = Unpooled.buffer();
+        msg.writeTo(buf);
+        byte[] written = new byte[buf.readableBytes()];
+        buf.readBytes(written);
+
+        assertArrayEquals("Faulty buffer serialization of ONION TUNNEL TRANSPORT messages!", msg.serialize(), written);
+    }
+
+    /**
+     * This test targets building, serialization and parsing of ONION TUNNEL BUNDLE messages.
+     */
+    @Test
+    public void testOnionTunnelBundle() throws ParsingException
+    {
+        byte[] first = new byte[OnionTunnelTransportParsedMessage.MAX_INNER_SIZE];
+        first[0] = 0x01;
+        byte[] second = new byte[OnionTunnelTransportParsedMessage.MAX_INNER_SIZE];
+        second[0] = 0x02;
+        ByteBuf firstCell = Unpooled.wrappedBuffer(new OnionTunnelTransportParsedMessage(lid, first).serialize());
+        ByteBuf secondCell = Unpooled.wrappedBuffer(new OnionTunnelTransportParsedMessage(lid, second).serialize());
+
+        ParsedMessage bundle = prs.buildOnionTunnelBundleMsg((byte)0, java.util.Arrays.asList(firstCell, secondCell));
+        byte[] raw = bundle.serialize();
+        assertEquals("Wrong size of ONION TUNNEL BUNDLE message!", 8 + 2 * (4 + LidImpl.LENGTH + first.length), raw.length);
+
+        ByteBuf written = Unpooled.buffer();
+        bundle.writeTo(written);
+        byte[] writtenRaw = new byte[written.readableBytes()];
+        written.readBytes(writtenRaw);
+        assertArrayEquals("Faulty buffer serialization of ONION TUNNEL BUNDLE messages!", raw, writtenRaw);
+
+        ParsedMessage parsed = prs.parseMsg(raw);
+        assertTrue("Wrong message type for ONION TUNNEL BUNDLE message parsing!",
+                parsed.getClass() == OnionTunnelBundleParsedMessage.class);
+        OnionTunnelBundleParsedMessage parsedBundle = (OnionTunnelBundleParsedMessage)parsed;
+        assertFalse("Bundle with cells parsed as probe!", parsedBundle.isProbe());
+        assertEquals("Wrong number of cells in ONION TUNNEL BUNDLE message!", 2, parsedBundle.getCells().size());
+        OnionTransportCell cell = prs.parseTransportCell(parsedBundle.getCells().get(1));
+        assertEquals("Wrong LID in bundled ONION TUNNEL TRANSPORT cell!", lid, cell.getLid());
+        assertArrayEquals("Wrong payload in bundled ONION TUNNEL TRANSPORT cell!", second, cell.toParsedMessage().getData());
+
+        // Probes do not contain any cells
+        OnionTunnelBundleParsedMessage probe = prs.parseBundle(Unpooled.wrappedBuffer(
+                prs.buildOnionTunnelBundleMsg(OnionTunnelBundleParsedMessage.FLAG_PROBE, java.util.Collections.emptyList()).serialize()));
+        assertTrue("Probe flag of ONION TUNNEL BUNDLE message lost!", probe.isProbe());
+        assertTrue("Probe contains cells!", probe.getCells().isEmpty());
+    }
+
+    /**
+     * Only complete ONION TUNNEL TRANSPORT cells may be bundled.
+     */
+    @Test
+    public void testOnionTunnelBundleInvalid() throws ParsingException
+    {
+        byte[] teardown = {
+                0x00, 0x14, 0x02, 0x57
+        };
+        try {
+            prs.buildOnionTunnelBundleMsg((byte)0, java.util.Collections.singletonList(
+                    Unpooled.wrappedBuffer(Arrays.concatenate(teardown, lid.serialize()))));
+            fail("Bundled a ONION TUNNEL TEARDOWN message!");
+        } catch (ParsingException e) {
+            // Expected
+        }
+
+        // Bundle announcing two cells, but containing only one
+        byte[] cell = new OnionTunnelTransportParsedMessage(lid, new byte[OnionTunnelTransportParsedMessage.MAX_INNER_SIZE]).serialize();
+        byte[] header = {
+                0x02, 0x1C, 0x02, 0x50, 0x00, 0x00, 0x00, 0x02
+        };
+        try {
+            prs.parseMsg(Arrays.concatenate(header, cell));
+            fail("Accepted truncated ONION TUNNEL BUNDLE message!");
+        } catch (ParsingException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Voice data has to be split and padded according to the cell size negotiated for a tunnel.
+     */
+    @Test
+    public void testCellSizes() throws ParsingException
+    {
+        byte[] data = new byte[2000];
+        data[data.length - 1] = 0x01;
+
+        assertEquals("Wrong number of fragments for small cells!", 5, prs.buildOnionTunnelVoiceMsgs(lid.serialize(), data).size());
+        assertEquals("Wrong number of fragments for medium cells!", 2, prs.buildOnionTunnelVoiceMsgs(lid.serialize(), data, CellSize.MEDIUM).size());
+        java.util.List<ParsedMessage> voice = prs.buildOnionTunnelVoiceMsgs(lid.serialize(), data, CellSize.LARGE);
+        assertEquals("Wrong number of fragments for large cells!", 1, voice.size());
+
+        OnionTunnelTransportParsedMessage transport = (OnionTunnelTransportParsedMessage)
+                prs.buildOnionTunnelTransferMsgPlain(lid.serialize(), voice.get(0), CellSize.LARGE);
+        assertEquals("Transport message not padded to the cell size!", CellSize.LARGE.getSize(), transport.getData().length);
+        assertArrayEquals("Faulty inner packet of a large cell!", voice.get(0).serialize(), transport.getInnerPacket());
+
+        try {
+            prs.buildOnionTunnelTransferMsgPlain(lid.serialize(), voice.get(0), CellSize.SMALL);
+            fail("Large voice message packed into a small cell!");
+        } catch (ParsingException e) {
+            // Expected
+        }
+
+        assertEquals("Wrong largest cell size!", CellSize.MEDIUM, CellSize.largest((short)0x03));
+        assertEquals("Smallest cell size has to be the fallback!", CellSize.SMALL, CellSize.largest((short)0));
+    }
+}
@@ -0,0 +1,54 @@
+package de.tum.in.net.group17.onion.util;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the circuit breaker guarding requests to other modules.
+ */
+public class CircuitBreakerTest {
+    /**
+     * Check that failed and slow requests open the breaker, that it rejects requests while open and that a single
+     * successful probe closes it again.
+     *
+     * @throws InterruptedException If we were interrupted while waiting for the open time to elapse.
+     */
+    @Test
+    public void openAndRecover() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(2, Duration.ofMillis(100), Duration.ofMillis(50));
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onSuccess(Duration.ofSeconds(1).toNanos()); // slow
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire()); // only one probe
+
+        breaker.onSuccess(0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    /**
+     * Check that a failed probe opens the breaker again right away.
+     *
+     * @throws InterruptedException If we were interrupted while waiting for the open time to elapse.
+     */
+    @Test
+    public void failedProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(100), Duration.ofMillis(50));
+        breaker.onFailure();
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+}
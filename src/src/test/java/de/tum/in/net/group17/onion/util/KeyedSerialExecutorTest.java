@@ -0,0 +1,188 @@
+package de.tum.in.net.group17.onion.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the executor serializing tasks per key, e.g. per tunnel.
+ */
+public class KeyedSerialExecutorTest {
+    /**
+     * Check that tasks of the same key run one after another in submission order although several workers run the
+     * tasks of different keys.
+     *
+     * @throws InterruptedException If we were interrupted while waiting for the tasks.
+     */
+    @Test
+    public void perKeyOrdering() throws InterruptedException {
+        final int keys = 8;
+        final int tasks = 200;
+        KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 4);
+        List<List<Integer>> runs = new ArrayList<>();
+        List<AtomicInteger> running = new ArrayList<>();
+        AtomicBoolean overlap = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(keys * tasks);
+        for(int key = 0; key < keys; key++) {
+            runs.add(Collections.synchronizedList(new ArrayList<>()));
+            running.add(new AtomicInteger());
+        }
+
+        for(int i = 0; i < tasks; i++) {
+            for(int key = 0; key < keys; key++) {
+                int task = i;
+                int k = key;
+                executor.submit(k, () -> {
+                    if(running.get(k).incrementAndGet() > 1)
+                        overlap.set(true);
+                    runs.get(k).add(task);
+                    running.get(k).decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse("Tasks of the same key ran concurrently.", overlap.get());
+        for(List<Integer> run : runs) {
+            assertEquals(tasks, run.size());
+            for(int i = 0; i < tasks; i++) {
+                assertEquals(i, (int) run.get(i));
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Check that tasks exceeding the capacity are dropped and the executor accepts tasks again once it drained.
+     *
+     * @throws InterruptedException If we were interrupted while waiting for the tasks.
+     */
+    @Test
+    public void capacityTailDrop() throws InterruptedException {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 1, 3, DropPolicy.TAIL);
+        CountDownLatch blocked = new CountDownLatch(1);
+        assertTrue(executor.trySubmit(1, () -> await(blocked)));
+        assertTrue(executor.trySubmit(2, () -> { }));
+        assertTrue(executor.trySubmit(3, () -> { }));
+        assertFalse(executor.trySubmit(4, () -> { }));
+        assertEquals(3, executor.getQueueDepth());
+
+        blocked.countDown();
+        awaitDrained(executor);
+        assertTrue(executor.trySubmit(4, () -> { }));
+        executor.shutdown();
+    }
+
+    /**
+     * Check that a key is limited to its share of the capacity, that a new key still gets a slot and that the tracked
+     * keys are forgotten once their tasks finished or were dropped.
+     *
+     * @throws InterruptedException If we were interrupted while waiting for the tasks.
+     */
+    @Test
+    public void fairShare() throws InterruptedException {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 1, 4, DropPolicy.FAIR);
+        CountDownLatch blocked = new CountDownLatch(1);
+
+        // a flooding key gets half of the capacity while it is the only key
+        assertTrue(executor.trySubmit("a", () -> await(blocked)));
+        assertTrue(executor.trySubmit("a", () -> { }));
+        assertFalse(executor.trySubmit("a", () -> { }));
+
+        // another key still gets its share of the remaining capacity
+        assertTrue(executor.trySubmit("b", () -> { }));
+        assertFalse(executor.trySubmit("b", () -> { }));
+        assertEquals(3, executor.getQueueDepth());
+        assertEquals(2, executor.getQueuedKeyCount());
+
+        blocked.countDown();
+        awaitDrained(executor);
+        assertEquals(0, executor.getQueuedKeyCount());
+
+        // the keys start over with a full share
+        assertTrue(executor.trySubmit("a", () -> { }));
+        awaitDrained(executor);
+        assertEquals(0, executor.getQueuedKeyCount());
+        executor.shutdown();
+    }
+
+    /**
+     * Check that actions of a key run in registration order although their futures complete in reverse order, that
+     * an action of a completed future without predecessor runs on the calling thread and that keys are forgotten
+     * once their actions ran.
+     *
+     * @throws InterruptedException If we were interrupted while waiting for the actions.
+     */
+    @Test
+    public void completionsInOrder() throws InterruptedException {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 2);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            futures.add(future);
+            executor.whenComplete("a", future, (result, error) -> {
+                order.add(error == null ? result : -1);
+                done.countDown();
+            });
+        }
+        futures.get(2).complete(2);
+        futures.get(1).completeExceptionally(new IllegalStateException());
+        futures.get(0).complete(0);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, -1, 2), order);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(executor.getPendingKeyCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, executor.getPendingKeyCount());
+
+        Thread caller = Thread.currentThread();
+        AtomicBoolean inline = new AtomicBoolean();
+        executor.whenComplete("a", CompletableFuture.completedFuture(3), (result, error) -> inline.set(Thread.currentThread() == caller));
+        assertTrue(inline.get());
+        assertEquals(0, executor.getPendingKeyCount());
+        executor.shutdown();
+    }
+
+    /**
+     * Wait until all tasks handed to an executor finished.
+     *
+     * @param executor The executor.
+     *
+     * @throws InterruptedException If we were interrupted while waiting.
+     */
+    private static void awaitDrained(KeyedSerialExecutor executor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(executor.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    /**
+     * Block a task until the test releases it.
+     *
+     * @param latch The latch released by the test.
+     */
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
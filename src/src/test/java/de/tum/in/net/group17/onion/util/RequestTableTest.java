@@ -0,0 +1,49 @@
+package de.tum.in.net.group17.onion.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the correlation of responses with pending requests.
+ */
+public class RequestTableTest {
+    /**
+     * Check that a response finds its request exactly once and that a late response to a removed request is detected
+     * as stale although a newer request occupies the same slot.
+     */
+    @Test
+    public void staleResponse() {
+        RequestTable<Object> table = new RequestTable<>(2);
+        assertEquals(2, table.getCapacity());
+
+        Object first = new Object();
+        int firstId = table.reserve();
+        table.set(firstId, first);
+        assertTrue(table.remove(firstId, first)); // e.g. timed out
+
+        // the next requests wrap around and reuse the slot of the first one
+        int secondId = table.reserve();
+        int thirdId = table.reserve();
+        int reusingId = (secondId & 1) == (firstId & 1) ? secondId : thirdId;
+        Object reusing = new Object();
+        table.set(reusingId, reusing);
+
+        assertNull(table.remove(firstId));
+        assertSame(reusing, table.remove(reusingId));
+        assertNull(table.remove(reusingId));
+    }
+
+    /**
+     * Check that occupied slots are skipped and a full table is reported.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void fullTable() {
+        RequestTable<Object> table = new RequestTable<>(2);
+        int blocking = table.reserve();
+        table.set(blocking, new Object());
+        int other = table.reserve();
+        assertNotEquals(blocking & 1, other & 1);
+        table.reserve();
+    }
+}
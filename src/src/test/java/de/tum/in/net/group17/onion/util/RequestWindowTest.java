@@ -0,0 +1,79 @@
+package de.tum.in.net.group17.onion.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the window limiting the requests awaiting a response.
+ */
+public class RequestWindowTest {
+    /**
+     * Check that requests exceeding a full window wait and are admitted in arrival order as slots are released.
+     */
+    @Test
+    public void fifoAdmission() {
+        RequestWindow window = new RequestWindow(2);
+        List<Integer> sent = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            int request = i;
+            window.submit(() -> sent.add(request));
+        }
+        assertEquals(Arrays.asList(0, 1), sent);
+        assertEquals(2, window.getInFlight());
+        assertEquals(3, window.getWaiting());
+
+        window.release();
+        assertEquals(Arrays.asList(0, 1, 2), sent);
+        window.release();
+        window.release();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), sent);
+        assertEquals(2, window.getInFlight());
+        assertEquals(0, window.getWaiting());
+
+        window.release();
+        window.release();
+        assertEquals(0, window.getInFlight());
+    }
+
+    /**
+     * Check that a slot released by a failed request admits the next waiting one, also if the waiting requests fail
+     * right away when sent, e.g. because the connection is down, and that the window is empty afterwards.
+     */
+    @Test
+    public void releaseOnFailure() {
+        RequestWindow window = new RequestWindow(1);
+        List<Integer> sent = new ArrayList<>();
+        window.submit(() -> sent.add(0));
+        for(int i = 1; i < 3; i++) {
+            int request = i;
+            window.submit(() -> {
+                sent.add(request);
+                window.release(); // fails while being sent
+            });
+        }
+        assertEquals(Arrays.asList(0), sent);
+        assertEquals(2, window.getWaiting());
+
+        window.release(); // the first request timed out
+        assertEquals(Arrays.asList(0, 1, 2), sent);
+        assertEquals(0, window.getInFlight());
+        assertEquals(0, window.getWaiting());
+
+        window.submit(() -> sent.add(3));
+        assertEquals(4, sent.size());
+        assertEquals(1, window.getInFlight());
+    }
+
+    /**
+     * Check that a window without slots is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyWindow() {
+        new RequestWindow(0);
+    }
+}